@@ -27,7 +27,9 @@ package som.compiler;
 
 import static som.interpreter.Bytecodes.*;
 
+import som.compiler.Parser.ParseError;
 import som.vmobjects.SAbstractObject;
+import som.vmobjects.SInteger;
 import som.vmobjects.SMethod;
 import som.vmobjects.SSymbol;
 
@@ -40,11 +42,34 @@ public class BytecodeGenerator {
 
   public void emitPUSHARGUMENT(final MethodGenerationContext mgenc, final byte idx,
       final byte ctx) {
-    emit3(mgenc, PUSH_ARGUMENT, idx, ctx);
+    if (idx == 0 && isMethodContext(mgenc, ctx)) {
+      emit1(mgenc, PUSH_SELF);
+    } else if (ctx == 0 && idx == 1) {
+      emit1(mgenc, PUSH_ARG_1);
+    } else if (ctx == 0 && idx == 2) {
+      emit1(mgenc, PUSH_ARG_2);
+    } else {
+      emit3(mgenc, PUSH_ARGUMENT, idx, ctx);
+    }
+  }
+
+  private static boolean isMethodContext(final MethodGenerationContext mgenc,
+      final byte ctx) {
+    // the first argument of a method is self, while it is the block for blocks
+    MethodGenerationContext context = mgenc;
+    for (int i = 0; i < ctx; i++) {
+      context = context.getOuter();
+    }
+    return !context.isBlockMethod();
   }
 
   public void emitRETURNLOCAL(final MethodGenerationContext mgenc) {
-    emit1(mgenc, RETURN_LOCAL);
+    if (!mgenc.isBlockMethod() && mgenc.lastBytecodeIs(PUSH_SELF)) {
+      mgenc.removeLastBytecode();
+      emit1(mgenc, RETURN_SELF);
+    } else {
+      emit1(mgenc, RETURN_LOCAL);
+    }
   }
 
   public void emitRETURNNONLOCAL(final MethodGenerationContext mgenc) {
@@ -62,7 +87,15 @@ public class BytecodeGenerator {
   public void emitPUSHLOCAL(final MethodGenerationContext mgenc, final byte idx,
       final byte ctx) {
     assert idx >= 0;
-    emit3(mgenc, PUSH_LOCAL, idx, ctx);
+    if (ctx == 0 && idx == 0) {
+      emit1(mgenc, PUSH_LOCAL_0);
+    } else if (ctx == 0 && idx == 1) {
+      emit1(mgenc, PUSH_LOCAL_1);
+    } else if (ctx == 0 && idx == 2) {
+      emit1(mgenc, PUSH_LOCAL_2);
+    } else {
+      emit3(mgenc, PUSH_LOCAL, idx, ctx);
+    }
   }
 
   public void emitPUSHFIELD(final MethodGenerationContext mgenc, final SSymbol fieldName) {
@@ -74,6 +107,33 @@ public class BytecodeGenerator {
     emit2(mgenc, PUSH_GLOBAL, mgenc.findLiteralIndex(global));
   }
 
+  /**
+   * Push a global, using a short form for nil, true, and false. Adds the
+   * literal for the global only if needed.
+   */
+  public void emitPUSHGLOBAL(final MethodGenerationContext mgenc, final SSymbol global,
+      final Parser parser) throws ParseError {
+    switch (global.getEmbeddedString()) {
+      case "nil":
+        emitPUSHNIL(mgenc);
+        break;
+      case "true":
+        emit1(mgenc, PUSH_TRUE);
+        break;
+      case "false":
+        emit1(mgenc, PUSH_FALSE);
+        break;
+      default:
+        mgenc.addLiteralIfAbsent(global, parser);
+        emitPUSHGLOBAL(mgenc, global);
+        break;
+    }
+  }
+
+  public void emitPUSHNIL(final MethodGenerationContext mgenc) {
+    emit1(mgenc, PUSH_NIL);
+  }
+
   public void emitPOPARGUMENT(final MethodGenerationContext mgenc, final byte idx,
       final byte ctx) {
     emit3(mgenc, POP_ARGUMENT, idx, ctx);
@@ -94,7 +154,24 @@ public class BytecodeGenerator {
   }
 
   public void emitSEND(final MethodGenerationContext mgenc, final SSymbol msg) {
-    emit2(mgenc, SEND, mgenc.findLiteralIndex(msg));
+    emit2(mgenc, getSendBytecode(msg), mgenc.findLiteralIndex(msg));
+  }
+
+  private static byte getSendBytecode(final SSymbol msg) {
+    switch (msg.getEmbeddedString()) {
+      case "+":
+        return SEND_ADD;
+      case "-":
+        return SEND_SUBTRACT;
+      case "*":
+        return SEND_MULTIPLY;
+      case "<":
+        return SEND_LESS_THAN;
+      case "=":
+        return SEND_EQUAL;
+      default:
+        return SEND;
+    }
   }
 
   public void emitPUSHCONSTANT(final MethodGenerationContext mgenc,
@@ -106,20 +183,42 @@ public class BytecodeGenerator {
     emit2(mgenc, PUSH_CONSTANT, literalIndex);
   }
 
+  /**
+   * Push a constant, using a short form for the integers 0 and 1. Adds the
+   * literal for the constant only if needed.
+   */
+  public void emitPUSHCONSTANT(final MethodGenerationContext mgenc,
+      final SAbstractObject lit, final Parser parser) throws ParseError {
+    if (lit instanceof SInteger) {
+      long value = ((SInteger) lit).getEmbeddedInteger();
+      if (value == 0) {
+        emit1(mgenc, PUSH_0);
+        return;
+      }
+      if (value == 1) {
+        emit1(mgenc, PUSH_1);
+        return;
+      }
+    }
+
+    mgenc.addLiteralIfAbsent(lit, parser);
+    emitPUSHCONSTANT(mgenc, lit);
+  }
+
   private void emit1(final MethodGenerationContext mgenc, final byte code) {
     mgenc.addBytecode(code);
   }
 
   private void emit2(final MethodGenerationContext mgenc, final byte code, final byte idx) {
     mgenc.addBytecode(code);
-    mgenc.addBytecode(idx);
+    mgenc.addBytecodeArgument(idx);
   }
 
   private void emit3(final MethodGenerationContext mgenc, final byte code, final byte idx,
       final byte ctx) {
     mgenc.addBytecode(code);
-    mgenc.addBytecode(idx);
-    mgenc.addBytecode(ctx);
+    mgenc.addBytecodeArgument(idx);
+    mgenc.addBytecodeArgument(ctx);
   }
 
 }
@@ -0,0 +1,225 @@
+package som.compiler;
+
+import static som.interpreter.Bytecodes.FOR_DOWN_TO;
+import static som.interpreter.Bytecodes.FOR_NEXT;
+import static som.interpreter.Bytecodes.FOR_TO;
+import static som.interpreter.Bytecodes.JUMP_BACKWARD;
+import static som.interpreter.Bytecodes.JUMP_IF_FALSE;
+import static som.interpreter.Bytecodes.JUMP_IF_TRUE;
+import static som.interpreter.Bytecodes.POP_ARGUMENT;
+import static som.interpreter.Bytecodes.POP_LOCAL;
+import static som.interpreter.Bytecodes.PUSH_ARGUMENT;
+import static som.interpreter.Bytecodes.PUSH_BLOCK;
+import static som.interpreter.Bytecodes.PUSH_LOCAL;
+import static som.interpreter.Bytecodes.RETURN_NON_LOCAL;
+import static som.interpreter.Bytecodes.getBytecodeLength;
+import static som.interpreter.Bytecodes.getFirstComponent;
+import static som.interpreter.Bytecodes.getJumpTarget;
+
+import java.util.BitSet;
+
+import som.vmobjects.SAbstractObject;
+import som.vmobjects.SArray;
+import som.vmobjects.SMethod;
+
+
+/**
+ * Determines which variables of the frame of a method, or block, are read
+ * and written by the blocks created in it.
+ *
+ * A block that only reads these variables, and is created after their last
+ * assignment, sees the same values in a copy of them. Such a block gets a
+ * copy of the arguments and locals of the frame as context, instead of the
+ * frame itself, so that it does not keep the frame alive.
+ *
+ * Blocks that are not inlined are assumed to escape, since blocks are not
+ * followed into the methods they are passed to.
+ */
+final class CaptureAnalysis {
+
+  private CaptureAnalysis() {}
+
+  /**
+   * Mark the blocks created in the given method, or block, that can use a
+   * copy of the variables of its frame as context.
+   */
+  static void markBlocksCopyingContext(final SMethod method) {
+    byte[] code = method.getBytecodes();
+    int i = 0;
+    while (i < code.length) {
+      byte bc = getFirstComponent(code[i]);
+      if (bc == PUSH_BLOCK) {
+        SMethod block = (SMethod) method.getConstant(i);
+        if (!block.isCleanBlock() && canCopyContext(method, i, block)) {
+          block.markAsCopyingContext();
+        }
+      }
+      i += getBytecodeLength(bc);
+    }
+  }
+
+  private static boolean canCopyContext(final SMethod method, final int blockIndex,
+      final SMethod block) {
+    Captures captures = new Captures();
+    captures.addBlock(block, 1);
+
+    // a non-local return needs the frame of the method to return from
+    if (captures.nonLocalReturn || captures.writes()) {
+      return false;
+    }
+    return !getWritesAfter(method, blockIndex).writesAnyReadBy(captures);
+  }
+
+  /**
+   * Get the variables of the frame written after the block at the given
+   * index is created, directly or by any block created in the frame.
+   */
+  private static Captures getWritesAfter(final SMethod method, final int blockIndex) {
+    byte[] code = method.getBytecodes();
+
+    // the variables may also be written before the block is created again in
+    // the next iteration of a loop around it
+    int start = blockIndex;
+    int i = 0;
+    while (i < code.length) {
+      byte bc = getFirstComponent(code[i]);
+      if (bc == JUMP_BACKWARD || bc == FOR_NEXT) {
+        int target = getJumpTarget(code, i);
+        if (target <= blockIndex && blockIndex < i) {
+          start = Math.min(start, target);
+        }
+      }
+      i += getBytecodeLength(bc);
+    }
+
+    Captures result = new Captures();
+    i = 0;
+    while (i < code.length) {
+      byte bc = getFirstComponent(code[i]);
+      if (i >= start) {
+        result.addWrite(code, i, bc);
+      }
+
+      // the blocks run at any time
+      if (bc == PUSH_BLOCK) {
+        result.addBlock((SMethod) method.getConstant(i), 1);
+      } else if (hasInlinedSend(bc)) {
+        result.addInlinedSend((SArray) method.getLiteral(code[i + 3]), 1);
+      }
+      i += getBytecodeLength(bc);
+    }
+    return result;
+  }
+
+  private static boolean hasInlinedSend(final byte bytecode) {
+    return bytecode == JUMP_IF_TRUE || bytecode == JUMP_IF_FALSE || bytecode == FOR_TO
+        || bytecode == FOR_DOWN_TO;
+  }
+
+  /**
+   * The variables of a frame that are read and written.
+   */
+  private static final class Captures {
+    private final BitSet readArguments    = new BitSet();
+    private final BitSet readLocals       = new BitSet();
+    private final BitSet writtenArguments = new BitSet();
+    private final BitSet writtenLocals    = new BitSet();
+    private boolean      nonLocalReturn;
+
+    boolean writes() {
+      return !writtenArguments.isEmpty() || !writtenLocals.isEmpty();
+    }
+
+    boolean writesAnyReadBy(final Captures other) {
+      return writtenArguments.intersects(other.readArguments)
+          || writtenLocals.intersects(other.readLocals);
+    }
+
+    /**
+     * Add the accesses of the given block, and of the blocks nested in it,
+     * to the variables of the frame the given number of levels out.
+     */
+    void addBlock(final SMethod block, final int contextLevel) {
+      byte[] code = block.getBytecodes();
+      int i = 0;
+      while (i < code.length) {
+        byte bc = getFirstComponent(code[i]);
+        switch (bc) {
+          case PUSH_ARGUMENT:
+            if (code[i + 2] == contextLevel) {
+              readArguments.set(code[i + 1]);
+            }
+            break;
+          case PUSH_LOCAL:
+            if (code[i + 2] == contextLevel) {
+              readLocals.set(code[i + 1]);
+            }
+            break;
+          case POP_ARGUMENT:
+            if (code[i + 2] == contextLevel) {
+              writtenArguments.set(code[i + 1]);
+            }
+            break;
+          case POP_LOCAL:
+            if (code[i + 2] == contextLevel) {
+              writtenLocals.set(code[i + 1]);
+            }
+            break;
+          case RETURN_NON_LOCAL:
+            nonLocalReturn = true;
+            break;
+          case PUSH_BLOCK:
+            addBlock((SMethod) block.getConstant(i), contextLevel + 1);
+            break;
+          default:
+            if (hasInlinedSend(bc)) {
+              addInlinedSend((SArray) block.getLiteral(code[i + 3]), contextLevel + 1);
+            }
+            break;
+        }
+        i += getBytecodeLength(bc);
+      }
+    }
+
+    /**
+     * Add the accesses of the blocks of an inlined send, which are created
+     * when it is sent after all.
+     */
+    void addInlinedSend(final SArray inlinedSend, final int contextLevel) {
+      for (int i = 1; i < inlinedSend.getNumberOfIndexableFields(); i++) {
+        SAbstractObject block = inlinedSend.getIndexableField(i);
+        if (block instanceof SMethod) {
+          addBlock((SMethod) block, contextLevel);
+        }
+      }
+    }
+
+    /**
+     * Add the variable of the frame written by the given bytecode.
+     */
+    void addWrite(final byte[] code, final int i, final byte bytecode) {
+      switch (bytecode) {
+        case POP_ARGUMENT:
+          if (code[i + 2] == 0) {
+            writtenArguments.set(code[i + 1]);
+          }
+          break;
+        case POP_LOCAL:
+          if (code[i + 2] == 0) {
+            writtenLocals.set(code[i + 1]);
+          }
+          break;
+        case FOR_TO:
+        case FOR_DOWN_TO:
+          // the counter, the limit, and the step
+          writtenLocals.set(code[i + 4], code[i + 4] + 3);
+          break;
+        case FOR_NEXT:
+          writtenLocals.set(code[i + 3]);
+          break;
+        default:
+          break;
+      }
+    }
+  }
+}
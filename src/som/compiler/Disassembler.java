@@ -26,6 +26,15 @@
 
 package som.compiler;
 
+import static som.interpreter.Bytecodes.FOR_DOWN_TO;
+import static som.interpreter.Bytecodes.FOR_NEXT;
+import static som.interpreter.Bytecodes.FOR_TO;
+import static som.interpreter.Bytecodes.JUMP;
+import static som.interpreter.Bytecodes.JUMP_BACKWARD;
+import static som.interpreter.Bytecodes.JUMP_IF_FALSE;
+import static som.interpreter.Bytecodes.JUMP_IF_NIL;
+import static som.interpreter.Bytecodes.JUMP_IF_NOT_NIL;
+import static som.interpreter.Bytecodes.JUMP_IF_TRUE;
 import static som.interpreter.Bytecodes.POP_ARGUMENT;
 import static som.interpreter.Bytecodes.POP_FIELD;
 import static som.interpreter.Bytecodes.POP_LOCAL;
@@ -36,12 +45,24 @@ import static som.interpreter.Bytecodes.PUSH_FIELD;
 import static som.interpreter.Bytecodes.PUSH_GLOBAL;
 import static som.interpreter.Bytecodes.PUSH_LOCAL;
 import static som.interpreter.Bytecodes.SEND;
+import static som.interpreter.Bytecodes.SEND_ADD;
+import static som.interpreter.Bytecodes.SEND_EQUAL;
+import static som.interpreter.Bytecodes.SEND_LESS_THAN;
+import static som.interpreter.Bytecodes.SEND_MEGA;
+import static som.interpreter.Bytecodes.SEND_MONO_METHOD;
+import static som.interpreter.Bytecodes.SEND_MONO_PRIMITIVE;
+import static som.interpreter.Bytecodes.SEND_MULTIPLY;
+import static som.interpreter.Bytecodes.SEND_POLY;
+import static som.interpreter.Bytecodes.SEND_SUBTRACT;
 import static som.interpreter.Bytecodes.SUPER_SEND;
 import static som.interpreter.Bytecodes.getBytecodeLength;
+import static som.interpreter.Bytecodes.getFirstComponent;
+import static som.interpreter.Bytecodes.getJumpTarget;
 import static som.interpreter.Bytecodes.getPaddedBytecodeName;
 
 import som.vm.Universe;
 import som.vmobjects.SAbstractObject;
+import som.vmobjects.SArray;
 import som.vmobjects.SClass;
 import som.vmobjects.SInvokable;
 import som.vmobjects.SMethod;
@@ -100,7 +121,8 @@ public class Disassembler {
         Universe.errorPrintln();
         continue;
       }
-      switch (bytecode) {
+      // superinstructions have the parameters of their first component
+      switch (getFirstComponent(bytecode)) {
         case PUSH_LOCAL:
           Universe.errorPrintln("local: " + m.getBytecode(b + 1) + ", context: "
               + m.getBytecode(b + 2));
@@ -146,13 +168,56 @@ public class Disassembler {
           break;
         }
         case SEND:
+        case SEND_ADD:
+        case SEND_SUBTRACT:
+        case SEND_MULTIPLY:
+        case SEND_LESS_THAN:
+        case SEND_EQUAL:
           Universe.errorPrintln("(index: " + m.getBytecode(b + 1)
               + ") signature: " + ((SSymbol) m.getConstant(b)).toString());
           break;
+        case SEND_MONO_METHOD:
+        case SEND_MONO_PRIMITIVE:
+          Universe.errorPrintln("(index: " + m.getBytecode(b + 1)
+              + ") signature: " + ((SSymbol) m.getConstant(b)).toString()
+              + ", cached: " + cachedClassName(m, b));
+          break;
+        case SEND_POLY:
+        case SEND_MEGA:
+          Universe.errorPrintln("(index: " + m.getBytecode(b + 1)
+              + ") signature: " + ((SSymbol) m.getConstant(b)).toString()
+              + ", " + m.getPolymorphicCache(b));
+          break;
         case SUPER_SEND:
           Universe.errorPrintln("(index: " + m.getBytecode(b + 1)
               + ") signature: " + ((SSymbol) m.getConstant(b)).toString());
           break;
+        case JUMP:
+        case JUMP_IF_NIL:
+        case JUMP_IF_NOT_NIL:
+        case JUMP_BACKWARD:
+          Universe.errorPrintln("target: " + getJumpTarget(m.getBytecodes(), b));
+          break;
+        case JUMP_IF_TRUE:
+        case JUMP_IF_FALSE: {
+          SArray inlinedSend = (SArray) m.getLiteral(m.getBytecode(b + 3));
+          Universe.errorPrintln("target: " + getJumpTarget(m.getBytecodes(), b) + ", (index: "
+              + m.getBytecode(b + 3) + ") inlined: "
+              + ((SSymbol) inlinedSend.getIndexableField(0)).toString());
+          break;
+        }
+        case FOR_TO:
+        case FOR_DOWN_TO: {
+          SArray inlinedSend = (SArray) m.getLiteral(m.getBytecode(b + 3));
+          Universe.errorPrintln("counter: " + m.getBytecode(b + 4) + ", target: "
+              + getJumpTarget(m.getBytecodes(), b) + ", (index: " + m.getBytecode(b + 3)
+              + ") inlined: " + ((SSymbol) inlinedSend.getIndexableField(0)).toString());
+          break;
+        }
+        case FOR_NEXT:
+          Universe.errorPrintln("counter: " + m.getBytecode(b + 3) + ", target: "
+              + getJumpTarget(m.getBytecodes(), b));
+          break;
         default:
           Universe.errorPrintln("<incorrect bytecode>");
       }
@@ -160,4 +225,12 @@ public class Disassembler {
     Universe.errorPrintln(indent + ")");
   }
 
+  private static String cachedClassName(final SMethod m, final int cacheIndex) {
+    SClass cachedClass = m.getInlineCacheClass(cacheIndex);
+    if (cachedClass == null) {
+      return "-";
+    }
+    return cachedClass.getName().getEmbeddedString();
+  }
+
 }
@@ -26,32 +26,69 @@
 package som.compiler;
 
 import static som.interpreter.Bytecodes.DUP;
+import static som.interpreter.Bytecodes.FOR_DOWN_TO;
+import static som.interpreter.Bytecodes.FOR_NEXT;
+import static som.interpreter.Bytecodes.FOR_TO;
 import static som.interpreter.Bytecodes.HALT;
+import static som.interpreter.Bytecodes.JUMP;
+import static som.interpreter.Bytecodes.JUMP_BACKWARD;
+import static som.interpreter.Bytecodes.JUMP_IF_FALSE;
+import static som.interpreter.Bytecodes.JUMP_IF_NIL;
+import static som.interpreter.Bytecodes.JUMP_IF_NOT_NIL;
+import static som.interpreter.Bytecodes.JUMP_IF_TRUE;
 import static som.interpreter.Bytecodes.POP;
 import static som.interpreter.Bytecodes.POP_ARGUMENT;
 import static som.interpreter.Bytecodes.POP_FIELD;
 import static som.interpreter.Bytecodes.POP_LOCAL;
+import static som.interpreter.Bytecodes.PUSH_0;
+import static som.interpreter.Bytecodes.PUSH_1;
 import static som.interpreter.Bytecodes.PUSH_ARGUMENT;
+import static som.interpreter.Bytecodes.PUSH_ARG_1;
+import static som.interpreter.Bytecodes.PUSH_ARG_2;
 import static som.interpreter.Bytecodes.PUSH_BLOCK;
 import static som.interpreter.Bytecodes.PUSH_CONSTANT;
+import static som.interpreter.Bytecodes.PUSH_FALSE;
 import static som.interpreter.Bytecodes.PUSH_FIELD;
 import static som.interpreter.Bytecodes.PUSH_GLOBAL;
 import static som.interpreter.Bytecodes.PUSH_LOCAL;
+import static som.interpreter.Bytecodes.PUSH_LOCAL_0;
+import static som.interpreter.Bytecodes.PUSH_LOCAL_1;
+import static som.interpreter.Bytecodes.PUSH_LOCAL_2;
+import static som.interpreter.Bytecodes.PUSH_NIL;
+import static som.interpreter.Bytecodes.PUSH_SELF;
+import static som.interpreter.Bytecodes.PUSH_TRUE;
 import static som.interpreter.Bytecodes.RETURN_LOCAL;
 import static som.interpreter.Bytecodes.RETURN_NON_LOCAL;
+import static som.interpreter.Bytecodes.RETURN_SELF;
 import static som.interpreter.Bytecodes.SEND;
+import static som.interpreter.Bytecodes.SEND_ADD;
+import static som.interpreter.Bytecodes.SEND_EQUAL;
+import static som.interpreter.Bytecodes.SEND_LESS_THAN;
+import static som.interpreter.Bytecodes.SEND_MULTIPLY;
+import static som.interpreter.Bytecodes.SEND_SUBTRACT;
 import static som.interpreter.Bytecodes.SUPER_SEND;
+import static som.interpreter.Bytecodes.getBytecodeLength;
+import static som.interpreter.Bytecodes.getFirstComponent;
+import static som.interpreter.Bytecodes.getJumpTarget;
+import static som.interpreter.Bytecodes.getSuperinstruction;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 import som.compiler.Parser.ParseError;
 import som.vm.Universe;
 import som.vmobjects.SAbstractObject;
+import som.vmobjects.SArray;
 import som.vmobjects.SInvokable;
 import som.vmobjects.SMethod;
 import som.vmobjects.SPrimitive;
 import som.vmobjects.SSymbol;
+import som.vmobjects.TrivialGetter;
+import som.vmobjects.TrivialLiteral;
+import som.vmobjects.TrivialSetter;
 
 
 public class MethodGenerationContext {
@@ -68,6 +105,12 @@ public class MethodGenerationContext {
   private boolean                     finished;
   private final ArrayList<Byte>       bytecode  = new ArrayList<>();
 
+  // Indexes of the last two bytecodes, -1 if unknown
+  private int lastBytecodeIndex       = -1;
+  private int secondLastBytecodeIndex = -1;
+
+  private static final BytecodeGenerator bcGen = new BytecodeGenerator();
+
   /**
    * Constructor used for block methods.
    */
@@ -109,21 +152,131 @@ public class MethodGenerationContext {
   public SMethod assembleMethod(final Universe universe) {
     // create a method instance with the given number of bytecodes
     int numLocals = locals.size();
+    int maxStackDepth = computeStackDepth();
 
-    SMethod meth = universe.newMethod(signature, bytecode.size(),
-        numLocals, computeStackDepth(),
-        literals);
+    byte[] code = new byte[bytecode.size()];
+    for (int i = 0; i < code.length; i++) {
+      code[i] = bytecode.get(i);
+    }
 
-    // copy bytecodes into method
-    int i = 0;
-    for (byte bc : bytecode) {
-      meth.setBytecode(i++, bc);
+    SMethod trivial =
+        blockMethod ? null : newTrivialMethod(code, numLocals, maxStackDepth, universe);
+
+    if (universe.useSuperinstructions()) {
+      fuseSuperinstructions(code);
     }
 
     // return the method - the holder field is to be set later on!
+    if (trivial != null) {
+      setBytecodes(trivial, code);
+      return trivial;
+    }
+
+    SMethod meth = newMethod(signature, code, numLocals, maxStackDepth, literals, universe);
+    if (blockMethod && isClean(meth, 0)) {
+      meth.markAsCleanBlock();
+    }
+    CaptureAnalysis.markBlocksCopyingContext(meth);
+    return meth;
+  }
+
+  private static SMethod newMethod(final SSymbol signature, final byte[] code,
+      final int numLocals, final int maxStackDepth, final List<SAbstractObject> literals,
+      final Universe universe) {
+    // create a method instance with the given number of bytecodes
+    SMethod meth = universe.newMethod(signature, code.length,
+        numLocals, maxStackDepth,
+        literals);
+
+    setBytecodes(meth, code);
     return meth;
   }
 
+  private static void setBytecodes(final SMethod meth, final byte[] code) {
+    // copy bytecodes into method
+    for (int i = 0; i < code.length; i++) {
+      meth.setBytecode(i, code[i]);
+    }
+  }
+
+  /**
+   * Create a method that is executed without a frame, if the given bytecodes
+   * only return a field, set a field to the argument, or return a literal.
+   * Any bytecodes after the return are not reachable. Getters and setters
+   * take only the receiver, and the receiver and the value, off the stack.
+   *
+   * @return the trivial method, or null for all other methods
+   */
+  private SMethod newTrivialMethod(final byte[] code, final int numLocals,
+      final int maxStackDepth, final Universe universe) {
+    int numArgs = signature.getNumberOfSignatureArguments();
+    if (numArgs == 1 && code.length >= 3 && code[0] == PUSH_FIELD
+        && code[2] == RETURN_LOCAL) {
+      return new TrivialGetter(signature, code.length, numLocals, maxStackDepth, literals,
+          code[1]);
+    }
+
+    if (numArgs == 2 && code.length >= 6 && code[0] == PUSH_ARG_1 && code[1] == DUP
+        && code[2] == POP_FIELD && code[4] == POP && code[5] == RETURN_SELF) {
+      return new TrivialSetter(signature, code.length, numLocals, maxStackDepth, literals,
+          code[3]);
+    }
+
+    SAbstractObject literal;
+    if (code.length >= 3 && code[0] == PUSH_CONSTANT && code[2] == RETURN_LOCAL) {
+      literal = literals.get(code[1]);
+    } else if (code.length >= 2 && code[1] == RETURN_LOCAL) {
+      switch (code[0]) {
+        case PUSH_NIL:
+          literal = universe.nilObject;
+          break;
+        case PUSH_TRUE:
+          literal = universe.trueObject;
+          break;
+        case PUSH_FALSE:
+          literal = universe.falseObject;
+          break;
+        case PUSH_0:
+          literal = universe.newInteger(0);
+          break;
+        case PUSH_1:
+          literal = universe.newInteger(1);
+          break;
+        default:
+          return null;
+      }
+    } else {
+      return null;
+    }
+    return new TrivialLiteral(signature, code.length, numLocals, maxStackDepth, literals,
+        literal);
+  }
+
+  /**
+   * Replace sequences of two bytecodes by superinstructions where possible.
+   * Since a superinstruction only replaces the first opcode, bytecode indexes
+   * stay the same, and jumps to the second bytecode still execute it alone.
+   */
+  private static void fuseSuperinstructions(final byte[] code) {
+    int i = 0;
+    while (i < code.length) {
+      byte first = code[i];
+      int next = i + getBytecodeLength(first);
+      if (next >= code.length) {
+        break;
+      }
+
+      byte second = code[next];
+      byte fused = getSuperinstruction(first, second);
+      if (fused != HALT) {
+        code[i] = fused;
+        // the second bytecode is part of the superinstruction
+        next += getBytecodeLength(second);
+      }
+      i = next;
+    }
+  }
+
   private int computeStackDepth() {
     int depth = 0;
     int maxDepth = 0;
@@ -135,6 +288,17 @@ public class MethodGenerationContext {
           i++;
           break;
         case DUP:
+        case PUSH_SELF:
+        case PUSH_ARG_1:
+        case PUSH_ARG_2:
+        case PUSH_LOCAL_0:
+        case PUSH_LOCAL_1:
+        case PUSH_LOCAL_2:
+        case PUSH_NIL:
+        case PUSH_TRUE:
+        case PUSH_FALSE:
+        case PUSH_0:
+        case PUSH_1:
           depth++;
           i++;
           break;
@@ -164,7 +328,12 @@ public class MethodGenerationContext {
           i += 2;
           break;
         case SEND:
-        case SUPER_SEND: {
+        case SUPER_SEND:
+        case SEND_ADD:
+        case SEND_SUBTRACT:
+        case SEND_MULTIPLY:
+        case SEND_LESS_THAN:
+        case SEND_EQUAL: {
           // these are special: they need to look at the number of
           // arguments (extractable from the signature)
           SSymbol sig = (SSymbol) literals.get(bytecode.get(i + 1));
@@ -177,8 +346,39 @@ public class MethodGenerationContext {
         }
         case RETURN_LOCAL:
         case RETURN_NON_LOCAL:
+        case RETURN_SELF:
           i++;
           break;
+        case JUMP:
+        case JUMP_BACKWARD:
+          i += 3;
+          break;
+        case JUMP_IF_NIL:
+        case JUMP_IF_NOT_NIL:
+          depth--;
+          i += 3;
+          break;
+        case JUMP_IF_TRUE:
+        case JUMP_IF_FALSE: {
+          // the send of a non-boolean receiver pushes the blocks
+          SArray inlinedSend = (SArray) literals.get(bytecode.get(i + 3));
+          maxDepth = Math.max(maxDepth,
+              depth + inlinedSend.getNumberOfIndexableFields() - 1);
+
+          depth--;
+          i += 4;
+          break;
+        }
+        case FOR_TO:
+        case FOR_DOWN_TO:
+          // the send of a loop with other bounds pushes the block
+          maxDepth = Math.max(maxDepth, depth + 1);
+          depth -= 2;
+          i += 5;
+          break;
+        case FOR_NEXT:
+          i += 4;
+          break;
         default:
           throw new IllegalStateException("Illegal bytecode "
               + bytecode.get(i));
@@ -226,7 +426,16 @@ public class MethodGenerationContext {
   }
 
   public void removeLastBytecode() {
-    bytecode.remove(bytecode.size() - 1);
+    assert lastBytecodeIndex != -1;
+    while (bytecode.size() > lastBytecodeIndex) {
+      bytecode.remove(bytecode.size() - 1);
+    }
+    lastBytecodeIndex = secondLastBytecodeIndex;
+    secondLastBytecodeIndex = -1;
+  }
+
+  public boolean lastBytecodeIs(final byte code) {
+    return lastBytecodeIndex != -1 && bytecode.get(lastBytecodeIndex) == code;
   }
 
   public boolean isBlockMethod() {
@@ -304,9 +513,15 @@ public class MethodGenerationContext {
   }
 
   public void addBytecode(final byte code) {
+    secondLastBytecodeIndex = lastBytecodeIndex;
+    lastBytecodeIndex = bytecode.size();
     bytecode.add(code);
   }
 
+  public void addBytecodeArgument(final byte arg) {
+    bytecode.add(arg);
+  }
+
   public byte findLiteralIndex(final SAbstractObject lit) {
     return (byte) literals.indexOf(lit);
   }
@@ -314,4 +529,635 @@ public class MethodGenerationContext {
   public MethodGenerationContext getOuter() {
     return outerGenc;
   }
+
+  /**
+   * Inline a send of ifTrue:, ifFalse:, ifTrue:ifFalse:, ifFalse:ifTrue:, and:,
+   * or:, ifNil:, ifNotNil:, whileTrue:, whileFalse:, to:do:, to:by:do:,
+   * downTo:do:, or timesRepeat: with literal blocks as arguments, and as
+   * receiver for the while loops. The pushes of the blocks are the last
+   * bytecodes, and are replaced by jumps and the bytecodes of the blocks.
+   *
+   * When the receiver is not a boolean, the conditional jump sends the message
+   * with the blocks after all. For this, the first branch ends with a jump to
+   * the end of the inlined bytecodes, where execution continues with the
+   * result of the send. A loop exits to the nil pushed after its backward
+   * jump, and execution continues after it instead. The tests for nil are
+   * inlined for all receivers.
+   *
+   * The counted loops keep their counter in a local, and send the message
+   * when the bounds or the step are not integers.
+   *
+   * @return whether the send was inlined
+   */
+  public boolean inlineControlStructure(final SSymbol msg, final Parser parser,
+      final Universe universe) throws ParseError {
+    switch (msg.getEmbeddedString()) {
+      case "ifTrue:":
+        return inlineConditional(msg, JUMP_IF_FALSE, PUSH_NIL, parser, universe);
+      case "ifFalse:":
+        return inlineConditional(msg, JUMP_IF_TRUE, PUSH_NIL, parser, universe);
+      case "and:":
+        return inlineConditional(msg, JUMP_IF_FALSE, PUSH_FALSE, parser, universe);
+      case "or:":
+        return inlineConditional(msg, JUMP_IF_TRUE, PUSH_TRUE, parser, universe);
+      case "ifTrue:ifFalse:":
+        return inlineIfElse(msg, JUMP_IF_FALSE, parser, universe);
+      case "ifFalse:ifTrue:":
+        return inlineIfElse(msg, JUMP_IF_TRUE, parser, universe);
+      case "ifNil:":
+        return inlineIfNil(parser, universe);
+      case "ifNotNil:":
+        return inlineIfNotNil(parser, universe);
+      case "whileTrue:":
+        return inlineWhile(msg, JUMP_IF_FALSE, parser, universe);
+      case "whileFalse:":
+        return inlineWhile(msg, JUMP_IF_TRUE, parser, universe);
+      case "to:do:":
+      case "to:by:do:":
+        return inlineCountedLoop(msg, FOR_TO, 1, parser, universe);
+      case "downTo:do:":
+        return inlineCountedLoop(msg, FOR_DOWN_TO, 1, parser, universe);
+      case "timesRepeat:":
+        return inlineCountedLoop(msg, FOR_DOWN_TO, 0, parser, universe);
+      default:
+        return false;
+    }
+  }
+
+  private boolean inlineConditional(final SSymbol msg, final byte jump,
+      final byte otherwise, final Parser parser, final Universe universe)
+      throws ParseError {
+    SMethod block = getInlinableBlock(lastBytecodeIndex, 0);
+    if (block == null) {
+      return false;
+    }
+    removeLastBytecode();
+
+    byte inlinedSend = addLiteral(universe.newArray(Arrays.asList(msg, block)), parser);
+    int branch = emitJump(jump, inlinedSend);
+    inlineBlock(block, parser, universe);
+    int toEnd = emitJump(JUMP, (byte) 0);
+
+    patchJump(branch, parser);
+    addBytecode(otherwise);
+    patchJump(toEnd, parser);
+    return true;
+  }
+
+  private boolean inlineIfElse(final SSymbol msg, final byte jump, final Parser parser,
+      final Universe universe) throws ParseError {
+    SMethod second = getInlinableBlock(lastBytecodeIndex, 0);
+    SMethod first = getInlinableBlock(secondLastBytecodeIndex, 0);
+    if (first == null || second == null) {
+      return false;
+    }
+    removeLastBytecode();
+    removeLastBytecode();
+
+    byte inlinedSend =
+        addLiteral(universe.newArray(Arrays.asList(msg, first, second)), parser);
+    int branch = emitJump(jump, inlinedSend);
+    inlineBlock(first, parser, universe);
+    int toEnd = emitJump(JUMP, (byte) 0);
+
+    patchJump(branch, parser);
+    inlineBlock(second, parser, universe);
+    patchJump(toEnd, parser);
+    return true;
+  }
+
+  private boolean inlineIfNil(final Parser parser, final Universe universe)
+      throws ParseError {
+    SMethod block = getInlinableBlock(lastBytecodeIndex, 0);
+    if (block == null) {
+      return false;
+    }
+    removeLastBytecode();
+
+    // the receiver is the result if it is not nil
+    addBytecode(DUP);
+    int toEnd = emitJump(JUMP_IF_NOT_NIL, (byte) 0);
+    addBytecode(POP);
+    inlineBlock(block, parser, universe);
+    patchJump(toEnd, parser);
+    return true;
+  }
+
+  private boolean inlineIfNotNil(final Parser parser, final Universe universe)
+      throws ParseError {
+    SMethod block = getInlinableBlock(lastBytecodeIndex, 1);
+    if (block == null) {
+      return false;
+    }
+    removeLastBytecode();
+
+    // the receiver is the result if it is nil, and the argument otherwise
+    addBytecode(DUP);
+    int toEnd = emitJump(JUMP_IF_NIL, (byte) 0);
+    inlineBlock(block, parser, universe);
+    patchJump(toEnd, parser);
+    return true;
+  }
+
+  private boolean inlineWhile(final SSymbol msg, final byte exitJump, final Parser parser,
+      final Universe universe) throws ParseError {
+    SMethod body = getInlinableLoopBlock(lastBytecodeIndex, 0);
+    SMethod condition = getInlinableLoopBlock(secondLastBytecodeIndex, 0);
+    if (condition == null || body == null) {
+      return false;
+    }
+    removeLastBytecode();
+    removeLastBytecode();
+
+    byte inlinedSend =
+        addLiteral(universe.newArray(Arrays.asList(msg, condition, body)), parser);
+    int loopStart = bytecode.size();
+    inlineBlock(condition, parser, universe);
+    int exit = emitJump(exitJump, inlinedSend);
+
+    inlineBlock(body, parser, universe);
+    addBytecode(POP);
+    int loopEnd = emitJump(JUMP_BACKWARD, (byte) 0);
+    setJumpTarget(loopEnd, loopStart, parser);
+
+    // the loops evaluate to nil
+    patchJump(exit, parser);
+    addBytecode(PUSH_NIL);
+    return true;
+  }
+
+  private boolean inlineCountedLoop(final SSymbol msg, final byte loop,
+      final int numArgs, final Parser parser, final Universe universe)
+      throws ParseError {
+    SMethod body = getInlinableLoopBlock(lastBytecodeIndex, numArgs);
+    if (body == null) {
+      return false;
+    }
+    removeLastBytecode();
+
+    // The step of to:do: and downTo:do: is 1, and timesRepeat: counts from
+    // the receiver down to 1. A loop counting down negates the step.
+    for (int i = msg.getNumberOfSignatureArguments(); i < 4; i++) {
+      addBytecode(PUSH_1);
+    }
+
+    // the limit and the step are kept in the locals after the counter
+    byte counter = addInlinedLocal();
+    addInlinedLocal();
+    addInlinedLocal();
+
+    byte inlinedSend = addLiteral(universe.newArray(Arrays.asList(msg, body)), parser);
+    int start = emitJump(loop, inlinedSend);
+    addBytecodeArgument(counter);
+
+    int bodyStart = bytecode.size();
+    if (numArgs == 1) {
+      bcGen.emitPUSHLOCAL(this, counter, (byte) 0);
+    }
+    inlineBlock(body, parser, universe);
+    addBytecode(POP);
+    int next = emitJump(FOR_NEXT, (byte) 0);
+    addBytecodeArgument(counter);
+    setJumpTarget(next, bodyStart, parser);
+
+    // the loops evaluate to their receiver, which is left on the stack
+    patchJump(start, parser);
+    return true;
+  }
+
+  /**
+   * Get the block pushed by the bytecode at the given index, if it takes the
+   * given number of arguments and can be inlined.
+   */
+  private SMethod getInlinableBlock(final int index, final int numArgs) {
+    if (index == -1 || bytecode.get(index) != PUSH_BLOCK) {
+      return null;
+    }
+
+    // the first argument of a block is the block itself
+    SMethod block = (SMethod) literals.get(bytecode.get(index + 1));
+    if (block.getNumberOfArguments() != numArgs + 1) {
+      return null;
+    }
+
+    // The variables of an inlined block become locals of this method. A block
+    // nested in it that accesses them would share them with all other blocks
+    // created by later executions of the inlined bytecodes.
+    byte[] code = block.getBytecodes();
+    int i = 0;
+    while (i < code.length) {
+      byte bc = getFirstComponent(code[i]);
+      if (bc == PUSH_BLOCK && accessesContext((SMethod) block.getConstant(i), 1)) {
+        return null;
+      }
+      i += getBytecodeLength(bc);
+    }
+    return block;
+  }
+
+  /**
+   * Get the block of a loop pushed by the bytecode at the given index, like
+   * {@link #getInlinableBlock(int, int)}. The bytecodes of a loop are executed
+   * repeatedly, so that also the blocks of the sends it inlines itself must not
+   * access its variables. They are created when such a send falls back to
+   * sending the message, and would share the variables with the blocks of the
+   * other iterations.
+   */
+  private SMethod getInlinableLoopBlock(final int index, final int numArgs) {
+    SMethod block = getInlinableBlock(index, numArgs);
+    if (block == null || nestedBlocksAccessContext(block, 1)) {
+      return null;
+    }
+    return block;
+  }
+
+  /**
+   * Check whether the given block, or a block nested in it, accesses the
+   * variables of the context the given number of levels out.
+   */
+  private static boolean accessesContext(final SMethod block, final int contextLevel) {
+    byte[] code = block.getBytecodes();
+    int i = 0;
+    while (i < code.length) {
+      byte bc = getFirstComponent(code[i]);
+      switch (bc) {
+        case PUSH_LOCAL:
+        case PUSH_ARGUMENT:
+        case POP_LOCAL:
+        case POP_ARGUMENT:
+          if (code[i + 2] == contextLevel) {
+            return true;
+          }
+          break;
+        default:
+          break;
+      }
+      i += getBytecodeLength(bc);
+    }
+    return nestedBlocksAccessContext(block, contextLevel + 1);
+  }
+
+  /**
+   * Check whether a block nested in the given one, pushed by it or kept for
+   * a send it inlines, accesses the variables of the context the given number
+   * of levels out of the nested block.
+   */
+  private static boolean nestedBlocksAccessContext(final SMethod block,
+      final int contextLevel) {
+    byte[] code = block.getBytecodes();
+    int i = 0;
+    while (i < code.length) {
+      byte bc = getFirstComponent(code[i]);
+      switch (bc) {
+        case PUSH_BLOCK:
+          if (accessesContext((SMethod) block.getConstant(i), contextLevel)) {
+            return true;
+          }
+          break;
+        case JUMP_IF_TRUE:
+        case JUMP_IF_FALSE:
+        case FOR_TO:
+        case FOR_DOWN_TO: {
+          SArray inlinedSend = (SArray) block.getLiteral(code[i + 3]);
+          for (int j = 1; j < inlinedSend.getNumberOfIndexableFields(); j++) {
+            if (accessesContext((SMethod) inlinedSend.getIndexableField(j), contextLevel)) {
+              return true;
+            }
+          }
+          break;
+        }
+        default:
+          break;
+      }
+      i += getBytecodeLength(bc);
+    }
+    return false;
+  }
+
+  /**
+   * Check whether the given block, nested the given number of levels deep in
+   * the block checked first, only accesses its own variables and those of the
+   * blocks it is nested in, up to the first one. Such a clean block does not
+   * depend on the frame it is created in. Since an unknown global is sent to
+   * self, reading a global makes a block depend on its frame as well.
+   */
+  private static boolean isClean(final SMethod block, final int depth) {
+    byte[] code = block.getBytecodes();
+    int i = 0;
+    while (i < code.length) {
+      byte bc = getFirstComponent(code[i]);
+      switch (bc) {
+        case PUSH_LOCAL:
+        case PUSH_ARGUMENT:
+        case POP_LOCAL:
+        case POP_ARGUMENT:
+          if (code[i + 2] > depth) {
+            return false;
+          }
+          break;
+        case PUSH_SELF:
+        case PUSH_FIELD:
+        case POP_FIELD:
+        case PUSH_GLOBAL:
+        case RETURN_NON_LOCAL:
+          return false;
+        case PUSH_BLOCK:
+          if (!isClean((SMethod) block.getConstant(i), depth + 1)) {
+            return false;
+          }
+          break;
+        case JUMP_IF_TRUE:
+        case JUMP_IF_FALSE:
+        case FOR_TO:
+        case FOR_DOWN_TO: {
+          // the blocks created when the inlined send is sent after all
+          SArray inlinedSend = (SArray) block.getLiteral(code[i + 3]);
+          for (int j = 1; j < inlinedSend.getNumberOfIndexableFields(); j++) {
+            SAbstractObject inlinedBlock = inlinedSend.getIndexableField(j);
+            if (inlinedBlock instanceof SMethod
+                && !isClean((SMethod) inlinedBlock, depth + 1)) {
+              return false;
+            }
+          }
+          break;
+        }
+        default:
+          break;
+      }
+      i += getBytecodeLength(bc);
+    }
+    return true;
+  }
+
+  /**
+   * Append the bytecodes of the given block, so that they leave its result on
+   * the stack. Its arguments are taken from the stack. They and its locals
+   * become locals of this method.
+   */
+  private void inlineBlock(final SMethod block, final Parser parser,
+      final Universe universe) throws ParseError {
+    byte[] argumentSlots = new byte[block.getNumberOfArguments()];
+    for (int i = argumentSlots.length - 1; i >= 1; i--) {
+      argumentSlots[i] = addInlinedLocal();
+      bcGen.emitPOPLOCAL(this, argumentSlots[i], (byte) 0);
+    }
+
+    // the locals of a block are nil for each of its activations
+    byte[] localSlots = new byte[block.getNumberOfLocals()];
+    for (int i = 0; i < localSlots.length; i++) {
+      localSlots[i] = addInlinedLocal();
+      bcGen.emitPUSHNIL(this);
+      bcGen.emitPOPLOCAL(this, localSlots[i], (byte) 0);
+    }
+
+    Map<SAbstractObject, SAbstractObject> adapted = new IdentityHashMap<>();
+    byte[] code = block.getBytecodes();
+    int[] newIndexes = new int[code.length + 1];
+    List<Integer> jumps = new ArrayList<>();
+
+    int i = 0;
+    while (i < code.length) {
+      newIndexes[i] = bytecode.size();
+
+      // superinstructions are fused again when this method is assembled
+      byte bc = getFirstComponent(code[i]);
+      switch (bc) {
+        case PUSH_LOCAL:
+          if (code[i + 2] == 0) {
+            bcGen.emitPUSHLOCAL(this, localSlots[code[i + 1]], (byte) 0);
+          } else {
+            bcGen.emitPUSHLOCAL(this, code[i + 1], (byte) (code[i + 2] - 1));
+          }
+          break;
+        case PUSH_LOCAL_0:
+        case PUSH_LOCAL_1:
+        case PUSH_LOCAL_2:
+          bcGen.emitPUSHLOCAL(this, localSlots[bc - PUSH_LOCAL_0], (byte) 0);
+          break;
+        case PUSH_ARGUMENT:
+          if (code[i + 2] == 0) {
+            bcGen.emitPUSHLOCAL(this, argumentSlots[code[i + 1]], (byte) 0);
+          } else {
+            bcGen.emitPUSHARGUMENT(this, code[i + 1], (byte) (code[i + 2] - 1));
+          }
+          break;
+        case PUSH_ARG_1:
+        case PUSH_ARG_2:
+          bcGen.emitPUSHLOCAL(this, argumentSlots[bc - PUSH_ARG_1 + 1], (byte) 0);
+          break;
+        case POP_LOCAL:
+          if (code[i + 2] == 0) {
+            bcGen.emitPOPLOCAL(this, localSlots[code[i + 1]], (byte) 0);
+          } else {
+            bcGen.emitPOPLOCAL(this, code[i + 1], (byte) (code[i + 2] - 1));
+          }
+          break;
+        case POP_ARGUMENT:
+          if (code[i + 2] == 0) {
+            bcGen.emitPOPLOCAL(this, argumentSlots[code[i + 1]], (byte) 0);
+          } else {
+            bcGen.emitPOPARGUMENT(this, code[i + 1], (byte) (code[i + 2] - 1));
+          }
+          break;
+        case PUSH_FIELD:
+        case POP_FIELD:
+          addBytecode(bc);
+          addBytecodeArgument(code[i + 1]);
+          break;
+        case PUSH_BLOCK: {
+          SAbstractObject nested = adaptLiteral(block.getConstant(i), 1, argumentSlots,
+              localSlots, adapted, universe);
+          addLiteralIfAbsent(nested, parser);
+          bcGen.emitPUSHBLOCK(this, (SMethod) nested);
+          break;
+        }
+        case PUSH_CONSTANT:
+        case PUSH_GLOBAL:
+        case SEND:
+        case SUPER_SEND:
+        case SEND_ADD:
+        case SEND_SUBTRACT:
+        case SEND_MULTIPLY:
+        case SEND_LESS_THAN:
+        case SEND_EQUAL: {
+          SAbstractObject literal = block.getConstant(i);
+          addLiteralIfAbsent(literal, parser);
+          addBytecode(bc);
+          addBytecodeArgument(findLiteralIndex(literal));
+          break;
+        }
+        case JUMP:
+        case JUMP_IF_NIL:
+        case JUMP_IF_NOT_NIL:
+        case JUMP_BACKWARD:
+          jumps.add(i);
+          emitJump(bc, (byte) 0);
+          break;
+        case JUMP_IF_TRUE:
+        case JUMP_IF_FALSE: {
+          SAbstractObject inlinedSend = adaptLiteral(block.getLiteral(code[i + 3]), 1,
+              argumentSlots, localSlots, adapted, universe);
+          jumps.add(i);
+          emitJump(bc, addLiteral(inlinedSend, parser));
+          break;
+        }
+        case FOR_TO:
+        case FOR_DOWN_TO: {
+          // the limit and step stay after the counter, since the slots of
+          // the locals are consecutive
+          SAbstractObject inlinedSend = adaptLiteral(block.getLiteral(code[i + 3]), 1,
+              argumentSlots, localSlots, adapted, universe);
+          jumps.add(i);
+          emitJump(bc, addLiteral(inlinedSend, parser));
+          addBytecodeArgument(localSlots[code[i + 4]]);
+          break;
+        }
+        case FOR_NEXT:
+          jumps.add(i);
+          emitJump(bc, (byte) 0);
+          addBytecodeArgument(localSlots[code[i + 3]]);
+          break;
+        case RETURN_LOCAL:
+          // the result of the block is left on the stack
+          assert i == code.length - 1;
+          break;
+        case RETURN_NON_LOCAL:
+          addBytecode(blockMethod ? RETURN_NON_LOCAL : RETURN_LOCAL);
+          break;
+        default:
+          addBytecode(bc);
+          break;
+      }
+      i += getBytecodeLength(bc);
+    }
+    newIndexes[code.length] = bytecode.size();
+
+    // the inlined bytecodes may have a different length
+    for (int jump : jumps) {
+      setJumpTarget(newIndexes[jump], newIndexes[getJumpTarget(code, jump)], parser);
+    }
+  }
+
+  private byte addInlinedLocal() {
+    // the name cannot clash with any variable of the source code
+    locals.add("$inlined");
+    return (byte) (locals.size() - 1);
+  }
+
+  /**
+   * Adapt a block nested in an inlined block, or the blocks of an inlined
+   * send, to the inlining. The accesses to the variables of the inlined block,
+   * which is the given number of levels out, go to their new locals in the
+   * frame at the same level, and the accesses further out skip one context
+   * less.
+   */
+  private static SAbstractObject adaptLiteral(final SAbstractObject literal,
+      final int contextLevel, final byte[] argumentSlots, final byte[] localSlots,
+      final Map<SAbstractObject, SAbstractObject> adapted, final Universe universe) {
+    if (!(literal instanceof SMethod) && !(literal instanceof SArray)) {
+      return literal;
+    }
+
+    SAbstractObject result = adapted.get(literal);
+    if (result != null) {
+      return result;
+    }
+
+    if (literal instanceof SArray) {
+      // the selector and blocks of an inlined send
+      SArray inlinedSend = (SArray) literal;
+      SArray newSend = universe.newArray(inlinedSend.getNumberOfIndexableFields());
+      newSend.setIndexableField(0, inlinedSend.getIndexableField(0));
+      for (int i = 1; i < inlinedSend.getNumberOfIndexableFields(); i++) {
+        newSend.setIndexableField(i, adaptLiteral(inlinedSend.getIndexableField(i),
+            contextLevel, argumentSlots, localSlots, adapted, universe));
+      }
+      adapted.put(literal, newSend);
+      return newSend;
+    }
+
+    // the superinstructions are fused again, since their components may change
+    SMethod block = (SMethod) literal;
+    byte[] code = block.getBytecodes().clone();
+    int i = 0;
+    while (i < code.length) {
+      byte bc = getFirstComponent(code[i]);
+      code[i] = bc;
+      if (bc == PUSH_LOCAL || bc == PUSH_ARGUMENT || bc == POP_LOCAL
+          || bc == POP_ARGUMENT) {
+        int ctx = code[i + 2];
+        if (ctx == contextLevel) {
+          boolean isArgument = bc == PUSH_ARGUMENT || bc == POP_ARGUMENT;
+          boolean isPush = bc == PUSH_LOCAL || bc == PUSH_ARGUMENT;
+          code[i] = isPush ? PUSH_LOCAL : POP_LOCAL;
+          // the new slot is in the frame that replaces the one of the inlined
+          // block, at the same level
+          code[i + 1] = isArgument ? argumentSlots[code[i + 1]] : localSlots[code[i + 1]];
+        } else if (ctx > contextLevel) {
+          code[i + 2] = (byte) (ctx - 1);
+        }
+      }
+      i += getBytecodeLength(bc);
+    }
+
+    List<SAbstractObject> newLiterals = new ArrayList<>();
+    for (int j = 0; j < block.getNumberOfLiterals(); j++) {
+      newLiterals.add(adaptLiteral(block.getLiteral(j), contextLevel + 1, argumentSlots,
+          localSlots, adapted, universe));
+    }
+
+    if (universe.useSuperinstructions()) {
+      fuseSuperinstructions(code);
+    }
+
+    SMethod newBlock = newMethod(block.getSignature(), code, block.getNumberOfLocals(),
+        block.getMaximumNumberOfStackElements(), newLiterals, universe);
+    if (isClean(newBlock, 0)) {
+      newBlock.markAsCleanBlock();
+    }
+    adapted.put(literal, newBlock);
+    return newBlock;
+  }
+
+  /**
+   * Emit a jump, of which the offset is set later on.
+   *
+   * @return the index of the jump
+   */
+  private int emitJump(final byte jump, final byte inlinedSend) {
+    int index = bytecode.size();
+    addBytecode(jump);
+    addBytecodeArgument((byte) 0);
+    addBytecodeArgument((byte) 0);
+    if (jump == JUMP_IF_TRUE || jump == JUMP_IF_FALSE || jump == FOR_TO
+        || jump == FOR_DOWN_TO) {
+      addBytecodeArgument(inlinedSend);
+    }
+    return index;
+  }
+
+  /**
+   * Let the jump at the given index jump to the next bytecode.
+   */
+  private void patchJump(final int jumpIndex, final Parser parser) throws ParseError {
+    setJumpTarget(jumpIndex, bytecode.size(), parser);
+
+    // the bytecodes before a jump target are not necessarily executed before it
+    lastBytecodeIndex = -1;
+    secondLastBytecodeIndex = -1;
+  }
+
+  private void setJumpTarget(final int jumpIndex, final int target, final Parser parser)
+      throws ParseError {
+    // the direction of the jump is given by its bytecode
+    int offset = Math.abs(target - jumpIndex);
+    if (offset > 0xFFFF) {
+      String methodSignature = holderGenc.getName().getEmbeddedString() + ">>" + signature;
+      throw new ParseError("The method " + methodSignature
+          + " has a jump that is longer than supported. Please split the method.",
+          Symbol.NONE, parser);
+    }
+    bytecode.set(jumpIndex + 1, (byte) offset);
+    bytecode.set(jumpIndex + 2, (byte) (offset >> 8));
+  }
 }
@@ -449,9 +449,7 @@ public class Parser {
       }
       if (mgenc.isBlockMethod() && !mgenc.hasBytecodes()) {
         // if the block is empty, we need to return nil
-        SSymbol nilSym = universe.symbolFor("nil");
-        mgenc.addLiteralIfAbsent(nilSym, this);
-        bcGen.emitPUSHGLOBAL(mgenc, nilSym);
+        bcGen.emitPUSHNIL(mgenc);
       }
       bcGen.emitRETURNLOCAL(mgenc);
       mgenc.setFinished();
@@ -649,6 +647,11 @@ public class Parser {
 
     SSymbol msg = universe.symbolFor(kw.toString());
 
+    if (!superSend && universe.useInlining()
+        && mgenc.inlineControlStructure(msg, this, universe)) {
+      return;
+    }
+
     mgenc.addLiteralIfAbsent(msg, this);
 
     if (superSend) {
@@ -707,8 +710,7 @@ public class Parser {
     } else {
       lit = literalDecimal(false);
     }
-    mgenc.addLiteralIfAbsent(lit, this);
-    bcGen.emitPUSHCONSTANT(mgenc, lit);
+    bcGen.emitPUSHCONSTANT(mgenc, lit, this);
   }
 
   private SAbstractObject literalDecimal(final boolean isNegative) throws ParseError {
@@ -810,8 +812,7 @@ public class Parser {
 
     while (sym != EndTerm) {
       SInteger pushIndex = universe.newInteger(i);
-      mgenc.addLiteralIfAbsent(pushIndex, this);
-      bcGen.emitPUSHCONSTANT(mgenc, pushIndex);
+      bcGen.emitPUSHCONSTANT(mgenc, pushIndex, this);
       literal(mgenc);
       bcGen.emitSEND(mgenc, atPutMessage);
       i += 1;
@@ -871,9 +872,7 @@ public class Parser {
     if (!mgenc.isFinished()) {
       if (!mgenc.hasBytecodes()) {
         // if the block is empty, we need to return nil
-        SSymbol nilSym = universe.symbolFor("nil");
-        mgenc.addLiteralIfAbsent(nilSym, this);
-        bcGen.emitPUSHGLOBAL(mgenc, nilSym);
+        bcGen.emitPUSHNIL(mgenc);
       }
       bcGen.emitRETURNLOCAL(mgenc);
       mgenc.markAsFinished();
@@ -921,8 +920,7 @@ public class Parser {
         bcGen.emitPUSHFIELD(mgenc, fieldName);
       } else {
         SSymbol global = identifier;
-        mgenc.addLiteralIfAbsent(global, this);
-        bcGen.emitPUSHGLOBAL(mgenc, global);
+        bcGen.emitPUSHGLOBAL(mgenc, global, this);
       }
     }
   }
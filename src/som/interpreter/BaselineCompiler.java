@@ -0,0 +1,817 @@
+package som.interpreter;
+
+import static som.interpreter.Bytecodes.DUP;
+import static som.interpreter.Bytecodes.FOR_DOWN_TO;
+import static som.interpreter.Bytecodes.FOR_NEXT;
+import static som.interpreter.Bytecodes.FOR_TO;
+import static som.interpreter.Bytecodes.HALT;
+import static som.interpreter.Bytecodes.JUMP;
+import static som.interpreter.Bytecodes.JUMP_BACKWARD;
+import static som.interpreter.Bytecodes.JUMP_IF_FALSE;
+import static som.interpreter.Bytecodes.JUMP_IF_NIL;
+import static som.interpreter.Bytecodes.JUMP_IF_NOT_NIL;
+import static som.interpreter.Bytecodes.JUMP_IF_TRUE;
+import static som.interpreter.Bytecodes.POP;
+import static som.interpreter.Bytecodes.POP_ARGUMENT;
+import static som.interpreter.Bytecodes.POP_FIELD;
+import static som.interpreter.Bytecodes.POP_LOCAL;
+import static som.interpreter.Bytecodes.PUSH_0;
+import static som.interpreter.Bytecodes.PUSH_1;
+import static som.interpreter.Bytecodes.PUSH_ARGUMENT;
+import static som.interpreter.Bytecodes.PUSH_ARG_1;
+import static som.interpreter.Bytecodes.PUSH_ARG_2;
+import static som.interpreter.Bytecodes.PUSH_BLOCK;
+import static som.interpreter.Bytecodes.PUSH_CONSTANT;
+import static som.interpreter.Bytecodes.PUSH_FALSE;
+import static som.interpreter.Bytecodes.PUSH_FIELD;
+import static som.interpreter.Bytecodes.PUSH_GLOBAL;
+import static som.interpreter.Bytecodes.PUSH_LOCAL;
+import static som.interpreter.Bytecodes.PUSH_LOCAL_0;
+import static som.interpreter.Bytecodes.PUSH_LOCAL_1;
+import static som.interpreter.Bytecodes.PUSH_LOCAL_2;
+import static som.interpreter.Bytecodes.PUSH_NIL;
+import static som.interpreter.Bytecodes.PUSH_SELF;
+import static som.interpreter.Bytecodes.PUSH_TRUE;
+import static som.interpreter.Bytecodes.RETURN_LOCAL;
+import static som.interpreter.Bytecodes.RETURN_NON_LOCAL;
+import static som.interpreter.Bytecodes.RETURN_SELF;
+import static som.interpreter.Bytecodes.SEND;
+import static som.interpreter.Bytecodes.SEND_ADD;
+import static som.interpreter.Bytecodes.SEND_EQUAL;
+import static som.interpreter.Bytecodes.SEND_LESS_THAN;
+import static som.interpreter.Bytecodes.SEND_MEGA;
+import static som.interpreter.Bytecodes.SEND_MONO_METHOD;
+import static som.interpreter.Bytecodes.SEND_MONO_PRIMITIVE;
+import static som.interpreter.Bytecodes.SEND_MULTIPLY;
+import static som.interpreter.Bytecodes.SEND_POLY;
+import static som.interpreter.Bytecodes.SEND_SUBTRACT;
+import static som.interpreter.Bytecodes.SUPER_SEND;
+import static som.interpreter.Bytecodes.getBytecodeLength;
+import static som.interpreter.Bytecodes.getFirstComponent;
+import static som.interpreter.Bytecodes.getJumpTarget;
+import static som.interpreter.ClassFileWriter.AALOAD;
+import static som.interpreter.ClassFileWriter.AASTORE;
+import static som.interpreter.ClassFileWriter.ACC_FINAL;
+import static som.interpreter.ClassFileWriter.ACC_PUBLIC;
+import static som.interpreter.ClassFileWriter.ACC_STATIC;
+import static som.interpreter.ClassFileWriter.ACC_SUPER;
+import static som.interpreter.ClassFileWriter.ALOAD;
+import static som.interpreter.ClassFileWriter.ASTORE;
+import static som.interpreter.ClassFileWriter.GETFIELD;
+import static som.interpreter.ClassFileWriter.GETSTATIC;
+import static som.interpreter.ClassFileWriter.GOTO;
+import static som.interpreter.ClassFileWriter.I2L;
+import static som.interpreter.ClassFileWriter.IADD;
+import static som.interpreter.ClassFileWriter.IFNULL;
+import static som.interpreter.ClassFileWriter.IF_ACMPEQ;
+import static som.interpreter.ClassFileWriter.IF_ACMPNE;
+import static som.interpreter.ClassFileWriter.IF_ICMPNE;
+import static som.interpreter.ClassFileWriter.ILOAD;
+import static som.interpreter.ClassFileWriter.INVOKESPECIAL;
+import static som.interpreter.ClassFileWriter.INVOKESTATIC;
+import static som.interpreter.ClassFileWriter.INVOKEVIRTUAL;
+import static som.interpreter.ClassFileWriter.ISTORE;
+import static som.interpreter.ClassFileWriter.PUTSTATIC;
+import static som.interpreter.ClassFileWriter.RETURN;
+
+import java.lang.constant.ConstantDescs;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+
+import som.interpreter.ClassFileWriter.Code;
+import som.interpreter.ClassFileWriter.Label;
+import som.vm.Universe;
+import som.vmobjects.SMethod;
+import som.vmobjects.SSymbol;
+
+
+/**
+ * Compiles the bytecodes of frequently activated methods, and blocks, to JVM
+ * classes, see {@link CompiledMethod}.
+ *
+ * The compiled code keeps the elements of the stack of the frame in JVM
+ * locals, and accesses the arguments and locals in the frame, where blocks
+ * and the primitives see them. Pushing, popping, jumps, and the arithmetic
+ * of integers and doubles are compiled to JVM code. All other bytecodes
+ * write the stack elements back to the frame, and are executed by the
+ * interpreter, see {@link Interpreter#executeBytecode(int)}. Afterwards,
+ * the compiled code continues if the frame is still the current one, and at
+ * an index it expects. Sends invoke the target of their {@link SendSite}
+ * instead, and continue the same way.
+ *
+ * Since the frames of compiled methods are on the frame stack as usual,
+ * non-local returns, #restart, and stack traces work as in the interpreter.
+ */
+final class BaselineCompiler {
+
+  private static final String COMPILED_METHOD = "som/interpreter/CompiledMethod";
+  private static final String INTERPRETER     = "som/interpreter/Interpreter";
+  private static final String FRAME           = "som/interpreter/Frame";
+  private static final String UNIVERSE        = "som/vm/Universe";
+  private static final String SMETHOD         = "som/vmobjects/SMethod";
+  private static final String SOBJECT         = "som/vmobjects/SObject";
+  private static final String OBJECT          = "som/vmobjects/SAbstractObject";
+  private static final String METHOD_HANDLE   = "java/lang/invoke/MethodHandle";
+
+  private static final String OBJECT_TYPE = "L" + OBJECT + ";";
+  private static final String STACK_TYPE  = "[" + OBJECT_TYPE;
+
+  private static final String METHOD_HANDLE_TYPE = "L" + METHOD_HANDLE + ";";
+
+  // The JVM locals of the compiled code, followed by the stack elements
+  private static final int THIS            = 0;
+  private static final int INTERPRETER_ARG = 1;
+  private static final int FRAME_ARG       = 2;
+  private static final int STACK           = 3;
+  private static final int LOCAL_OFFSET    = 4;
+  private static final int ARGUMENT_OFFSET = 5;
+  private static final int LITERALS        = 6;
+  private static final int BYTECODE_INDEX  = 7;
+  private static final int FIRST_ELEMENT   = 8;
+
+  // The compiled code needs at most this many JVM stack slots at a time
+  private static final int MAX_JVM_STACK = 6;
+
+  private final Universe             universe;
+  private final Interpreter          interpreter;
+  private final int                  threshold;
+  private final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+  BaselineCompiler(final Universe universe, final Interpreter interpreter,
+      final int threshold) {
+    this.universe = universe;
+    this.interpreter = interpreter;
+    this.threshold = threshold;
+  }
+
+  /**
+   * Get the number of activations of a method before it is compiled.
+   */
+  int getThreshold() {
+    return threshold;
+  }
+
+  /**
+   * Compile the given method, or block.
+   *
+   * @return the compiled method, or null if the method cannot be compiled
+   */
+  CompiledMethod compile(final SMethod method) {
+    try {
+      return new MethodCompiler(method).compile();
+    } catch (IllegalStateException e) {
+      // the method is too large, or its bytecodes are unexpected
+      return null;
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private final class MethodCompiler {
+    private final SMethod method;
+    private final byte[]  bytecodes;
+    private final int     numberOfLocals;
+
+    // The number of stack elements before each bytecode, -1 if unreachable
+    private final int[]     depths;
+    private final boolean[] resumePoints;
+    private final Label[]   labels;
+
+    // The send sites, in static fields of the compiled class
+    private final List<SendSite> sendSites = new ArrayList<>();
+
+    private final ClassFileWriter writer;
+    private Code                  code;
+    private final Label           exit = new Label();
+
+    MethodCompiler(final SMethod method) {
+      this.method = method;
+      this.bytecodes = method.getBytecodes();
+      this.numberOfLocals = method.getNumberOfLocals();
+      this.depths = new int[bytecodes.length];
+      this.resumePoints = new boolean[bytecodes.length];
+      this.labels = new Label[bytecodes.length];
+      this.writer = new ClassFileWriter(COMPILED_METHOD + "$Compiled", COMPILED_METHOD);
+    }
+
+    CompiledMethod compile() throws ReflectiveOperationException {
+      // the instruction literals need to be initialized
+      method.getInstructions();
+      computeDepths();
+
+      String constructorType = "(L" + UNIVERSE + ";[Z)V";
+      code = writer.new Code(3, 3);
+      // pass the universe and the resume points on
+      code.local(ALOAD, THIS);
+      code.local(ALOAD, 1);
+      code.local(ALOAD, 2);
+      code.invoke(INVOKESPECIAL, COMPILED_METHOD, "<init>", constructorType);
+      code.op(RETURN);
+      writer.addMethod(ACC_PUBLIC, "<init>", constructorType, code);
+
+      code = writer.new Code(MAX_JVM_STACK, FIRST_ELEMENT);
+      compileEntry();
+      int i = 0;
+      while (i < bytecodes.length) {
+        byte bytecode = getFirstComponent(bytecodes[i]);
+        if (depths[i] >= 0) {
+          code.mark(labels[i]);
+          compileBytecode(bytecode, i, depths[i]);
+        }
+        i += getBytecodeLength(bytecode);
+      }
+      code.mark(exit);
+      code.op(RETURN);
+      writer.addMethod(ACC_PUBLIC, "execute",
+          "(L" + INTERPRETER + ";L" + FRAME + ";)V", code);
+
+      Object[] sendSiteTargets = new Object[sendSites.size()];
+      for (int k = 0; k < sendSiteTargets.length; k++) {
+        sendSiteTargets[k] = sendSites.get(k).dynamicInvoker();
+      }
+      compileSendSiteInitialization();
+
+      byte[] classFile = writer.toByteArray(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+      Class<?> compiledClass =
+          lookup.defineHiddenClassWithClassData(classFile, sendSiteTargets, true)
+                .lookupClass();
+      return (CompiledMethod) compiledClass.getConstructor(Universe.class, boolean[].class)
+                                           .newInstance(universe, resumePoints);
+    }
+
+    /**
+     * Compute the number of stack elements before each bytecode, following
+     * the jumps. All bytecodes after a return or a jump, which are not the
+     * target of a jump, are unreachable.
+     */
+    private void computeDepths() {
+      for (int i = 0; i < depths.length; i++) {
+        depths[i] = -1;
+      }
+      depths[0] = 0;
+      resumePoints[0] = true;
+
+      int i = 0;
+      while (i < bytecodes.length) {
+        byte bytecode = getFirstComponent(bytecodes[i]);
+        int next = i + getBytecodeLength(bytecode);
+        int depth = depths[i];
+        if (depth < 0) {
+          i = next;
+          continue;
+        }
+        labels[i] = new Label();
+
+        switch (bytecode) {
+          case HALT:
+            // only in the bootstrap method, which runs once
+            throw new IllegalStateException("HALT is not compiled");
+
+          case RETURN_LOCAL:
+          case RETURN_NON_LOCAL:
+          case RETURN_SELF:
+            break;
+
+          case JUMP:
+          case JUMP_BACKWARD:
+            setDepth(getJumpTarget(bytecodes, i), depth);
+            break;
+
+          case JUMP_IF_TRUE:
+          case JUMP_IF_FALSE:
+          case JUMP_IF_NIL:
+          case JUMP_IF_NOT_NIL:
+            setDepth(next, depth - 1);
+            setDepth(getJumpTarget(bytecodes, i), depth - 1);
+            break;
+
+          case FOR_TO:
+          case FOR_DOWN_TO:
+          case FOR_NEXT: {
+            int after = depth + getStackEffect(bytecode, i);
+            setDepth(next, after);
+            setDepth(getJumpTarget(bytecodes, i), after);
+            resumePoints[next] = true;
+            resumePoints[getJumpTarget(bytecodes, i)] = true;
+            break;
+          }
+
+          default:
+            setDepth(next, depth + getStackEffect(bytecode, i));
+            if (isExecutedByInterpreter(bytecode)) {
+              resumePoints[next] = true;
+            }
+            break;
+        }
+        i = next;
+      }
+    }
+
+    private void setDepth(final int bytecodeIndex, final int depth) {
+      if (bytecodeIndex >= depths.length || depth < 0) {
+        throw new IllegalStateException("Unexpected bytecodes");
+      }
+      if (depths[bytecodeIndex] < 0) {
+        depths[bytecodeIndex] = depth;
+      } else if (depths[bytecodeIndex] != depth) {
+        throw new IllegalStateException("Inconsistent stack depth");
+      }
+    }
+
+    /**
+     * Get the number of stack elements the given bytecode pushes minus the
+     * number it pops.
+     */
+    private int getStackEffect(final byte bytecode, final int bytecodeIndex) {
+      switch (bytecode) {
+        case POP:
+        case POP_LOCAL:
+        case POP_ARGUMENT:
+        case POP_FIELD:
+          return -1;
+        case FOR_TO:
+        case FOR_DOWN_TO:
+          return -2;
+        case FOR_NEXT:
+          return 0;
+        default:
+          if (isSend(bytecode)) {
+            return 1 - getNumberOfInputs(bytecode, bytecodeIndex);
+          }
+          return 1;
+      }
+    }
+
+    private boolean isSend(final byte bytecode) {
+      switch (bytecode) {
+        case SEND:
+        case SUPER_SEND:
+        case SEND_MONO_METHOD:
+        case SEND_MONO_PRIMITIVE:
+        case SEND_POLY:
+        case SEND_MEGA:
+        case SEND_ADD:
+        case SEND_SUBTRACT:
+        case SEND_MULTIPLY:
+        case SEND_LESS_THAN:
+        case SEND_EQUAL:
+          return true;
+        default:
+          return false;
+      }
+    }
+
+    /**
+     * Get the number of stack elements the interpreter reads to execute the
+     * given bytecode.
+     */
+    private int getNumberOfInputs(final byte bytecode, final int bytecodeIndex) {
+      switch (bytecode) {
+        case PUSH_BLOCK:
+        case PUSH_GLOBAL:
+        case FOR_NEXT:
+          return 0;
+        case JUMP_IF_TRUE:
+        case JUMP_IF_FALSE:
+          return 1;
+        case FOR_TO:
+        case FOR_DOWN_TO:
+          return 3;
+        default:
+          // the receiver and the arguments of a send
+          SSymbol selector = (SSymbol) method.getConstant(bytecodeIndex);
+          return selector.getNumberOfSignatureArguments();
+      }
+    }
+
+    private boolean isExecutedByInterpreter(final byte bytecode) {
+      return bytecode == PUSH_BLOCK || bytecode == PUSH_GLOBAL || isSend(bytecode);
+    }
+
+    /**
+     * Load the state of the frame, and continue at its bytecode index.
+     */
+    private void compileEntry() {
+      loadFrameState();
+      code.local(ALOAD, FRAME_ARG);
+      code.invoke(INVOKEVIRTUAL, FRAME, "getMethod", "()L" + SMETHOD + ";");
+      code.invoke(INVOKEVIRTUAL, SMETHOD, "getInstructionLiterals", "()[Ljava/lang/Object;");
+      code.local(ASTORE, LITERALS);
+
+      List<Integer> keys = new ArrayList<>();
+      for (int i = 0; i < resumePoints.length; i++) {
+        if (resumePoints[i]) {
+          keys.add(i);
+        }
+      }
+      int[] resumeIndices = new int[keys.size()];
+      Label[] resumeLabels = new Label[keys.size()];
+      for (int i = 0; i < resumeIndices.length; i++) {
+        resumeIndices[i] = keys.get(i);
+        resumeLabels[i] = new Label();
+      }
+
+      code.local(ALOAD, FRAME_ARG);
+      code.invoke(INVOKEVIRTUAL, FRAME, "getBytecodeIndex", "()I");
+      code.lookupSwitch(resumeIndices, resumeLabels, exit);
+
+      for (int i = 0; i < resumeIndices.length; i++) {
+        int bytecodeIndex = resumeIndices[i];
+        code.mark(resumeLabels[i]);
+        loadElements(0, depths[bytecodeIndex]);
+        code.jump(GOTO, labels[bytecodeIndex]);
+      }
+    }
+
+    private void compileBytecode(final byte bytecode, final int i, final int depth) {
+      int next = i + getBytecodeLength(bytecode);
+      switch (bytecode) {
+        case DUP:
+          code.local(ALOAD, element(depth - 1));
+          code.local(ASTORE, element(depth));
+          break;
+
+        case PUSH_LOCAL:
+          pushVariable(LOCAL_OFFSET, "getLocal", bytecodes[i + 1], bytecodes[i + 2], depth);
+          break;
+
+        case PUSH_ARGUMENT:
+          pushVariable(ARGUMENT_OFFSET, "getArgument", bytecodes[i + 1], bytecodes[i + 2],
+              depth);
+          break;
+
+        case PUSH_LOCAL_0:
+        case PUSH_LOCAL_1:
+        case PUSH_LOCAL_2:
+          pushVariable(LOCAL_OFFSET, "getLocal", bytecode - PUSH_LOCAL_0, 0, depth);
+          break;
+
+        case PUSH_ARG_1:
+        case PUSH_ARG_2:
+          pushVariable(ARGUMENT_OFFSET, "getArgument", bytecode - PUSH_ARG_1 + 1, 0, depth);
+          break;
+
+        case PUSH_SELF:
+          loadReceiver();
+          code.local(ASTORE, element(depth));
+          break;
+
+        case PUSH_FIELD:
+          loadReceiver();
+          code.checkcast(SOBJECT);
+          code.pushInt(bytecodes[i + 1]);
+          code.op(I2L);
+          code.invoke(INVOKEVIRTUAL, SOBJECT, "getField", "(J)" + OBJECT_TYPE);
+          code.local(ASTORE, element(depth));
+          break;
+
+        case PUSH_CONSTANT:
+          code.local(ALOAD, LITERALS);
+          code.pushInt(i);
+          code.op(AALOAD);
+          code.checkcast(OBJECT);
+          code.local(ASTORE, element(depth));
+          break;
+
+        case PUSH_NIL:
+          pushConstant("nilObject", "L" + SOBJECT + ";", depth);
+          break;
+
+        case PUSH_TRUE:
+          pushConstant("trueObject", "L" + SOBJECT + ";", depth);
+          break;
+
+        case PUSH_FALSE:
+          pushConstant("falseObject", "L" + SOBJECT + ";", depth);
+          break;
+
+        case PUSH_0:
+          pushConstant("zero", OBJECT_TYPE, depth);
+          break;
+
+        case PUSH_1:
+          pushConstant("one", OBJECT_TYPE, depth);
+          break;
+
+        case POP:
+          break;
+
+        case POP_LOCAL:
+          popVariable(LOCAL_OFFSET, "setLocal", bytecodes[i + 1], bytecodes[i + 2], depth);
+          break;
+
+        case POP_ARGUMENT:
+          popVariable(ARGUMENT_OFFSET, "setArgument", bytecodes[i + 1], bytecodes[i + 2],
+              depth);
+          break;
+
+        case POP_FIELD:
+          loadReceiver();
+          code.checkcast(SOBJECT);
+          code.pushInt(bytecodes[i + 1]);
+          code.op(I2L);
+          code.local(ALOAD, element(depth - 1));
+          code.invoke(INVOKEVIRTUAL, SOBJECT, "setField", "(J" + OBJECT_TYPE + ")V");
+          break;
+
+        case JUMP:
+        case JUMP_BACKWARD:
+          code.jump(GOTO, labels[getJumpTarget(bytecodes, i)]);
+          break;
+
+        case JUMP_IF_TRUE:
+        case JUMP_IF_FALSE: {
+          boolean jumpIfTrue = bytecode == JUMP_IF_TRUE;
+          code.local(ALOAD, element(depth - 1));
+          loadConstant(jumpIfTrue ? "trueObject" : "falseObject", "L" + SOBJECT + ";");
+          code.jump(IF_ACMPEQ, labels[getJumpTarget(bytecodes, i)]);
+          code.local(ALOAD, element(depth - 1));
+          loadConstant(jumpIfTrue ? "falseObject" : "trueObject", "L" + SOBJECT + ";");
+          code.jump(IF_ACMPEQ, labels[next]);
+
+          // the interpreter sends the message for other values
+          executeByInterpreter(i, depth);
+          code.jump(GOTO, exit);
+          break;
+        }
+
+        case JUMP_IF_NIL:
+        case JUMP_IF_NOT_NIL:
+          code.local(ALOAD, element(depth - 1));
+          loadConstant("nilObject", "L" + SOBJECT + ";");
+          code.jump(bytecode == JUMP_IF_NIL ? IF_ACMPEQ : IF_ACMPNE,
+              labels[getJumpTarget(bytecodes, i)]);
+          break;
+
+        case SEND:
+        case SEND_MONO_METHOD:
+        case SEND_MONO_PRIMITIVE:
+        case SEND_POLY:
+        case SEND_MEGA:
+          compileSend(i, depth);
+          break;
+
+        case SEND_ADD:
+          compileArithmetic("add", i, depth);
+          break;
+
+        case SEND_SUBTRACT:
+          compileArithmetic("subtract", i, depth);
+          break;
+
+        case SEND_MULTIPLY:
+          compileArithmetic("multiply", i, depth);
+          break;
+
+        case SEND_LESS_THAN:
+          compileArithmetic("lessThan", i, depth);
+          break;
+
+        case SEND_EQUAL:
+          compileArithmetic("equal", i, depth);
+          break;
+
+        case RETURN_LOCAL:
+        case RETURN_NON_LOCAL:
+        case RETURN_SELF:
+          executeByInterpreter(i, depth);
+          code.jump(GOTO, exit);
+          break;
+
+        case FOR_TO:
+        case FOR_DOWN_TO:
+        case FOR_NEXT:
+          executeByInterpreter(i, depth);
+          continueAt(i, depth, next, getJumpTarget(bytecodes, i));
+          break;
+
+        default:
+          executeByInterpreter(i, depth);
+          continueAt(i, depth, next, -1);
+          break;
+      }
+    }
+
+    private int element(final int index) {
+      return FIRST_ELEMENT + index;
+    }
+
+    private void pushVariable(final int offset, final String getter, final int index,
+        final int contextLevel, final int depth) {
+      if (contextLevel == 0) {
+        code.local(ALOAD, STACK);
+        code.local(ILOAD, offset);
+        code.pushInt(index);
+        code.op(IADD);
+        code.op(AALOAD);
+      } else {
+        code.local(ALOAD, FRAME_ARG);
+        code.pushInt(index);
+        code.pushInt(contextLevel);
+        code.invoke(INVOKEVIRTUAL, FRAME, getter, "(II)" + OBJECT_TYPE);
+      }
+      code.local(ASTORE, element(depth));
+    }
+
+    private void popVariable(final int offset, final String setter, final int index,
+        final int contextLevel, final int depth) {
+      if (contextLevel == 0) {
+        code.local(ALOAD, STACK);
+        code.local(ILOAD, offset);
+        code.pushInt(index);
+        code.op(IADD);
+        code.local(ALOAD, element(depth - 1));
+        code.op(AASTORE);
+      } else {
+        code.local(ALOAD, FRAME_ARG);
+        code.pushInt(index);
+        code.pushInt(contextLevel);
+        code.local(ALOAD, element(depth - 1));
+        code.invoke(INVOKEVIRTUAL, FRAME, setter, "(II" + OBJECT_TYPE + ")V");
+      }
+    }
+
+    private void loadReceiver() {
+      code.local(ALOAD, FRAME_ARG);
+      code.invoke(INVOKEVIRTUAL, FRAME, "getReceiver", "()" + OBJECT_TYPE);
+    }
+
+    private void loadConstant(final String name, final String type) {
+      code.local(ALOAD, THIS);
+      code.field(GETFIELD, COMPILED_METHOD, name, type);
+    }
+
+    private void pushConstant(final String name, final String type, final int depth) {
+      loadConstant(name, type);
+      code.local(ASTORE, element(depth));
+    }
+
+    /**
+     * Compute the arithmetic for two integers or two doubles, and send the
+     * message otherwise.
+     */
+    private void compileArithmetic(final String operation, final int i, final int depth) {
+      Label send = new Label();
+      code.local(ALOAD, INTERPRETER_ARG);
+      code.local(ALOAD, element(depth - 2));
+      code.local(ALOAD, element(depth - 1));
+      code.invoke(INVOKEVIRTUAL, INTERPRETER, operation,
+          "(" + OBJECT_TYPE + OBJECT_TYPE + ")" + OBJECT_TYPE);
+      code.op(ClassFileWriter.DUP);
+      code.jump(IFNULL, send);
+      code.local(ASTORE, element(depth - 2));
+      code.jump(GOTO, labels[i + 2]);
+
+      code.mark(send);
+      code.op(ClassFileWriter.POP);
+      executeByInterpreter(i, depth);
+      continueAt(i, depth, i + 2, -1);
+    }
+
+    /**
+     * Send the message through a send site, see {@link SendSite}.
+     */
+    private void compileSend(final int i, final int depth) {
+      SSymbol selector = (SSymbol) method.getConstant(i);
+      String field = "sendSite" + sendSites.size();
+      sendSites.add(new SendSite(selector, i, universe,
+          interpreter.getPolymorphicCacheSize()));
+      writer.addField(ACC_STATIC | ACC_FINAL, field, METHOD_HANDLE_TYPE);
+
+      writeBack(depth);
+      code.local(ALOAD, FRAME_ARG);
+      code.pushInt(i + 2);
+      code.invoke(INVOKEVIRTUAL, FRAME, "setBytecodeIndex", "(I)V");
+
+      code.field(GETSTATIC, writer.getClassName(), field, METHOD_HANDLE_TYPE);
+      code.local(ALOAD, element(depth - selector.getNumberOfSignatureArguments()));
+      code.local(ALOAD, INTERPRETER_ARG);
+      code.local(ALOAD, FRAME_ARG);
+      code.invoke(INVOKEVIRTUAL, METHOD_HANDLE, "invokeExact",
+          SendSite.TYPE.toMethodDescriptorString());
+      continueAt(i, depth, i + 2, -1);
+    }
+
+    /**
+     * Initialize the fields of the send sites from the class data.
+     */
+    private void compileSendSiteInitialization() {
+      if (sendSites.isEmpty()) {
+        return;
+      }
+      code = writer.new Code(MAX_JVM_STACK, 1);
+      code.invoke(INVOKESTATIC, "java/lang/invoke/MethodHandles", "lookup",
+          "()Ljava/lang/invoke/MethodHandles$Lookup;");
+      code.loadConstant(writer.string(ConstantDescs.DEFAULT_NAME));
+      code.loadConstant(writer.classRef("[Ljava/lang/Object;"));
+      code.invoke(INVOKESTATIC, "java/lang/invoke/MethodHandles", "classData",
+          "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;)"
+              + "Ljava/lang/Object;");
+      code.checkcast("[Ljava/lang/Object;");
+      code.local(ASTORE, 0);
+      for (int k = 0; k < sendSites.size(); k++) {
+        code.local(ALOAD, 0);
+        code.pushInt(k);
+        code.op(AALOAD);
+        code.checkcast(METHOD_HANDLE);
+        code.field(PUTSTATIC, writer.getClassName(), "sendSite" + k, METHOD_HANDLE_TYPE);
+      }
+      code.op(RETURN);
+      writer.addMethod(ACC_STATIC, "<clinit>", "()V", code);
+    }
+
+    /**
+     * Write the stack elements back to the frame, and let the interpreter
+     * execute the bytecode at the given index.
+     */
+    private void executeByInterpreter(final int i, final int depth) {
+      writeBack(depth);
+      code.local(ALOAD, INTERPRETER_ARG);
+      code.pushInt(i);
+      code.invoke(INVOKEVIRTUAL, INTERPRETER, "executeBytecode", "(I)" + OBJECT_TYPE);
+      code.op(ClassFileWriter.POP);
+    }
+
+    private void writeBack(final int depth) {
+      for (int k = 0; k < depth; k++) {
+        code.local(ALOAD, STACK);
+        code.local(ILOAD, LOCAL_OFFSET);
+        code.pushInt(numberOfLocals + k);
+        code.op(IADD);
+        code.local(ALOAD, element(k));
+        code.op(AASTORE);
+      }
+      code.local(ALOAD, FRAME_ARG);
+      code.local(ILOAD, LOCAL_OFFSET);
+      code.pushInt(numberOfLocals + depth - 1);
+      code.op(IADD);
+      code.invoke(INVOKEVIRTUAL, FRAME, "setStackPointer", "(I)V");
+    }
+
+    /**
+     * Continue after the interpreter executed the bytecode at the given
+     * index, if the frame is still the current one and continues at the
+     * next bytecode, or at the given jump target. Otherwise, return to the
+     * interpreter.
+     */
+    private void continueAt(final int i, final int depth, final int next,
+        final int target) {
+      code.local(ALOAD, INTERPRETER_ARG);
+      code.invoke(INVOKEVIRTUAL, INTERPRETER, "getFrame", "()L" + FRAME + ";");
+      code.local(ALOAD, FRAME_ARG);
+      code.jump(IF_ACMPNE, exit);
+
+      // a block may have moved the frame off the value stack
+      loadFrameState();
+
+      byte bytecode = getFirstComponent(bytecodes[i]);
+      int firstChanged = depth - getNumberOfInputs(bytecode, i);
+
+      code.local(ALOAD, FRAME_ARG);
+      code.invoke(INVOKEVIRTUAL, FRAME, "getBytecodeIndex", "()I");
+      code.local(ISTORE, BYTECODE_INDEX);
+      continueIfAt(next, firstChanged);
+      if (target >= 0) {
+        continueIfAt(target, firstChanged);
+      }
+      code.jump(GOTO, exit);
+    }
+
+    private void continueIfAt(final int bytecodeIndex, final int firstChanged) {
+      Label elsewhere = new Label();
+      code.local(ILOAD, BYTECODE_INDEX);
+      code.pushInt(bytecodeIndex);
+      code.jump(IF_ICMPNE, elsewhere);
+      loadElements(firstChanged, depths[bytecodeIndex]);
+      code.jump(GOTO, labels[bytecodeIndex]);
+      code.mark(elsewhere);
+    }
+
+    private void loadFrameState() {
+      code.local(ALOAD, FRAME_ARG);
+      code.invoke(INVOKEVIRTUAL, FRAME, "getStack", "()" + STACK_TYPE);
+      code.local(ASTORE, STACK);
+      code.local(ALOAD, FRAME_ARG);
+      code.invoke(INVOKEVIRTUAL, FRAME, "getLocalOffset", "()I");
+      code.local(ISTORE, LOCAL_OFFSET);
+      code.local(ALOAD, FRAME_ARG);
+      code.invoke(INVOKEVIRTUAL, FRAME, "getArgumentOffset", "()I");
+      code.local(ISTORE, ARGUMENT_OFFSET);
+    }
+
+    /**
+     * Load the stack elements with the given indices from the frame.
+     */
+    private void loadElements(final int from, final int to) {
+      for (int k = from; k < to; k++) {
+        code.local(ALOAD, STACK);
+        code.local(ILOAD, LOCAL_OFFSET);
+        code.pushInt(numberOfLocals + k);
+        code.op(IADD);
+        code.op(AALOAD);
+        code.local(ASTORE, element(k));
+      }
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package som.interpreter;
+
+import static som.interpreter.Bytecodes.JUMP;
+import static som.interpreter.Bytecodes.JUMP_BACKWARD;
+import static som.interpreter.Bytecodes.RETURN_LOCAL;
+import static som.interpreter.Bytecodes.RETURN_NON_LOCAL;
+import static som.interpreter.Bytecodes.getBytecodeLength;
+import static som.interpreter.Bytecodes.getBytecodeName;
+import static som.interpreter.Bytecodes.getNumberOfBytecodes;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import som.vm.Universe;
+import som.vmobjects.SMethod;
+
+
+/**
+ * Counts how often sequences of two and three bytecodes are executed, to
+ * find candidates for superinstructions.
+ *
+ * For each executed bytecode, the sequences starting with it in the method's
+ * bytecodes are counted. Thus, the count of a sequence is the number of
+ * times a superinstruction for it would be executed.
+ */
+public class BytecodeProfiler {
+
+  private static final int NUM_REPORTED = 20;
+
+  private final int    numBytecodes;
+  private final long[] pairs;
+  private final long[] triples;
+
+  public BytecodeProfiler() {
+    numBytecodes = getNumberOfBytecodes();
+    pairs = new long[numBytecodes * numBytecodes];
+    triples = new long[numBytecodes * numBytecodes * numBytecodes];
+  }
+
+  public void count(final SMethod method, final int bytecodeIndex) {
+    byte first = method.getBytecode(bytecodeIndex);
+    int secondIndex = bytecodeIndex + getBytecodeLength(first);
+    if (hasNoSuccessor(first) || secondIndex >= method.getNumberOfBytecodes()) {
+      return;
+    }
+
+    byte second = method.getBytecode(secondIndex);
+    int pair = first * numBytecodes + second;
+    pairs[pair] += 1;
+
+    int thirdIndex = secondIndex + getBytecodeLength(second);
+    if (hasNoSuccessor(second) || thirdIndex >= method.getNumberOfBytecodes()) {
+      return;
+    }
+
+    byte third = method.getBytecode(thirdIndex);
+    triples[pair * numBytecodes + third] += 1;
+  }
+
+  private static boolean hasNoSuccessor(final byte bytecode) {
+    // the bytecodes after a return or a jump are not executed next
+    return bytecode == RETURN_LOCAL || bytecode == RETURN_NON_LOCAL || bytecode == JUMP
+        || bytecode == JUMP_BACKWARD;
+  }
+
+  public void report() {
+    Universe.errorPrintln("Most frequent bytecode pairs:");
+    reportMostFrequent(pairs, 2);
+
+    Universe.errorPrintln("Most frequent bytecode triples:");
+    reportMostFrequent(triples, 3);
+  }
+
+  private void reportMostFrequent(final long[] counts, final int length) {
+    List<Integer> sequences = new ArrayList<>();
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] > 0) {
+        sequences.add(i);
+      }
+    }
+    sequences.sort((a, b) -> Long.compare(counts[b], counts[a]));
+
+    for (int i = 0; i < Math.min(NUM_REPORTED, sequences.size()); i++) {
+      int sequence = sequences.get(i);
+      Universe.errorPrintln(
+          String.format("%12d  %s", counts[sequence], getSequenceName(sequence, length)));
+    }
+  }
+
+  private String getSequenceName(final int sequence, final int length) {
+    String name = "";
+    int remaining = sequence;
+    for (int i = 0; i < length; i++) {
+      String bytecodeName = getBytecodeName((byte) (remaining % numBytecodes));
+      name = i == 0 ? bytecodeName : bytecodeName + "+" + name;
+      remaining /= numBytecodes;
+    }
+    return name;
+  }
+}
@@ -48,17 +48,119 @@ public class Bytecodes {
   public static final byte RETURN_LOCAL     = 14;
   public static final byte RETURN_NON_LOCAL = 15;
 
-  private static final String[] PADDED_BYTECODE_NAMES = new String[] {
-      "HALT            ", "DUP             ", "PUSH_LOCAL      ",
-      "PUSH_ARGUMENT   ", "PUSH_FIELD      ", "PUSH_BLOCK      ",
-      "PUSH_CONSTANT   ", "PUSH_GLOBAL     ", "POP             ",
-      "POP_LOCAL       ", "POP_ARGUMENT    ", "POP_FIELD       ",
-      "SEND            ", "SUPER_SEND      ", "RETURN_LOCAL    ",
-      "RETURN_NON_LOCAL"
+  // Quickened sends, a SEND rewrites itself to one of these on execution
+  public static final byte SEND_MONO_METHOD    = 16;
+  public static final byte SEND_MONO_PRIMITIVE = 17;
+  public static final byte SEND_POLY           = 18;
+  public static final byte SEND_MEGA           = 19;
+
+  // Superinstructions, fusing two bytecodes each, see SUPERINSTRUCTIONS
+  public static final byte PUSH_LOCAL_SEND             = 20;
+  public static final byte PUSH_ARGUMENT_SEND          = 21;
+  public static final byte PUSH_CONSTANT_SEND          = 22;
+  public static final byte PUSH_ARGUMENT_PUSH_CONSTANT = 23;
+  public static final byte PUSH_ARGUMENT_PUSH_FIELD    = 24;
+  public static final byte DUP_POP_LOCAL               = 25;
+  public static final byte DUP_POP_FIELD               = 26;
+  public static final byte POP_PUSH_ARGUMENT           = 27;
+  public static final byte PUSH_SELF_SEND              = 28;
+
+  // Short forms without operands for the most common operands
+  public static final byte PUSH_SELF    = 29;
+  public static final byte PUSH_ARG_1   = 30;
+  public static final byte PUSH_ARG_2   = 31;
+  public static final byte PUSH_LOCAL_0 = 32;
+  public static final byte PUSH_LOCAL_1 = 33;
+  public static final byte PUSH_LOCAL_2 = 34;
+  public static final byte PUSH_NIL     = 35;
+  public static final byte PUSH_TRUE    = 36;
+  public static final byte PUSH_FALSE   = 37;
+  public static final byte PUSH_0       = 38;
+  public static final byte PUSH_1       = 39;
+  public static final byte RETURN_SELF  = 40;
+
+  // Sends of common arithmetic and comparison selectors, which are computed
+  // directly for two integers or two doubles
+  public static final byte SEND_ADD       = 41;
+  public static final byte SEND_SUBTRACT  = 42;
+  public static final byte SEND_MULTIPLY  = 43;
+  public static final byte SEND_LESS_THAN = 44;
+  public static final byte SEND_EQUAL     = 45;
+
+  // Jumps of inlined control structures. The offset to the target is an
+  // unsigned 16-bit operand, relative to the index of the jump. Only
+  // JUMP_BACKWARD jumps to a lower index, which starts the next iteration of
+  // an inlined loop.
+  // The conditional jumps pop the value they test. JUMP_IF_TRUE and
+  // JUMP_IF_FALSE have the index of a literal describing the inlined send as
+  // a third operand. They send it instead when the value is not a boolean,
+  // see MethodGenerationContext#inlineControlStructure.
+  public static final byte JUMP            = 46;
+  public static final byte JUMP_IF_TRUE    = 47;
+  public static final byte JUMP_IF_FALSE   = 48;
+  public static final byte JUMP_IF_NIL     = 49;
+  public static final byte JUMP_IF_NOT_NIL = 50;
+  public static final byte JUMP_BACKWARD   = 51;
+
+  // Counted loops, with the jump offset as first operand like the jumps.
+  // FOR_TO and FOR_DOWN_TO start the loop, with the start, limit, and step on
+  // the stack, and also have the index of the literal describing the inlined
+  // send and the index of the counter as operands. The limit and step are
+  // kept in the two locals after the counter. FOR_NEXT ends the loop body,
+  // and jumps back to it for the next value of the counter.
+  public static final byte FOR_TO      = 52;
+  public static final byte FOR_DOWN_TO = 53;
+  public static final byte FOR_NEXT    = 54;
+
+  /**
+   * The superinstructions and the bytecodes they fuse. The sequences are the
+   * most frequent ones reported by the -profile-bytecodes mode of the VM.
+   *
+   * A superinstruction only replaces the opcode of its first bytecode and
+   * has the same length and operands. The second bytecode stays in place.
+   * Thus, the bytecodes can still be executed one at a time, and the
+   * interpreter may choose to execute both at once.
+   */
+  private static final byte[][] SUPERINSTRUCTIONS = new byte[][] {
+      {PUSH_LOCAL_SEND, PUSH_LOCAL, SEND},
+      {PUSH_ARGUMENT_SEND, PUSH_ARGUMENT, SEND},
+      {PUSH_CONSTANT_SEND, PUSH_CONSTANT, SEND},
+      {PUSH_ARGUMENT_PUSH_CONSTANT, PUSH_ARGUMENT, PUSH_CONSTANT},
+      {PUSH_ARGUMENT_PUSH_FIELD, PUSH_ARGUMENT, PUSH_FIELD},
+      {DUP_POP_LOCAL, DUP, POP_LOCAL},
+      {DUP_POP_FIELD, DUP, POP_FIELD},
+      {POP_PUSH_ARGUMENT, POP, PUSH_ARGUMENT},
+      {PUSH_SELF_SEND, PUSH_SELF, SEND}
+  };
+
+  private static final String[] BYTECODE_NAMES = new String[] {
+      "HALT", "DUP", "PUSH_LOCAL",
+      "PUSH_ARGUMENT", "PUSH_FIELD", "PUSH_BLOCK",
+      "PUSH_CONSTANT", "PUSH_GLOBAL", "POP",
+      "POP_LOCAL", "POP_ARGUMENT", "POP_FIELD",
+      "SEND", "SUPER_SEND", "RETURN_LOCAL",
+      "RETURN_NON_LOCAL",
+      "SEND_MONO_METHOD", "SEND_MONO_PRIMITIVE", "SEND_POLY",
+      "SEND_MEGA",
+      "PUSH_LOCAL_SEND", "PUSH_ARGUMENT_SEND", "PUSH_CONSTANT_SEND",
+      "PUSH_ARGUMENT_PUSH_CONSTANT", "PUSH_ARGUMENT_PUSH_FIELD", "DUP_POP_LOCAL",
+      "DUP_POP_FIELD", "POP_PUSH_ARGUMENT", "PUSH_SELF_SEND",
+      "PUSH_SELF", "PUSH_ARG_1", "PUSH_ARG_2",
+      "PUSH_LOCAL_0", "PUSH_LOCAL_1", "PUSH_LOCAL_2",
+      "PUSH_NIL", "PUSH_TRUE", "PUSH_FALSE",
+      "PUSH_0", "PUSH_1", "RETURN_SELF",
+      "SEND_ADD", "SEND_SUBTRACT", "SEND_MULTIPLY",
+      "SEND_LESS_THAN", "SEND_EQUAL",
+      "JUMP", "JUMP_IF_TRUE", "JUMP_IF_FALSE",
+      "JUMP_IF_NIL", "JUMP_IF_NOT_NIL", "JUMP_BACKWARD",
+      "FOR_TO", "FOR_DOWN_TO", "FOR_NEXT"
   };
 
-  private static final String[] BYTECODE_NAMES =
-      Stream.of(PADDED_BYTECODE_NAMES).map(String::trim).toArray(String[]::new);
+  private static final int MAX_BYTECODE_NAME_LENGTH =
+      Stream.of(BYTECODE_NAMES).mapToInt(String::length).max().getAsInt();
+
+  private static final String[] PADDED_BYTECODE_NAMES = Stream.of(BYTECODE_NAMES).map(
+      n -> String.format("%-" + MAX_BYTECODE_NAME_LENGTH + "s", n)).toArray(String[]::new);
 
   private static final byte NUM_BYTECODES = (byte) BYTECODE_NAMES.length;
 
@@ -68,6 +170,10 @@ public class Bytecodes {
     }
   }
 
+  public static int getNumberOfBytecodes() {
+    return NUM_BYTECODES;
+  }
+
   public static String getBytecodeName(byte bytecode) {
     checkBytecodeIndex(bytecode);
     return BYTECODE_NAMES[bytecode];
@@ -83,6 +189,67 @@ public class Bytecodes {
     return BYTECODE_LENGTH[bytecode];
   }
 
+  /**
+   * Get the superinstruction fusing the two given bytecodes, or {@code HALT}
+   * if there is none.
+   */
+  public static byte getSuperinstruction(final byte first, final byte second) {
+    for (byte[] s : SUPERINSTRUCTIONS) {
+      if (s[1] == first && s[2] == second) {
+        return s[0];
+      }
+    }
+    return HALT;
+  }
+
+  /**
+   * Get the first bytecode fused by a superinstruction. For all other
+   * bytecodes, this is the bytecode itself.
+   */
+  public static byte getFirstComponent(final byte bytecode) {
+    return FIRST_COMPONENT[bytecode];
+  }
+
+  /**
+   * Get the offset of a jump from the two bytes of its operand, which store
+   * it with the low byte first.
+   */
+  public static int getJumpOffset(final byte low, final byte high) {
+    return (low & 0xFF) | ((high & 0xFF) << 8);
+  }
+
+  public static int getJumpTarget(final byte[] bytecodes, final int jumpIndex) {
+    int offset = getJumpOffset(bytecodes[jumpIndex + 1], bytecodes[jumpIndex + 2]);
+    byte jump = bytecodes[jumpIndex];
+    return jump == JUMP_BACKWARD || jump == FOR_NEXT ? jumpIndex - offset : jumpIndex + offset;
+  }
+
+  /**
+   * Encode a pre-decoded instruction. The opcode is kept in the lowest byte,
+   * the first operand in the second byte, and the second operand in the upper
+   * 16 bits.
+   */
+  public static int encodeInstruction(final byte opcode, final int operandA,
+      final int operandB) {
+    return (opcode & 0xFF) | ((operandA & 0xFF) << 8) | (operandB << 16);
+  }
+
+  public static byte getOpcode(final int instruction) {
+    return (byte) instruction;
+  }
+
+  public static int getOperandA(final int instruction) {
+    return (instruction >>> 8) & 0xFF;
+  }
+
+  public static int getOperandB(final int instruction) {
+    return instruction >>> 16;
+  }
+
+  public static int replaceOpcode(final int instruction, final byte opcode) {
+    return (instruction & ~0xFF) | (opcode & 0xFF);
+  }
+
   // Static array holding lengths of each bytecode
   private static final int[] BYTECODE_LENGTH = new int[] {
       1, // HALT
@@ -100,7 +267,57 @@ public class Bytecodes {
       2, // SEND
       2, // SUPER_SEND
       1, // RETURN_LOCAL
-      1 // RETURN_NON_LOCAL
+      1, // RETURN_NON_LOCAL
+      2, // SEND_MONO_METHOD
+      2, // SEND_MONO_PRIMITIVE
+      2, // SEND_POLY
+      2, // SEND_MEGA
+      3, // PUSH_LOCAL_SEND
+      3, // PUSH_ARGUMENT_SEND
+      2, // PUSH_CONSTANT_SEND
+      3, // PUSH_ARGUMENT_PUSH_CONSTANT
+      3, // PUSH_ARGUMENT_PUSH_FIELD
+      1, // DUP_POP_LOCAL
+      1, // DUP_POP_FIELD
+      1, // POP_PUSH_ARGUMENT
+      1, // PUSH_SELF_SEND
+      1, // PUSH_SELF
+      1, // PUSH_ARG_1
+      1, // PUSH_ARG_2
+      1, // PUSH_LOCAL_0
+      1, // PUSH_LOCAL_1
+      1, // PUSH_LOCAL_2
+      1, // PUSH_NIL
+      1, // PUSH_TRUE
+      1, // PUSH_FALSE
+      1, // PUSH_0
+      1, // PUSH_1
+      1, // RETURN_SELF
+      2, // SEND_ADD
+      2, // SEND_SUBTRACT
+      2, // SEND_MULTIPLY
+      2, // SEND_LESS_THAN
+      2, // SEND_EQUAL
+      3, // JUMP
+      4, // JUMP_IF_TRUE
+      4, // JUMP_IF_FALSE
+      3, // JUMP_IF_NIL
+      3, // JUMP_IF_NOT_NIL
+      3, // JUMP_BACKWARD
+      5, // FOR_TO
+      5, // FOR_DOWN_TO
+      4 // FOR_NEXT
   };
 
+  private static final byte[] FIRST_COMPONENT = new byte[NUM_BYTECODES];
+
+  static {
+    for (byte b = 0; b < NUM_BYTECODES; b++) {
+      FIRST_COMPONENT[b] = b;
+    }
+    for (byte[] s : SUPERINSTRUCTIONS) {
+      FIRST_COMPONENT[s[0]] = s[1];
+    }
+  }
+
 }
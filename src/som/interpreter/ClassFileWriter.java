@@ -0,0 +1,427 @@
+package som.interpreter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Writes a class file with the few constructs the baseline compiler needs:
+ * a constant pool, and methods with code, see {@link BaselineCompiler}.
+ *
+ * The class files have version 49, which the JVM verifies by type inference.
+ * Thus, the code needs no stack map frames, which would require to know the
+ * types at every jump target.
+ */
+final class ClassFileWriter {
+
+  private static final int MAGIC   = 0xCAFEBABE;
+  private static final int VERSION = 49;
+
+  static final int ACC_PUBLIC = 0x0001;
+  static final int ACC_STATIC = 0x0008;
+  static final int ACC_FINAL  = 0x0010;
+  static final int ACC_SUPER  = 0x0020;
+
+  // The opcodes used by the baseline compiler
+  static final int ICONST_0      = 0x03;
+  static final int BIPUSH        = 0x10;
+  static final int SIPUSH        = 0x11;
+  static final int LDC_W         = 0x13;
+  static final int ILOAD         = 0x15;
+  static final int ALOAD         = 0x19;
+  static final int AALOAD        = 0x32;
+  static final int ISTORE        = 0x36;
+  static final int ASTORE        = 0x3A;
+  static final int AASTORE       = 0x53;
+  static final int POP           = 0x57;
+  static final int DUP           = 0x59;
+  static final int IADD          = 0x60;
+  static final int I2L           = 0x85;
+  static final int IF_ICMPNE     = 0xA0;
+  static final int IF_ACMPEQ     = 0xA5;
+  static final int IF_ACMPNE     = 0xA6;
+  static final int GOTO          = 0xA7;
+  static final int LOOKUPSWITCH  = 0xAB;
+  static final int RETURN        = 0xB1;
+  static final int GETSTATIC     = 0xB2;
+  static final int PUTSTATIC     = 0xB3;
+  static final int GETFIELD      = 0xB4;
+  static final int INVOKEVIRTUAL = 0xB6;
+  static final int INVOKESPECIAL = 0xB7;
+  static final int INVOKESTATIC  = 0xB8;
+  static final int CHECKCAST     = 0xC0;
+  static final int IFNULL        = 0xC6;
+
+  private static final int CONSTANT_UTF8         = 1;
+  private static final int CONSTANT_INTEGER      = 3;
+  private static final int CONSTANT_CLASS        = 7;
+  private static final int CONSTANT_STRING       = 8;
+  private static final int CONSTANT_FIELDREF     = 9;
+  private static final int CONSTANT_METHODREF    = 10;
+  private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+  private final String className;
+  private final String superName;
+
+  private final ByteArrayOutputStream constants = new ByteArrayOutputStream();
+  private final DataOutputStream      constantsOut = new DataOutputStream(constants);
+  private final Map<String, Integer>  constantIndices = new HashMap<>();
+  private int                         numberOfConstants = 1;
+
+  private final ByteArrayOutputStream fields = new ByteArrayOutputStream();
+  private final DataOutputStream      fieldsOut = new DataOutputStream(fields);
+  private int                         numberOfFields;
+
+  private final ByteArrayOutputStream methods = new ByteArrayOutputStream();
+  private final DataOutputStream      methodsOut = new DataOutputStream(methods);
+  private int                         numberOfMethods;
+
+  ClassFileWriter(final String className, final String superName) {
+    this.className = className;
+    this.superName = superName;
+  }
+
+  String getClassName() {
+    return className;
+  }
+
+  int utf8(final String value) {
+    Integer index = constantIndices.get("U" + value);
+    if (index != null) {
+      return index;
+    }
+    try {
+      constantsOut.writeByte(CONSTANT_UTF8);
+      constantsOut.writeUTF(value);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return addConstant("U" + value);
+  }
+
+  int integer(final int value) {
+    Integer index = constantIndices.get("I" + value);
+    if (index != null) {
+      return index;
+    }
+    try {
+      constantsOut.writeByte(CONSTANT_INTEGER);
+      constantsOut.writeInt(value);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return addConstant("I" + value);
+  }
+
+  int classRef(final String internalName) {
+    Integer index = constantIndices.get("C" + internalName);
+    if (index != null) {
+      return index;
+    }
+    int name = utf8(internalName);
+    writeConstant(CONSTANT_CLASS, name);
+    return addConstant("C" + internalName);
+  }
+
+  int string(final String value) {
+    Integer index = constantIndices.get("S" + value);
+    if (index != null) {
+      return index;
+    }
+    int utf8 = utf8(value);
+    writeConstant(CONSTANT_STRING, utf8);
+    return addConstant("S" + value);
+  }
+
+  int fieldRef(final String owner, final String name, final String descriptor) {
+    return memberRef(CONSTANT_FIELDREF, owner, name, descriptor);
+  }
+
+  int methodRef(final String owner, final String name, final String descriptor) {
+    return memberRef(CONSTANT_METHODREF, owner, name, descriptor);
+  }
+
+  private int memberRef(final int tag, final String owner, final String name,
+      final String descriptor) {
+    String key = "M" + tag + owner + "." + name + descriptor;
+    Integer index = constantIndices.get(key);
+    if (index != null) {
+      return index;
+    }
+    int ownerIndex = classRef(owner);
+    int nameAndType = nameAndType(name, descriptor);
+    writeConstant(tag, ownerIndex, nameAndType);
+    return addConstant(key);
+  }
+
+  private int nameAndType(final String name, final String descriptor) {
+    String key = "N" + name + ":" + descriptor;
+    Integer index = constantIndices.get(key);
+    if (index != null) {
+      return index;
+    }
+    int nameIndex = utf8(name);
+    int descriptorIndex = utf8(descriptor);
+    writeConstant(CONSTANT_NAME_AND_TYPE, nameIndex, descriptorIndex);
+    return addConstant(key);
+  }
+
+  private void writeConstant(final int tag, final int... indices) {
+    try {
+      constantsOut.writeByte(tag);
+      for (int index : indices) {
+        constantsOut.writeShort(index);
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private int addConstant(final String key) {
+    int index = numberOfConstants;
+    numberOfConstants += 1;
+    if (numberOfConstants > 0xFFFF) {
+      throw new IllegalStateException("Too many constants");
+    }
+    constantIndices.put(key, index);
+    return index;
+  }
+
+  void addField(final int access, final String name, final String descriptor) {
+    int nameIndex = utf8(name);
+    int descriptorIndex = utf8(descriptor);
+    try {
+      fieldsOut.writeShort(access);
+      fieldsOut.writeShort(nameIndex);
+      fieldsOut.writeShort(descriptorIndex);
+      fieldsOut.writeShort(0); // attributes
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    numberOfFields += 1;
+  }
+
+  void addMethod(final int access, final String name, final String descriptor,
+      final Code code) {
+    int nameIndex = utf8(name);
+    int descriptorIndex = utf8(descriptor);
+    int codeIndex = utf8("Code");
+    byte[] bytes = code.toByteArray();
+
+    try {
+      methodsOut.writeShort(access);
+      methodsOut.writeShort(nameIndex);
+      methodsOut.writeShort(descriptorIndex);
+      methodsOut.writeShort(1); // attributes
+
+      methodsOut.writeShort(codeIndex);
+      methodsOut.writeInt(12 + bytes.length);
+      methodsOut.writeShort(code.maxStack);
+      methodsOut.writeShort(code.maxLocals);
+      methodsOut.writeInt(bytes.length);
+      methodsOut.write(bytes);
+      methodsOut.writeShort(0); // exception table
+      methodsOut.writeShort(0); // attributes
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    numberOfMethods += 1;
+  }
+
+  byte[] toByteArray(final int access) {
+    int thisIndex = classRef(className);
+    int superIndex = classRef(superName);
+
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(result);
+    try {
+      out.writeInt(MAGIC);
+      out.writeShort(0);
+      out.writeShort(VERSION);
+      out.writeShort(numberOfConstants);
+      constants.writeTo(out);
+      out.writeShort(access);
+      out.writeShort(thisIndex);
+      out.writeShort(superIndex);
+      out.writeShort(0); // interfaces
+      out.writeShort(numberOfFields);
+      fields.writeTo(out);
+      out.writeShort(numberOfMethods);
+      methods.writeTo(out);
+      out.writeShort(0); // attributes
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return result.toByteArray();
+  }
+
+  /**
+   * A position in the code of a method, which branches refer to before it
+   * is known.
+   */
+  static final class Label {
+    private int position = -1;
+
+    // the offsets to fix once the position is known: position of the
+    // offset, position of the branch, and size of the offset
+    private final List<int[]> unresolved = new ArrayList<>();
+  }
+
+  /**
+   * The code of a method. The maximum size of the operand stack is given by
+   * the user of the code, since it only uses a few elements at a time.
+   */
+  final class Code {
+    private byte[] bytes = new byte[256];
+    private int    length;
+
+    private final int maxStack;
+    private int       maxLocals;
+
+    Code(final int maxStack, final int maxLocals) {
+      this.maxStack = maxStack;
+      this.maxLocals = maxLocals;
+    }
+
+    void op(final int opcode) {
+      writeByte(opcode);
+    }
+
+    void local(final int opcode, final int index) {
+      if (index > 0xFF) {
+        throw new IllegalStateException("Too many locals");
+      }
+      maxLocals = Math.max(maxLocals, index + 1);
+      writeByte(opcode);
+      writeByte(index);
+    }
+
+    void pushInt(final int value) {
+      if (value >= -1 && value <= 5) {
+        writeByte(ICONST_0 + value);
+      } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+        writeByte(BIPUSH);
+        writeByte(value);
+      } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+        writeByte(SIPUSH);
+        writeShort(value);
+      } else {
+        writeByte(LDC_W);
+        writeShort(integer(value));
+      }
+    }
+
+    void field(final int opcode, final String owner, final String name,
+        final String descriptor) {
+      writeByte(opcode);
+      writeShort(fieldRef(owner, name, descriptor));
+    }
+
+    void invoke(final int opcode, final String owner, final String name,
+        final String descriptor) {
+      writeByte(opcode);
+      writeShort(methodRef(owner, name, descriptor));
+    }
+
+    /**
+     * Push the constant with the given index in the constant pool.
+     */
+    void loadConstant(final int index) {
+      writeByte(LDC_W);
+      writeShort(index);
+    }
+
+    void checkcast(final String internalName) {
+      writeByte(CHECKCAST);
+      writeShort(classRef(internalName));
+    }
+
+    void mark(final Label label) {
+      label.position = length;
+      for (int[] offset : label.unresolved) {
+        writeOffsetAt(offset[0], label.position - offset[1], offset[2]);
+      }
+      label.unresolved.clear();
+    }
+
+    void jump(final int opcode, final Label label) {
+      int branch = length;
+      writeByte(opcode);
+      writeOffset(branch, label, 2);
+    }
+
+    /**
+     * Jump to the label of the given key, or to the default label.
+     * The keys have to be sorted.
+     */
+    void lookupSwitch(final int[] keys, final Label[] labels, final Label defaultLabel) {
+      int branch = length;
+      writeByte(LOOKUPSWITCH);
+      while (length % 4 != 0) {
+        writeByte(0);
+      }
+      writeOffset(branch, defaultLabel, 4);
+      writeInt(keys.length);
+      for (int i = 0; i < keys.length; i++) {
+        writeInt(keys[i]);
+        writeOffset(branch, labels[i], 4);
+      }
+    }
+
+    private void writeOffset(final int branch, final Label label, final int size) {
+      int position = length;
+      for (int i = 0; i < size; i++) {
+        writeByte(0);
+      }
+      if (label.position >= 0) {
+        writeOffsetAt(position, label.position - branch, size);
+      } else {
+        label.unresolved.add(new int[] {position, branch, size});
+      }
+    }
+
+    private void writeOffsetAt(final int position, final int offset, final int size) {
+      if (size == 2) {
+        if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+          throw new IllegalStateException("Code too large");
+        }
+      } else {
+        bytes[position] = (byte) (offset >> 24);
+        bytes[position + 1] = (byte) (offset >> 16);
+      }
+      bytes[position + size - 2] = (byte) (offset >> 8);
+      bytes[position + size - 1] = (byte) offset;
+    }
+
+    private void writeByte(final int value) {
+      if (length == bytes.length) {
+        bytes = Arrays.copyOf(bytes, bytes.length * 2);
+      }
+      bytes[length] = (byte) value;
+      length += 1;
+    }
+
+    private void writeShort(final int value) {
+      writeByte(value >> 8);
+      writeByte(value);
+    }
+
+    private void writeInt(final int value) {
+      writeShort(value >> 16);
+      writeShort(value);
+    }
+
+    byte[] toByteArray() {
+      if (length > 0xFFFF) {
+        throw new IllegalStateException("Code too large");
+      }
+      return Arrays.copyOf(bytes, length);
+    }
+  }
+}
@@ -0,0 +1,52 @@
+package som.interpreter;
+
+import som.compiler.ProgramDefinitionError;
+import som.vm.Universe;
+import som.vmobjects.SAbstractObject;
+import som.vmobjects.SObject;
+
+
+/**
+ * The code of a method, or block, compiled to a JVM class by the
+ * {@link BaselineCompiler}.
+ *
+ * The compiled code executes an activation in its frame, just like the
+ * interpreter. It returns to the interpreter to send a message that
+ * activates a method, and to return. The interpreter continues the compiled
+ * code after a send at one of its resume points.
+ */
+public abstract class CompiledMethod {
+
+  protected final SObject         nilObject;
+  protected final SObject         trueObject;
+  protected final SObject         falseObject;
+  protected final SAbstractObject zero;
+  protected final SAbstractObject one;
+
+  private final boolean[] resumePoints;
+
+  protected CompiledMethod(final Universe universe, final boolean[] resumePoints) {
+    this.nilObject = universe.nilObject;
+    this.trueObject = universe.trueObject;
+    this.falseObject = universe.falseObject;
+    this.zero = universe.newInteger(0);
+    this.one = universe.newInteger(1);
+    this.resumePoints = resumePoints;
+  }
+
+  /**
+   * Whether the compiled code can continue the activation at the given
+   * bytecode index. Elsewhere, the interpreter continues it.
+   */
+  public boolean canResumeAt(final int bytecodeIndex) {
+    return resumePoints[bytecodeIndex];
+  }
+
+  /**
+   * Continue the activation of the given frame at its bytecode index, until
+   * the frame is no longer the current one, or the code has to continue
+   * somewhere the compiled code does not resume.
+   */
+  public abstract void execute(Interpreter interpreter, Frame frame)
+      throws ProgramDefinitionError;
+}
@@ -24,6 +24,8 @@
 
 package som.interpreter;
 
+import java.util.Arrays;
+
 import som.vm.Universe;
 import som.vmobjects.SAbstractObject;
 import som.vmobjects.SMethod;
@@ -35,7 +37,7 @@ import som.vmobjects.SObject;
  * Frame layout:
  *
  * +-----------------+
- * | Arguments       | 0
+ * | Arguments       | <-- argumentOffset
  * +-----------------+
  * | Local Variables | <-- localOffset
  * +-----------------+
@@ -43,23 +45,78 @@ import som.vmobjects.SObject;
  * | ...             |
  * +-----------------+
  * @formatter:on
+ *
+ * The frames of the interpreter are windows on its value stack. The
+ * arguments of a frame are the elements on top of the stack of the calling
+ * frame, so that they do not need to be copied. A frame captured as context
+ * of a block is moved to a stack array of its own, since the value stack is
+ * reused once the frame returns.
  */
 public class Frame {
 
+  private static final Frame[] NO_CONTEXTS = new Frame[0];
+
   public Frame(final SObject nilObject, final Frame previousFrame,
-      final Frame context, final SMethod method, final long stackElements) {
+      final Frame context, final SMethod method, final SAbstractObject[] stack,
+      final int argumentOffset) {
+    initialize(nilObject, previousFrame, context, method, stack, argumentOffset);
+  }
+
+  /**
+   * Initialize this frame for a new activation. Frames that were not
+   * captured by a block are reused for new activations once they returned.
+   */
+  public void initialize(final SObject nilObject, final Frame previousFrame,
+      final Frame context, final SMethod method, final SAbstractObject[] stack,
+      final int argumentOffset) {
     this.previousFrame = previousFrame;
     this.context = context;
     this.method = method;
-    this.stack = new SAbstractObject[(int) stackElements];
-
-    for (int i = 0; i < stackElements; i++) {
-      stack[i] = nilObject;
+    this.stack = stack;
+    this.argumentOffset = argumentOffset;
+    this.valueStackOffset = argumentOffset;
+    this.onValueStack = true;
+
+    if (context == null) {
+      outerContext = this;
+      contexts = NO_CONTEXTS;
+    } else {
+      outerContext = context.outerContext;
+      contexts = context.getContextsOfBlocks();
     }
+    contextsOfBlocks = null;
 
     // Reset the stack pointer and the bytecode index
     resetStackPointer();
     bytecodeIndex = 0;
+
+    // Initialize the locals, the stack elements are written before they are
+    // read
+    for (int i = localOffset; i <= stackPointer; i++) {
+      stack[i] = nilObject;
+    }
+  }
+
+  private Frame(final Frame frame) {
+    context = frame.context;
+    outerContext = context == null ? this : frame.outerContext;
+    contexts = frame.contexts;
+    method = frame.method;
+    localOffset = frame.localOffset - frame.argumentOffset;
+    valueStackOffset = -1;
+
+    int numberOfVariables = localOffset + method.getNumberOfLocals();
+    stack = Arrays.copyOfRange(frame.stack, frame.argumentOffset,
+        frame.argumentOffset + numberOfVariables);
+    stackPointer = numberOfVariables - 1;
+  }
+
+  /**
+   * @return a copy of the arguments and locals of this frame, with the same
+   *         context, for blocks that only read them
+   */
+  public Frame copyVariables() {
+    return new Frame(this);
   }
 
   public Frame getPreviousFrame() {
@@ -86,34 +143,35 @@ public class Frame {
     return context != null;
   }
 
-  public Frame getContext(int level) {
+  public Frame getContext(final int level) {
     // Get the context frame at the given level
-    Frame frame = this;
-
-    // Iterate through the context chain until the given level is reached
-    while (level > 0) {
-      // Get the context of the current frame
-      frame = frame.getContext();
+    return level == 0 ? this : contexts[level - 1];
+  }
 
-      // Go to the next level
-      level = level - 1;
+  /**
+   * @return the contexts of the frames of the blocks created in this frame,
+   *         which are this frame followed by its own contexts
+   */
+  private Frame[] getContextsOfBlocks() {
+    // only frames captured by blocks are contexts, and they are not reused
+    if (contextsOfBlocks == null) {
+      contextsOfBlocks = new Frame[contexts.length + 1];
+      contextsOfBlocks[0] = this;
+      System.arraycopy(contexts, 0, contextsOfBlocks, 1, contexts.length);
     }
-
-    // Return the found context
-    return frame;
+    return contextsOfBlocks;
   }
 
   public Frame getOuterContext() {
-    // Compute the outer context of this frame
-    Frame frame = this;
-
-    // Iterate through the context chain until null is reached
-    while (frame.hasContext()) {
-      frame = frame.getContext();
-    }
+    // The outer context is the frame of the method the blocks are nested in
+    return outerContext;
+  }
 
-    // Return the outer context
-    return frame;
+  /**
+   * @return self, the first argument of the outer context
+   */
+  public SAbstractObject getReceiver() {
+    return outerContext.stack[outerContext.argumentOffset];
   }
 
   public SMethod getMethod() {
@@ -136,7 +194,7 @@ public class Frame {
 
   public void resetStackPointer() {
     // arguments are stored in front of local variables
-    localOffset = getMethod().getNumberOfArguments();
+    localOffset = argumentOffset + getMethod().getNumberOfArguments();
 
     // Set the stack pointer to its initial value thereby clearing the stack
     stackPointer = localOffset + getMethod().getNumberOfLocals() - 1;
@@ -164,6 +222,63 @@ public class Frame {
     stack[stackPointer - index] = value;
   }
 
+  SAbstractObject[] getStack() {
+    // Expose the stack array to the interpreter, which caches it while
+    // executing this frame
+    return stack;
+  }
+
+  int getArgumentOffset() {
+    return argumentOffset;
+  }
+
+  int getLocalOffset() {
+    return localOffset;
+  }
+
+  boolean isOnValueStack() {
+    return onValueStack;
+  }
+
+  /**
+   * @return the index of the first element of this frame on the value stack,
+   *         even if it moved off the value stack
+   */
+  int getValueStackOffset() {
+    return valueStackOffset;
+  }
+
+  /**
+   * Switch to the given stack array, to which the value stack was grown.
+   */
+  void setValueStack(final SAbstractObject[] valueStack) {
+    stack = valueStack;
+  }
+
+  /**
+   * Move this frame to a stack array of its own, so that it stays valid when
+   * it is captured as context of a block and the value stack is reused. A
+   * captured frame is not reused for other activations either.
+   */
+  public void moveOffValueStack() {
+    if (!onValueStack) {
+      return;
+    }
+    stack = Arrays.copyOfRange(stack, argumentOffset, argumentOffset + method.getFrameLength());
+    localOffset -= argumentOffset;
+    stackPointer -= argumentOffset;
+    argumentOffset = 0;
+    onValueStack = false;
+  }
+
+  int getStackPointer() {
+    return stackPointer;
+  }
+
+  void setStackPointer(final int value) {
+    stackPointer = value;
+  }
+
   private SAbstractObject getLocal(final int index) {
     return stack[localOffset + index];
   }
@@ -188,7 +303,7 @@ public class Frame {
     Frame context = getContext(contextLevel);
 
     // Get the argument with the given index
-    return context.stack[index];
+    return context.stack[context.argumentOffset + index];
   }
 
   public void setArgument(final int index, final int contextLevel,
@@ -197,7 +312,7 @@ public class Frame {
     Frame context = getContext(contextLevel);
 
     // Set the argument with the given index to the given value
-    context.stack[index] = value;
+    context.stack[context.argumentOffset + index] = value;
   }
 
   public void copyArgumentsFrom(final Frame frame) {
@@ -206,7 +321,7 @@ public class Frame {
     // - copy them into the argument area of the current frame
     int numArgs = getMethod().getNumberOfArguments();
     for (int i = 0; i < numArgs; ++i) {
-      stack[i] = frame.getStackElement(numArgs - 1 - i);
+      stack[argumentOffset + i] = frame.getStackElement(numArgs - 1 - i);
     }
   }
 
@@ -225,11 +340,21 @@ public class Frame {
   private int stackPointer;
   private int bytecodeIndex;
 
-  // the offset at which local variables start
+  // the offsets at which the arguments and local variables start
+  private int argumentOffset;
   private int localOffset;
 
-  private final SMethod           method;
-  private final Frame             context;
-  private Frame                   previousFrame;
-  private final SAbstractObject[] stack;
+  private SMethod           method;
+  private Frame             context;
+  private Frame             outerContext;
+  private SAbstractObject[] stack;
+  private Frame             previousFrame;
+
+  // The contexts at the levels 1 and further out, and the ones of the blocks
+  // created in this frame, once it is captured
+  private Frame[] contexts;
+  private Frame[] contextsOfBlocks;
+
+  private boolean onValueStack;
+  private int     valueStackOffset;
 }
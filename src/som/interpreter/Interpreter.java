@@ -26,40 +26,171 @@
 package som.interpreter;
 
 import static som.interpreter.Bytecodes.DUP;
+import static som.interpreter.Bytecodes.DUP_POP_FIELD;
+import static som.interpreter.Bytecodes.DUP_POP_LOCAL;
+import static som.interpreter.Bytecodes.FOR_DOWN_TO;
+import static som.interpreter.Bytecodes.FOR_NEXT;
+import static som.interpreter.Bytecodes.FOR_TO;
 import static som.interpreter.Bytecodes.HALT;
+import static som.interpreter.Bytecodes.JUMP;
+import static som.interpreter.Bytecodes.JUMP_BACKWARD;
+import static som.interpreter.Bytecodes.JUMP_IF_FALSE;
+import static som.interpreter.Bytecodes.JUMP_IF_NIL;
+import static som.interpreter.Bytecodes.JUMP_IF_NOT_NIL;
+import static som.interpreter.Bytecodes.JUMP_IF_TRUE;
 import static som.interpreter.Bytecodes.POP;
 import static som.interpreter.Bytecodes.POP_ARGUMENT;
 import static som.interpreter.Bytecodes.POP_FIELD;
 import static som.interpreter.Bytecodes.POP_LOCAL;
+import static som.interpreter.Bytecodes.POP_PUSH_ARGUMENT;
+import static som.interpreter.Bytecodes.PUSH_0;
+import static som.interpreter.Bytecodes.PUSH_1;
 import static som.interpreter.Bytecodes.PUSH_ARGUMENT;
+import static som.interpreter.Bytecodes.PUSH_ARGUMENT_PUSH_CONSTANT;
+import static som.interpreter.Bytecodes.PUSH_ARGUMENT_PUSH_FIELD;
+import static som.interpreter.Bytecodes.PUSH_ARGUMENT_SEND;
+import static som.interpreter.Bytecodes.PUSH_ARG_1;
+import static som.interpreter.Bytecodes.PUSH_ARG_2;
 import static som.interpreter.Bytecodes.PUSH_BLOCK;
 import static som.interpreter.Bytecodes.PUSH_CONSTANT;
+import static som.interpreter.Bytecodes.PUSH_CONSTANT_SEND;
+import static som.interpreter.Bytecodes.PUSH_FALSE;
 import static som.interpreter.Bytecodes.PUSH_FIELD;
 import static som.interpreter.Bytecodes.PUSH_GLOBAL;
 import static som.interpreter.Bytecodes.PUSH_LOCAL;
+import static som.interpreter.Bytecodes.PUSH_LOCAL_0;
+import static som.interpreter.Bytecodes.PUSH_LOCAL_1;
+import static som.interpreter.Bytecodes.PUSH_LOCAL_2;
+import static som.interpreter.Bytecodes.PUSH_LOCAL_SEND;
+import static som.interpreter.Bytecodes.PUSH_NIL;
+import static som.interpreter.Bytecodes.PUSH_SELF;
+import static som.interpreter.Bytecodes.PUSH_SELF_SEND;
+import static som.interpreter.Bytecodes.PUSH_TRUE;
 import static som.interpreter.Bytecodes.RETURN_LOCAL;
 import static som.interpreter.Bytecodes.RETURN_NON_LOCAL;
+import static som.interpreter.Bytecodes.RETURN_SELF;
 import static som.interpreter.Bytecodes.SEND;
+import static som.interpreter.Bytecodes.SEND_ADD;
+import static som.interpreter.Bytecodes.SEND_EQUAL;
+import static som.interpreter.Bytecodes.SEND_LESS_THAN;
+import static som.interpreter.Bytecodes.SEND_MEGA;
+import static som.interpreter.Bytecodes.SEND_MONO_METHOD;
+import static som.interpreter.Bytecodes.SEND_MONO_PRIMITIVE;
+import static som.interpreter.Bytecodes.SEND_MULTIPLY;
+import static som.interpreter.Bytecodes.SEND_POLY;
+import static som.interpreter.Bytecodes.SEND_SUBTRACT;
 import static som.interpreter.Bytecodes.SUPER_SEND;
 import static som.interpreter.Bytecodes.getBytecodeLength;
+import static som.interpreter.Bytecodes.getFirstComponent;
+import static som.interpreter.Bytecodes.getJumpTarget;
+import static som.interpreter.Bytecodes.getOpcode;
+import static som.interpreter.Bytecodes.getOperandA;
+import static som.interpreter.Bytecodes.getOperandB;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import som.compiler.ProgramDefinitionError;
+import som.vm.GlobalCell;
+import som.vm.LookupCache;
 import som.vm.Universe;
 import som.vmobjects.SAbstractObject;
+import som.vmobjects.SArray;
 import som.vmobjects.SBlock;
 import som.vmobjects.SClass;
+import som.vmobjects.SDouble;
+import som.vmobjects.SInteger;
 import som.vmobjects.SInvokable;
 import som.vmobjects.SMethod;
 import som.vmobjects.SObject;
 import som.vmobjects.SSymbol;
+import som.vmobjects.TrivialMethod;
 
 
 public class Interpreter {
 
   private final Universe universe;
 
+  // Whether to use the basic bytecode loop instead of the register-cached one
+  private boolean useBasicLoop;
+
+  private BytecodeProfiler bytecodeProfiler;
+
+  // Compiles methods after a number of activations, if enabled
+  private BaselineCompiler compiler;
+
+  // Executes methods as trees of nodes instead of bytecodes, if enabled
+  private NodeInterpreter nodeInterpreter;
+
+  public static final int DEFAULT_PIC_SIZE = 8;
+
+  // Number of elements of the value stack, which grows as needed
+  private static final int INITIAL_VALUE_STACK_SIZE = 4096;
+
+  // Number of frames kept for reuse after they returned
+  private static final int MAX_FREE_FRAMES = 256;
+
+  // Number of receiver classes cached per send site before it is megamorphic
+  private int polymorphicCacheSize = DEFAULT_PIC_SIZE;
+
+  private boolean                            reportSendSites;
+  private final List<PolymorphicInlineCache> polymorphicSites = new ArrayList<>();
+
+  // Constants pushed by PUSH_0 and PUSH_1
+  private final SInteger zero;
+  private final SInteger one;
+
   public Interpreter(final Universe universe) {
     this.universe = universe;
+    this.zero = universe.newInteger(0);
+    this.one = universe.newInteger(1);
+  }
+
+  public void setUseBasicLoop(final boolean value) {
+    useBasicLoop = value;
+  }
+
+  /**
+   * Profile the executed bytecodes. Only the basic loop does the profiling.
+   */
+  public void setBytecodeProfiler(final BytecodeProfiler profiler) {
+    bytecodeProfiler = profiler;
+  }
+
+  public BytecodeProfiler getBytecodeProfiler() {
+    return bytecodeProfiler;
+  }
+
+  /**
+   * Compile methods, and blocks, to JVM code after the given number of
+   * activations. Only the register-cached loop executes compiled code.
+   */
+  public void setCompileThreshold(final int threshold) {
+    compiler = new BaselineCompiler(universe, this, threshold);
+  }
+
+  /**
+   * Execute methods, and blocks, as trees of nodes built from their
+   * bytecodes, instead of with a bytecode loop, see {@link NodeInterpreter}.
+   */
+  public void setUseNodeInterpreter(final boolean value) {
+    nodeInterpreter = value ? new NodeInterpreter(universe, this) : null;
+  }
+
+  public void setPolymorphicCacheSize(final int size) {
+    polymorphicCacheSize = size;
+  }
+
+  int getPolymorphicCacheSize() {
+    return polymorphicCacheSize;
+  }
+
+  /**
+   * Keep track of the polymorphic send sites, to report them on exit.
+   */
+  public void setReportSendSites(final boolean value) {
+    reportSendSites = value;
   }
 
   private void doDup() {
@@ -95,9 +226,21 @@ public class Interpreter {
 
     // Push a new block with the current getFrame() as context onto the
     // stack
-    getFrame().push(
-        universe.newBlock(blockMethod, getFrame(),
-            blockMethod.getNumberOfArguments()));
+    getFrame().push(newBlock(getMethod(), bytecodeIndex, blockMethod, getFrame()));
+  }
+
+  /**
+   * Create the block of the PUSH_BLOCK at the given index. A clean block does
+   * not need the frame as context, and is created only once. It is pushed by
+   * PUSH_CONSTANT from then on.
+   */
+  private SBlock newBlock(final SMethod m, final int bytecodeIndex,
+      final SMethod blockMethod, final Frame context) throws ProgramDefinitionError {
+    SBlock block = universe.newBlock(blockMethod, context);
+    if (blockMethod.isCleanBlock()) {
+      m.quickenToConstant(bytecodeIndex, block);
+    }
+    return block;
   }
 
   private void doPushConstant(final int bytecodeIndex) {
@@ -109,8 +252,8 @@ public class Interpreter {
     // Handle the PUSH GLOBAL bytecode
     SSymbol globalName = (SSymbol) getMethod().getConstant(bytecodeIndex);
 
-    // Get the global from the universe
-    SAbstractObject global = universe.getGlobal(globalName);
+    // Get the global from its cell
+    SAbstractObject global = readGlobal(getMethod(), bytecodeIndex, globalName);
 
     if (global != null) {
       // Push the global onto the stack
@@ -121,6 +264,25 @@ public class Interpreter {
     }
   }
 
+  /**
+   * Read the global of the PUSH_GLOBAL at the given index from its cell,
+   * which is cached in the method once the global was set.
+   *
+   * @return the value of the global, or null if it is unknown
+   */
+  private SAbstractObject readGlobal(final SMethod m, final int bytecodeIndex,
+      final SSymbol globalName) {
+    GlobalCell cell = m.getGlobalCell(bytecodeIndex);
+    if (cell == null) {
+      cell = universe.getGlobalCell(globalName);
+      if (cell == null) {
+        return null;
+      }
+      m.setGlobalCell(bytecodeIndex, cell);
+    }
+    return cell.getValue();
+  }
+
   private void doPop() {
     // Handle the POP bytecode
     getFrame().pop();
@@ -148,14 +310,24 @@ public class Interpreter {
 
   private void doSuperSend(final int bytecodeIndex) {
     // Handle the SUPER SEND bytecode
-    SSymbol signature = (SSymbol) getMethod().getConstant(bytecodeIndex);
+    SMethod m = getMethod();
+    SSymbol signature = (SSymbol) m.getConstant(bytecodeIndex);
+
+    // The target changes only with the invokables of the classes, which
+    // advance the version of the lookup cache
+    int version = universe.getLookupCache().getVersion();
+    SInvokable invokable = m.getSuperSendTarget(bytecodeIndex, version);
+    if (invokable == null) {
+      // Lookup the invokable with the given signature
+      SClass holderSuper = (SClass) m.getHolder().getSuperClass();
+      invokable = holderSuper.lookupInvokable(signature);
+      if (invokable != null) {
+        m.setSuperSendTarget(bytecodeIndex, invokable, version);
+      }
+    }
 
     // Send the message
-    // Lookup the invokable with the given signature
-    SClass holderSuper = (SClass) getMethod().getHolder().getSuperClass();
-    SInvokable invokable = holderSuper.lookupInvokable(signature);
-
-    activateOrDnu(signature, invokable);
+    activateOrDnu(m, bytecodeIndex, signature, invokable);
   }
 
   private void doReturnLocal() {
@@ -181,7 +353,7 @@ public class Interpreter {
       // that actually sent the 'value' message.
       SBlock block = (SBlock) getFrame().getArgument(0, 0);
       SAbstractObject sender =
-          getFrame().getPreviousFrame().getOuterContext().getArgument(0, 0);
+          getFrame().getPreviousFrame().getReceiver();
 
       // pop the frame of the currently executing block...
       popFrame();
@@ -207,6 +379,72 @@ public class Interpreter {
     popFrameAndPushResult(result);
   }
 
+  private void doJump(final int bytecodeIndex) {
+    // Handle the JUMP bytecode
+    getFrame().setBytecodeIndex(getJumpTarget(getMethod().getBytecodes(), bytecodeIndex));
+  }
+
+  private void doJumpIf(final int bytecodeIndex, final SObject jumpValue,
+      final SObject otherValue) throws ProgramDefinitionError {
+    // Handle the JUMP IF TRUE and JUMP IF FALSE bytecodes
+    SAbstractObject value = getFrame().getStackElement(0);
+
+    if (value == jumpValue) {
+      getFrame().pop();
+      doJump(bytecodeIndex);
+    } else if (value == otherValue) {
+      getFrame().pop();
+    } else {
+      sendInlinedConditional(bytecodeIndex);
+    }
+  }
+
+  private void doJumpIfNil(final int bytecodeIndex, final boolean jumpIfNil) {
+    // Handle the JUMP IF NIL and JUMP IF NOT NIL bytecodes
+    boolean isNil = getFrame().pop() == universe.nilObject;
+
+    if (isNil == jumpIfNil) {
+      doJump(bytecodeIndex);
+    }
+  }
+
+  private void doForStart(final int bytecodeIndex, final boolean down)
+      throws ProgramDefinitionError {
+    // Handle the FOR TO and FOR DOWN TO bytecodes
+    Frame frame = getFrame();
+    SAbstractObject start = frame.getStackElement(2);
+    SAbstractObject limit = frame.getStackElement(1);
+    long step = getLoopStep(start, limit, frame.getStackElement(0));
+    if (step == 0) {
+      sendInlinedLoop(bytecodeIndex);
+      return;
+    }
+
+    int counter = getMethod().getBytecode(bytecodeIndex + 4);
+    frame.setLocal(counter, 0, start);
+    frame.setLocal(counter + 1, 0, limit);
+    frame.setLocal(counter + 2, 0, universe.newInteger(down ? -step : step));
+    frame.pop();
+    frame.pop();
+
+    if (isPastLimit(((SInteger) start).getEmbeddedInteger(),
+        ((SInteger) limit).getEmbeddedInteger(), down)) {
+      doJump(bytecodeIndex);
+    }
+  }
+
+  private void doForNext(final int bytecodeIndex) {
+    // Handle the FOR NEXT bytecode
+    Frame frame = getFrame();
+    int counter = getMethod().getBytecode(bytecodeIndex + 3);
+    SAbstractObject next = nextLoopCounter(frame.getLocal(counter, 0),
+        frame.getLocal(counter + 1, 0), frame.getLocal(counter + 2, 0));
+    if (next != null) {
+      frame.setLocal(counter, 0, next);
+      doJump(bytecodeIndex);
+    }
+  }
+
   private void doSend(final int bytecodeIndex) {
     // Handle the SEND bytecode
     SSymbol signature = (SSymbol) getMethod().getConstant(bytecodeIndex);
@@ -222,122 +460,1019 @@ public class Interpreter {
   }
 
   public SAbstractObject start() throws ProgramDefinitionError {
+    if (nodeInterpreter != null) {
+      // the nodes do not execute compiled code either
+      compiler = null;
+      return nodeInterpreter.start();
+    }
+    if (useBasicLoop) {
+      // the basic loop does not execute compiled code
+      compiler = null;
+      return startBasic();
+    }
+    return startRegisterCached();
+  }
+
+  private SAbstractObject startBasic() throws ProgramDefinitionError {
     // Iterate through the bytecodes
     while (true) {
 
       // Get the current bytecode index
       int bytecodeIndex = getFrame().getBytecodeIndex();
 
-      // Get the current bytecode
-      byte bytecode = getMethod().getBytecode(bytecodeIndex);
+      if (bytecodeProfiler != null) {
+        bytecodeProfiler.count(getMethod(), bytecodeIndex);
+      }
+
+      SAbstractObject result = executeBytecode(bytecodeIndex);
+      if (result != null) {
+        return result;
+      }
+    }
+  }
+
+  /**
+   * Execute the bytecode at the given index of the current frame, one
+   * component of a superinstruction at a time. Also used by compiled code,
+   * see {@link BaselineCompiler}.
+   *
+   * @return the result on HALT, null otherwise
+   */
+  SAbstractObject executeBytecode(final int bytecodeIndex) throws ProgramDefinitionError {
+    // Get the current bytecode
+    // Superinstructions are executed one component at a time
+    byte bytecode = getFirstComponent(getMethod().getBytecode(bytecodeIndex));
+
+    // Get the length of the current bytecode
+    int bytecodeLength = getBytecodeLength(bytecode);
+
+    // Compute the next bytecode index
+    int nextBytecodeIndex = bytecodeIndex + bytecodeLength;
+
+    // Update the bytecode index of the frame
+    getFrame().setBytecodeIndex(nextBytecodeIndex);
+
+    // Handle the current bytecode
+    switch (bytecode) {
+
+      case HALT: {
+        // Handle the HALT bytecode
+        return getFrame().getStackElement(0);
+      }
+
+      case DUP: {
+        doDup();
+        break;
+      }
+
+      case PUSH_LOCAL: {
+        doPushLocal(bytecodeIndex);
+        break;
+      }
 
-      // Get the length of the current bytecode
-      int bytecodeLength = getBytecodeLength(bytecode);
+      case PUSH_ARGUMENT: {
+        doPushArgument(bytecodeIndex);
+        break;
+      }
 
-      // Compute the next bytecode index
-      int nextBytecodeIndex = bytecodeIndex + bytecodeLength;
+      case PUSH_FIELD: {
+        doPushField(bytecodeIndex);
+        break;
+      }
 
-      // Update the bytecode index of the frame
-      getFrame().setBytecodeIndex(nextBytecodeIndex);
+      case PUSH_BLOCK: {
+        doPushBlock(bytecodeIndex);
+        break;
+      }
 
-      // Handle the current bytecode
-      switch (bytecode) {
+      case PUSH_CONSTANT: {
+        doPushConstant(bytecodeIndex);
+        break;
+      }
+
+      case PUSH_GLOBAL: {
+        doPushGlobal(bytecodeIndex);
+        break;
+      }
 
+      case POP: {
+        doPop();
+        break;
+      }
+
+      case POP_LOCAL: {
+        doPopLocal(bytecodeIndex);
+        break;
+      }
+
+      case POP_ARGUMENT: {
+        doPopArgument(bytecodeIndex);
+        break;
+      }
+
+      case POP_FIELD: {
+        doPopField(bytecodeIndex);
+        break;
+      }
+
+      case SEND:
+      case SEND_MONO_METHOD:
+      case SEND_MONO_PRIMITIVE:
+      case SEND_POLY:
+      case SEND_MEGA:
+      case SEND_ADD:
+      case SEND_SUBTRACT:
+      case SEND_MULTIPLY:
+      case SEND_LESS_THAN:
+      case SEND_EQUAL: {
+        doSend(bytecodeIndex);
+        break;
+      }
+
+      case SUPER_SEND: {
+        doSuperSend(bytecodeIndex);
+        break;
+      }
+
+      case RETURN_LOCAL: {
+        doReturnLocal();
+        break;
+      }
+
+      case RETURN_NON_LOCAL: {
+        doReturnNonLocal();
+        break;
+      }
+
+      case PUSH_SELF: {
+        getFrame().push(getSelf());
+        break;
+      }
+
+      case PUSH_ARG_1: {
+        getFrame().push(getFrame().getArgument(1, 0));
+        break;
+      }
+
+      case PUSH_ARG_2: {
+        getFrame().push(getFrame().getArgument(2, 0));
+        break;
+      }
+
+      case PUSH_LOCAL_0: {
+        getFrame().push(getFrame().getLocal(0, 0));
+        break;
+      }
+
+      case PUSH_LOCAL_1: {
+        getFrame().push(getFrame().getLocal(1, 0));
+        break;
+      }
+
+      case PUSH_LOCAL_2: {
+        getFrame().push(getFrame().getLocal(2, 0));
+        break;
+      }
+
+      case PUSH_NIL: {
+        getFrame().push(universe.nilObject);
+        break;
+      }
+
+      case PUSH_TRUE: {
+        getFrame().push(universe.trueObject);
+        break;
+      }
+
+      case PUSH_FALSE: {
+        getFrame().push(universe.falseObject);
+        break;
+      }
+
+      case PUSH_0: {
+        getFrame().push(zero);
+        break;
+      }
+
+      case PUSH_1: {
+        getFrame().push(one);
+        break;
+      }
+
+      case RETURN_SELF: {
+        popFrameAndPushResult(getFrame().getArgument(0, 0));
+        break;
+      }
+
+      case JUMP:
+      case JUMP_BACKWARD: {
+        doJump(bytecodeIndex);
+        break;
+      }
+
+      case JUMP_IF_TRUE: {
+        doJumpIf(bytecodeIndex, universe.trueObject, universe.falseObject);
+        break;
+      }
+
+      case JUMP_IF_FALSE: {
+        doJumpIf(bytecodeIndex, universe.falseObject, universe.trueObject);
+        break;
+      }
+
+      case JUMP_IF_NIL: {
+        doJumpIfNil(bytecodeIndex, true);
+        break;
+      }
+
+      case JUMP_IF_NOT_NIL: {
+        doJumpIfNil(bytecodeIndex, false);
+        break;
+      }
+
+      case FOR_TO: {
+        doForStart(bytecodeIndex, false);
+        break;
+      }
+
+      case FOR_DOWN_TO: {
+        doForStart(bytecodeIndex, true);
+        break;
+      }
+
+      case FOR_NEXT: {
+        doForNext(bytecodeIndex);
+        break;
+      }
+
+      default:
+        Universe.errorPrintln("Nasty bug in interpreter");
+        break;
+    }
+    return null;
+  }
+
+  /**
+   * Bytecode loop that keeps the state of the current activation in Java locals.
+   *
+   * The frame, its stack array, the stack pointer, the method's instructions,
+   * and the bytecode index are only written back to the frame before sends,
+   * returns, and anything else that may run code or inspect the frame.
+   * Afterwards, the state is reloaded from whatever frame is current.
+   *
+   * Instead of the raw bytecodes, this loop dispatches on the pre-decoded
+   * instructions of a method, which carry the operands and the resolved
+   * literals, see {@link SMethod#getInstructions()}.
+   *
+   * The JVM compiles this loop as one large method, which takes much longer
+   * than compiling the small methods of the basic loop. It compiles it again
+   * whenever the program starts to execute bytecodes that the compiled version
+   * did not see before, for instance a loop after a recursion. Short runs,
+   * especially on a single core, may therefore be faster with the basic loop,
+   * while this loop is faster once it is compiled.
+   */
+  private SAbstractObject startRegisterCached() throws ProgramDefinitionError {
+    while (true) {
+      SAbstractObject result = executeActivation();
+      if (result != null) {
+        return result;
+      }
+    }
+  }
+
+  /**
+   * Execute the current activation until it sends, returns, or halts.
+   * Keeping this in its own method, instead of one loop that never returns,
+   * lets the JVM compile it as a normal method and not only via on-stack
+   * replacement, which recovers badly from deoptimization.
+   *
+   * @return the result on HALT, null otherwise
+   */
+  private SAbstractObject executeActivation() throws ProgramDefinitionError {
+    // Load the state of the current activation
+    final Frame frame = this.frame;
+    final SMethod method = frame.getMethod();
+    final int[] code = method.getInstructions();
+
+    CompiledMethod compiled = method.getCompiledMethod();
+    if (compiled != null && compiled.canResumeAt(frame.getBytecodeIndex())) {
+      compiled.execute(this, frame);
+      return null;
+    }
+
+    final Object[] literals = method.getInstructionLiterals();
+    final SAbstractObject[] stack = frame.getStack();
+    final int argumentOffset = frame.getArgumentOffset();
+    final int localOffset = frame.getLocalOffset();
+
+    int sp = frame.getStackPointer();
+    int bci = frame.getBytecodeIndex();
+
+    while (true) {
+      final int insn = code[bci];
+
+      switch (getOpcode(insn)) {
         case HALT: {
-          // Handle the HALT bytecode
-          return getFrame().getStackElement(0);
+          return stack[sp];
         }
 
         case DUP: {
-          doDup();
+          SAbstractObject top = stack[sp];
+          sp += 1;
+          stack[sp] = top;
+          bci += 1;
           break;
         }
 
         case PUSH_LOCAL: {
-          doPushLocal(bytecodeIndex);
+          int ctx = getOperandB(insn);
+          sp += 1;
+          if (ctx == 0) {
+            stack[sp] = stack[localOffset + getOperandA(insn)];
+          } else {
+            stack[sp] = frame.getLocal(getOperandA(insn), ctx);
+          }
+          bci += 3;
           break;
         }
 
         case PUSH_ARGUMENT: {
-          doPushArgument(bytecodeIndex);
+          int ctx = getOperandB(insn);
+          sp += 1;
+          if (ctx == 0) {
+            stack[sp] = stack[argumentOffset + getOperandA(insn)];
+          } else {
+            stack[sp] = frame.getArgument(getOperandA(insn), ctx);
+          }
+          bci += 3;
           break;
         }
 
         case PUSH_FIELD: {
-          doPushField(bytecodeIndex);
+          SObject self = (SObject) frame.getReceiver();
+          sp += 1;
+          stack[sp] = self.getField(getOperandA(insn));
+          bci += 2;
           break;
         }
 
         case PUSH_BLOCK: {
-          doPushBlock(bytecodeIndex);
+          SMethod blockMethod = (SMethod) literals[bci];
+          frame.setStackPointer(sp);
+          SBlock block = newBlock(method, bci, blockMethod, frame);
+          if (frame.getStack() != stack) {
+            // the block captured the frame, which moved off the value stack
+            frame.push(block);
+            frame.setBytecodeIndex(bci + 2);
+            return null;
+          }
+          sp += 1;
+          stack[sp] = block;
+          bci += 2;
           break;
         }
 
         case PUSH_CONSTANT: {
-          doPushConstant(bytecodeIndex);
+          sp += 1;
+          stack[sp] = (SAbstractObject) literals[bci];
+          bci += 2;
           break;
         }
 
         case PUSH_GLOBAL: {
-          doPushGlobal(bytecodeIndex);
-          break;
+          SSymbol globalName = (SSymbol) literals[bci];
+          SAbstractObject global = readGlobal(method, bci, globalName);
+          bci += 2;
+
+          if (global != null) {
+            sp += 1;
+            stack[sp] = global;
+            break;
+          }
+
+          frame.setStackPointer(sp);
+          frame.setBytecodeIndex(bci);
+          getSelf().sendUnknownGlobal(globalName, universe, this);
+          return null;
         }
 
         case POP: {
-          doPop();
+          sp -= 1;
+          bci += 1;
           break;
         }
 
         case POP_LOCAL: {
-          doPopLocal(bytecodeIndex);
+          int ctx = getOperandB(insn);
+          if (ctx == 0) {
+            stack[localOffset + getOperandA(insn)] = stack[sp];
+          } else {
+            frame.setLocal(getOperandA(insn), ctx, stack[sp]);
+          }
+          sp -= 1;
+          bci += 3;
           break;
         }
 
         case POP_ARGUMENT: {
-          doPopArgument(bytecodeIndex);
+          int ctx = getOperandB(insn);
+          if (ctx == 0) {
+            stack[argumentOffset + getOperandA(insn)] = stack[sp];
+          } else {
+            frame.setArgument(getOperandA(insn), ctx, stack[sp]);
+          }
+          sp -= 1;
+          bci += 3;
           break;
         }
 
         case POP_FIELD: {
-          doPopField(bytecodeIndex);
+          SObject self = (SObject) frame.getReceiver();
+          self.setField(getOperandA(insn), stack[sp]);
+          sp -= 1;
+          bci += 2;
           break;
         }
 
         case SEND: {
-          doSend(bytecodeIndex);
+          SClass receiverClass = stack[sp - getOperandA(insn) + 1].getSOMClass(universe);
+
+          frame.setStackPointer(sp);
+          frame.setBytecodeIndex(bci + 2);
+          sendAndQuicken(method, bci, (SSymbol) literals[bci], receiverClass);
+          return null;
+        }
+
+        case SEND_MONO_METHOD: {
+          SClass receiverClass = stack[sp - getOperandA(insn) + 1].getSOMClass(universe);
+
+          frame.setStackPointer(sp);
+          frame.setBytecodeIndex(bci + 2);
+          if (method.getInlineCacheClass(bci) == receiverClass) {
+            method.getInlineCacheInvokable(bci).invoke(frame, this);
+          } else {
+            sendQuickenedMiss(method, bci, (SSymbol) literals[bci], receiverClass);
+          }
+          return null;
+        }
+
+        case SEND_MONO_PRIMITIVE: {
+          SClass receiverClass = stack[sp - getOperandA(insn) + 1].getSOMClass(universe);
+
+          frame.setStackPointer(sp);
+          frame.setBytecodeIndex(bci + 2);
+          if (method.getInlineCacheClass(bci) != receiverClass) {
+            sendQuickenedMiss(method, bci, (SSymbol) literals[bci], receiverClass);
+            return null;
+          }
+
+          method.getInlineCacheInvokable(bci).invoke(frame, this);
+
+          // Most primitives neither push nor pop frames, and we can just continue
+          // with the updated stack pointer and bytecode index
+          if (this.frame != frame) {
+            return null;
+          }
+          sp = frame.getStackPointer();
+          bci = frame.getBytecodeIndex();
+          break;
+        }
+
+        case SEND_POLY: {
+          SClass receiverClass = stack[sp - getOperandA(insn) + 1].getSOMClass(universe);
+
+          frame.setStackPointer(sp);
+          frame.setBytecodeIndex(bci + 2);
+          SInvokable invokable = method.getPolymorphicCache(bci).lookup(receiverClass);
+          if (invokable != null) {
+            invokable.invoke(frame, this);
+          } else {
+            sendQuickenedMiss(method, bci, (SSymbol) literals[bci], receiverClass);
+          }
+
+          // continue like for primitives if the invokable did not push a frame
+          if (this.frame != frame) {
+            return null;
+          }
+          sp = frame.getStackPointer();
+          bci = frame.getBytecodeIndex();
+          break;
+        }
+
+        case SEND_MEGA: {
+          SSymbol selector = (SSymbol) literals[bci];
+          SClass receiverClass = stack[sp - getOperandA(insn) + 1].getSOMClass(universe);
+
+          frame.setStackPointer(sp);
+          frame.setBytecodeIndex(bci + 2);
+          activateOrDnu(method, bci, selector,
+              lookupMegamorphic(method, bci, selector, receiverClass));
+
+          if (this.frame != frame) {
+            return null;
+          }
+          sp = frame.getStackPointer();
+          bci = frame.getBytecodeIndex();
           break;
         }
 
         case SUPER_SEND: {
-          doSuperSend(bytecodeIndex);
+          frame.setStackPointer(sp);
+          frame.setBytecodeIndex(bci + 2);
+          doSuperSend(bci);
+          return null;
+        }
+
+        case SEND_ADD: {
+          SAbstractObject result = add(stack[sp - 1], stack[sp]);
+          if (result != null) {
+            sp -= 1;
+            stack[sp] = result;
+            bci += 2;
+            break;
+          }
+
+          frame.setStackPointer(sp);
+          frame.setBytecodeIndex(bci + 2);
+          send((SSymbol) literals[bci], stack[sp - 1].getSOMClass(universe), bci);
+          return null;
+        }
+
+        case SEND_SUBTRACT: {
+          SAbstractObject result = subtract(stack[sp - 1], stack[sp]);
+          if (result != null) {
+            sp -= 1;
+            stack[sp] = result;
+            bci += 2;
+            break;
+          }
+
+          frame.setStackPointer(sp);
+          frame.setBytecodeIndex(bci + 2);
+          send((SSymbol) literals[bci], stack[sp - 1].getSOMClass(universe), bci);
+          return null;
+        }
+
+        case SEND_MULTIPLY: {
+          SAbstractObject result = multiply(stack[sp - 1], stack[sp]);
+          if (result != null) {
+            sp -= 1;
+            stack[sp] = result;
+            bci += 2;
+            break;
+          }
+
+          frame.setStackPointer(sp);
+          frame.setBytecodeIndex(bci + 2);
+          send((SSymbol) literals[bci], stack[sp - 1].getSOMClass(universe), bci);
+          return null;
+        }
+
+        case SEND_LESS_THAN: {
+          SAbstractObject result = lessThan(stack[sp - 1], stack[sp]);
+          if (result != null) {
+            sp -= 1;
+            stack[sp] = result;
+            bci += 2;
+            break;
+          }
+
+          frame.setStackPointer(sp);
+          frame.setBytecodeIndex(bci + 2);
+          send((SSymbol) literals[bci], stack[sp - 1].getSOMClass(universe), bci);
+          return null;
+        }
+
+        case SEND_EQUAL: {
+          SAbstractObject result = equal(stack[sp - 1], stack[sp]);
+          if (result != null) {
+            sp -= 1;
+            stack[sp] = result;
+            bci += 2;
+            break;
+          }
+
+          frame.setStackPointer(sp);
+          frame.setBytecodeIndex(bci + 2);
+          send((SSymbol) literals[bci], stack[sp - 1].getSOMClass(universe), bci);
+          return null;
+        }
+
+        case PUSH_SELF_SEND: {
+          sp += 1;
+          stack[sp] = frame.getReceiver();
+          bci += 1;
+
+          SClass receiverClass =
+              stack[sp - getOperandA(code[bci]) + 1].getSOMClass(universe);
+          frame.setStackPointer(sp);
+          frame.setBytecodeIndex(bci + 2);
+          dispatchSend(method, bci, (SSymbol) literals[bci], receiverClass);
+          if (this.frame != frame) {
+            return null;
+          }
+          sp = frame.getStackPointer();
+          bci = frame.getBytecodeIndex();
           break;
         }
 
-        case RETURN_LOCAL: {
-          doReturnLocal();
+        case PUSH_LOCAL_SEND: {
+          int ctx = getOperandB(insn);
+          sp += 1;
+          if (ctx == 0) {
+            stack[sp] = stack[localOffset + getOperandA(insn)];
+          } else {
+            stack[sp] = frame.getLocal(getOperandA(insn), ctx);
+          }
+          bci += 3;
+
+          SClass receiverClass =
+              stack[sp - getOperandA(code[bci]) + 1].getSOMClass(universe);
+          frame.setStackPointer(sp);
+          frame.setBytecodeIndex(bci + 2);
+          dispatchSend(method, bci, (SSymbol) literals[bci], receiverClass);
+          if (this.frame != frame) {
+            return null;
+          }
+          sp = frame.getStackPointer();
+          bci = frame.getBytecodeIndex();
           break;
         }
 
+        case PUSH_ARGUMENT_SEND: {
+          int ctx = getOperandB(insn);
+          sp += 1;
+          if (ctx == 0) {
+            stack[sp] = stack[argumentOffset + getOperandA(insn)];
+          } else {
+            stack[sp] = frame.getArgument(getOperandA(insn), ctx);
+          }
+          bci += 3;
+
+          SClass receiverClass =
+              stack[sp - getOperandA(code[bci]) + 1].getSOMClass(universe);
+          frame.setStackPointer(sp);
+          frame.setBytecodeIndex(bci + 2);
+          dispatchSend(method, bci, (SSymbol) literals[bci], receiverClass);
+          if (this.frame != frame) {
+            return null;
+          }
+          sp = frame.getStackPointer();
+          bci = frame.getBytecodeIndex();
+          break;
+        }
+
+        case PUSH_CONSTANT_SEND: {
+          sp += 1;
+          stack[sp] = (SAbstractObject) literals[bci];
+          bci += 2;
+
+          SClass receiverClass =
+              stack[sp - getOperandA(code[bci]) + 1].getSOMClass(universe);
+          frame.setStackPointer(sp);
+          frame.setBytecodeIndex(bci + 2);
+          dispatchSend(method, bci, (SSymbol) literals[bci], receiverClass);
+          if (this.frame != frame) {
+            return null;
+          }
+          sp = frame.getStackPointer();
+          bci = frame.getBytecodeIndex();
+          break;
+        }
+
+        case PUSH_ARGUMENT_PUSH_CONSTANT: {
+          int ctx = getOperandB(insn);
+          sp += 1;
+          if (ctx == 0) {
+            stack[sp] = stack[argumentOffset + getOperandA(insn)];
+          } else {
+            stack[sp] = frame.getArgument(getOperandA(insn), ctx);
+          }
+          sp += 1;
+          stack[sp] = (SAbstractObject) literals[bci + 3];
+          bci += 5;
+          break;
+        }
+
+        case PUSH_ARGUMENT_PUSH_FIELD: {
+          int ctx = getOperandB(insn);
+          sp += 1;
+          if (ctx == 0) {
+            stack[sp] = stack[argumentOffset + getOperandA(insn)];
+          } else {
+            stack[sp] = frame.getArgument(getOperandA(insn), ctx);
+          }
+          SObject self = (SObject) frame.getReceiver();
+          sp += 1;
+          stack[sp] = self.getField(getOperandA(code[bci + 3]));
+          bci += 5;
+          break;
+        }
+
+        case DUP_POP_LOCAL: {
+          // Store the top of the stack without popping it
+          int popLocal = code[bci + 1];
+          int ctx = getOperandB(popLocal);
+          if (ctx == 0) {
+            stack[localOffset + getOperandA(popLocal)] = stack[sp];
+          } else {
+            frame.setLocal(getOperandA(popLocal), ctx, stack[sp]);
+          }
+          bci += 4;
+          break;
+        }
+
+        case DUP_POP_FIELD: {
+          // Store the top of the stack without popping it
+          SObject self = (SObject) frame.getReceiver();
+          self.setField(getOperandA(code[bci + 1]), stack[sp]);
+          bci += 3;
+          break;
+        }
+
+        case POP_PUSH_ARGUMENT: {
+          // Replace the top of the stack
+          int pushArgument = code[bci + 1];
+          int ctx = getOperandB(pushArgument);
+          if (ctx == 0) {
+            stack[sp] = stack[argumentOffset + getOperandA(pushArgument)];
+          } else {
+            stack[sp] = frame.getArgument(getOperandA(pushArgument), ctx);
+          }
+          bci += 4;
+          break;
+        }
+
+        case PUSH_SELF: {
+          sp += 1;
+          stack[sp] = frame.getReceiver();
+          bci += 1;
+          break;
+        }
+
+        case PUSH_ARG_1: {
+          sp += 1;
+          stack[sp] = stack[argumentOffset + 1];
+          bci += 1;
+          break;
+        }
+
+        case PUSH_ARG_2: {
+          sp += 1;
+          stack[sp] = stack[argumentOffset + 2];
+          bci += 1;
+          break;
+        }
+
+        case PUSH_LOCAL_0: {
+          sp += 1;
+          stack[sp] = stack[localOffset];
+          bci += 1;
+          break;
+        }
+
+        case PUSH_LOCAL_1: {
+          sp += 1;
+          stack[sp] = stack[localOffset + 1];
+          bci += 1;
+          break;
+        }
+
+        case PUSH_LOCAL_2: {
+          sp += 1;
+          stack[sp] = stack[localOffset + 2];
+          bci += 1;
+          break;
+        }
+
+        case PUSH_NIL: {
+          sp += 1;
+          stack[sp] = universe.nilObject;
+          bci += 1;
+          break;
+        }
+
+        case PUSH_TRUE: {
+          sp += 1;
+          stack[sp] = universe.trueObject;
+          bci += 1;
+          break;
+        }
+
+        case PUSH_FALSE: {
+          sp += 1;
+          stack[sp] = universe.falseObject;
+          bci += 1;
+          break;
+        }
+
+        case PUSH_0: {
+          sp += 1;
+          stack[sp] = zero;
+          bci += 1;
+          break;
+        }
+
+        case PUSH_1: {
+          sp += 1;
+          stack[sp] = one;
+          bci += 1;
+          break;
+        }
+
+        case RETURN_LOCAL: {
+          popFrameAndPushResult(stack[sp]);
+          return null;
+        }
+
+        case RETURN_SELF: {
+          popFrameAndPushResult(stack[argumentOffset]);
+          return null;
+        }
+
         case RETURN_NON_LOCAL: {
+          frame.setStackPointer(sp);
+          frame.setBytecodeIndex(bci + 1);
           doReturnNonLocal();
+          return null;
+        }
+
+        case JUMP: {
+          bci += getOperandB(insn);
+          break;
+        }
+
+        case JUMP_BACKWARD: {
+          bci -= getOperandB(insn);
+          break;
+        }
+
+        case JUMP_IF_TRUE: {
+          SAbstractObject value = stack[sp];
+          if (value == universe.trueObject) {
+            sp -= 1;
+            bci += getOperandB(insn);
+          } else if (value == universe.falseObject) {
+            sp -= 1;
+            bci += 4;
+          } else {
+            frame.setStackPointer(sp);
+            sendInlinedConditional(bci);
+            return null;
+          }
+          break;
+        }
+
+        case JUMP_IF_FALSE: {
+          SAbstractObject value = stack[sp];
+          if (value == universe.falseObject) {
+            sp -= 1;
+            bci += getOperandB(insn);
+          } else if (value == universe.trueObject) {
+            sp -= 1;
+            bci += 4;
+          } else {
+            frame.setStackPointer(sp);
+            sendInlinedConditional(bci);
+            return null;
+          }
+          break;
+        }
+
+        case JUMP_IF_NIL: {
+          SAbstractObject value = stack[sp];
+          sp -= 1;
+          bci += value == universe.nilObject ? getOperandB(insn) : 3;
+          break;
+        }
+
+        case JUMP_IF_NOT_NIL: {
+          SAbstractObject value = stack[sp];
+          sp -= 1;
+          bci += value != universe.nilObject ? getOperandB(insn) : 3;
+          break;
+        }
+
+        case FOR_TO:
+        case FOR_DOWN_TO: {
+          SAbstractObject start = stack[sp - 2];
+          SAbstractObject limit = stack[sp - 1];
+          long step = getLoopStep(start, limit, stack[sp]);
+          if (step == 0) {
+            frame.setStackPointer(sp);
+            sendInlinedLoop(bci);
+            return null;
+          }
+
+          boolean down = getOpcode(insn) == FOR_DOWN_TO;
+          int counter = localOffset + getOperandA(insn);
+          stack[counter] = start;
+          stack[counter + 1] = limit;
+          stack[counter + 2] = universe.newInteger(down ? -step : step);
+          sp -= 2;
+
+          bci += isPastLimit(((SInteger) start).getEmbeddedInteger(),
+              ((SInteger) limit).getEmbeddedInteger(), down) ? getOperandB(insn) : 5;
+          break;
+        }
+
+        case FOR_NEXT: {
+          int counter = localOffset + getOperandA(insn);
+          SAbstractObject next =
+              nextLoopCounter(stack[counter], stack[counter + 1], stack[counter + 2]);
+          if (next != null) {
+            stack[counter] = next;
+            bci -= getOperandB(insn);
+          } else {
+            bci += 4;
+          }
           break;
         }
 
         default:
           Universe.errorPrintln("Nasty bug in interpreter");
+          bci += getBytecodeLength(getOpcode(insn));
           break;
       }
     }
   }
 
+  /**
+   * Push a new frame for the given method, of which the arguments are the
+   * top elements of the stack of the current frame. On the value stack, the
+   * new frame starts with them, and they are not copied.
+   */
+  public Frame pushNewFrameWithArguments(final SMethod method, final Frame contextFrame) {
+    Frame caller = frame;
+    int numberOfArguments = method.getNumberOfArguments();
+    if (caller.isOnValueStack()) {
+      return pushNewFrame(method, contextFrame,
+          caller.getStackPointer() - numberOfArguments + 1);
+    }
+
+    // The caller moved off the value stack, which is free from where it was.
+    Frame result = pushNewFrame(method, contextFrame, caller.getValueStackOffset());
+    result.copyArgumentsFrom(caller);
+    return result;
+  }
+
+  /**
+   * Push a new frame for the given method, of which the arguments are nil.
+   */
   public Frame pushNewFrame(final SMethod method, final Frame contextFrame) {
-    // Allocate a new frame and make it the current one
-    frame = universe.newFrame(frame, method, contextFrame);
+    int argumentOffset;
+    if (frame == null) {
+      argumentOffset = 0;
+    } else if (frame.isOnValueStack()) {
+      argumentOffset = frame.getStackPointer() + 1;
+    } else {
+      argumentOffset = frame.getValueStackOffset();
+    }
 
-    // Return the freshly allocated and pushed frame
+    Frame result = pushNewFrame(method, contextFrame, argumentOffset);
+    for (int i = 0; i < method.getNumberOfArguments(); i++) {
+      result.setArgument(i, 0, universe.nilObject);
+    }
+    return result;
+  }
+
+  private Frame pushNewFrame(final SMethod method, final Frame contextFrame,
+      final int argumentOffset) {
+    int end = argumentOffset + method.getFrameLength();
+    if (end > valueStack.length) {
+      growValueStack(end);
+    }
+
+    if (compiler != null && method.countActivation() == compiler.getThreshold()) {
+      method.setCompiledMethod(compiler.compile(method));
+    }
+
+    // Reuse a frame, or allocate a new one, and make it the current one
+    if (numberOfFreeFrames > 0) {
+      numberOfFreeFrames -= 1;
+      Frame result = freeFrames[numberOfFreeFrames];
+      result.initialize(universe.nilObject, frame, contextFrame, method, valueStack,
+          argumentOffset);
+      frame = result;
+    } else {
+      frame = universe.newFrame(frame, method, contextFrame, valueStack, argumentOffset);
+    }
+
+    // Return the pushed frame
     return frame;
   }
 
+  private void growValueStack(final int minimumLength) {
+    valueStack = Arrays.copyOf(valueStack, Math.max(valueStack.length * 2, minimumLength));
+
+    // Only the frames that are executing are still on the value stack
+    for (Frame f = frame; f != null; f = f.getPreviousFrame()) {
+      if (f.isOnValueStack()) {
+        f.setValueStack(valueStack);
+      }
+    }
+  }
+
   public Frame pushNewFrame(final SMethod method) {
     return pushNewFrame(method, null);
   }
@@ -354,7 +1489,7 @@ public class Interpreter {
 
   public SAbstractObject getSelf() {
     // Get the self object from the interpreter
-    return getFrame().getOuterContext().getArgument(0, 0);
+    return getFrame().getReceiver();
   }
 
   private void send(final SSymbol selector, final SClass receiverClass,
@@ -363,30 +1498,373 @@ public class Interpreter {
     SInvokable invokable;
 
     SMethod m = getMethod();
-    SClass cachedClass = m.getInlineCacheClass(bytecodeIndex);
-    if (cachedClass == receiverClass) {
+    if (m.getInlineCacheClass(bytecodeIndex) == receiverClass) {
       invokable = m.getInlineCacheInvokable(bytecodeIndex);
     } else {
-      if (cachedClass == null) {
-        // Lookup the invokable with the given signature
-        invokable = receiverClass.lookupInvokable(selector);
-        m.setInlineCache(bytecodeIndex, receiverClass, invokable);
-      } else {
-        // the bytecode index after the send is used by the selector constant, and can be used
-        // safely as another cache item
-        cachedClass = m.getInlineCacheClass(bytecodeIndex + 1);
-        if (cachedClass == receiverClass) {
-          invokable = m.getInlineCacheInvokable(bytecodeIndex + 1);
+      invokable = lookupAndCache(m, bytecodeIndex, selector, receiverClass);
+    }
+
+    activateOrDnu(m, bytecodeIndex, selector, invokable);
+  }
+
+  /**
+   * Look up the invokable for a send that missed the monomorphic entry of
+   * the inline cache of its send site. The first receiver class is cached in
+   * this entry. The further ones go into the polymorphic inline cache of the
+   * site, until it is full and the site is megamorphic, and then uses only
+   * the global lookup cache.
+   */
+  private SInvokable lookupAndCache(final SMethod m, final int bytecodeIndex,
+      final SSymbol selector, final SClass receiverClass) {
+    SClass cachedClass = m.getInlineCacheClass(bytecodeIndex);
+    if (cachedClass == null) {
+      SInvokable invokable = receiverClass.lookupInvokable(selector);
+      if (invokable != null) {
+        m.setInlineCache(bytecodeIndex, receiverClass, invokable, universe.getLookupCache());
+      }
+      return invokable;
+    }
+
+    PolymorphicInlineCache cache = m.getPolymorphicCache(bytecodeIndex);
+    if (cache == null) {
+      cache = new PolymorphicInlineCache(m, bytecodeIndex, selector, polymorphicCacheSize,
+          cachedClass, m.getInlineCacheInvokable(bytecodeIndex));
+      m.setPolymorphicCache(bytecodeIndex, cache);
+      if (reportSendSites) {
+        polymorphicSites.add(cache);
+      }
+    } else if (!cache.isMegamorphic()) {
+      SInvokable invokable = cache.lookup(receiverClass);
+      if (invokable != null) {
+        return invokable;
+      }
+    }
+
+    return lookupMegamorphic(m, bytecodeIndex, selector, receiverClass);
+  }
+
+  /**
+   * Look up the invokable with the global lookup cache for a send that
+   * missed the polymorphic inline cache of its site, and record the miss.
+   */
+  private SInvokable lookupMegamorphic(final SMethod m, final int bytecodeIndex,
+      final SSymbol selector, final SClass receiverClass) {
+    SInvokable invokable = universe.getLookupCache().lookup(receiverClass, selector);
+    m.getPolymorphicCache(bytecodeIndex).add(receiverClass, invokable);
+    return invokable;
+  }
+
+  /**
+   * Send the message of an inlined control structure when the tested value
+   * is not a boolean, with the inlined blocks as arguments. Execution
+   * continues with the result at the end of the inlined bytecodes, see
+   * MethodGenerationContext#inlineControlStructure.
+   */
+  private void sendInlinedConditional(final int bytecodeIndex)
+      throws ProgramDefinitionError {
+    Frame frame = getFrame();
+    byte[] bytecodes = frame.getMethod().getBytecodes();
+
+    int target = getJumpTarget(bytecodes, bytecodeIndex);
+    if (bytecodes[target - 3] == JUMP_BACKWARD) {
+      // The exit of a loop, which pushes nil. The loop message is sent to the
+      // condition block instead of the value, which it answers first.
+      SAbstractObject condition = frame.pop();
+      frame.setBytecodeIndex(target + 1);
+      sendInlinedSend(bytecodeIndex, condition);
+      return;
+    }
+
+    // the first branch ends with a jump to the end
+    frame.setBytecodeIndex(getJumpTarget(bytecodes, target - 3));
+    sendInlinedSend(bytecodeIndex, null);
+  }
+
+  /**
+   * Send the message of an inlined counted loop when its bounds or step are
+   * not integers. The limit and step the compiler added for messages without
+   * them are dropped, and execution continues after the loop.
+   */
+  private void sendInlinedLoop(final int bytecodeIndex) throws ProgramDefinitionError {
+    Frame frame = getFrame();
+    SMethod m = frame.getMethod();
+    SArray inlinedSend = (SArray) m.getLiteral(m.getBytecode(bytecodeIndex + 3));
+    SSymbol selector = (SSymbol) inlinedSend.getIndexableField(0);
+
+    for (int i = selector.getNumberOfSignatureArguments(); i < 4; i++) {
+      frame.pop();
+    }
+    frame.setBytecodeIndex(getJumpTarget(m.getBytecodes(), bytecodeIndex));
+
+    sendInlinedSend(bytecodeIndex, null);
+  }
+
+  /**
+   * Send the message of the inlined control structure at the given index.
+   * The receiver is the condition block of a loop when the evaluated
+   * condition is given, of which the first evaluation answers it.
+   */
+  private void sendInlinedSend(final int bytecodeIndex, final SAbstractObject condition)
+      throws ProgramDefinitionError {
+    Frame frame = getFrame();
+    SMethod m = frame.getMethod();
+    SArray inlinedSend = (SArray) m.getLiteral(m.getBytecode(bytecodeIndex + 3));
+    SSymbol selector = (SSymbol) inlinedSend.getIndexableField(0);
+
+    for (int i = 1; i < inlinedSend.getNumberOfIndexableFields(); i++) {
+      SMethod blockMethod = (SMethod) inlinedSend.getIndexableField(i);
+      SBlock block = universe.newBlock(blockMethod, frame);
+      if (i == 1 && condition != null) {
+        block = new SBlock.ResumedCondition(block, condition);
+      }
+      frame.push(block);
+    }
+
+    SAbstractObject receiver =
+        frame.getStackElement(selector.getNumberOfSignatureArguments() - 1);
+    send(selector, receiver.getSOMClass(universe), bytecodeIndex);
+  }
+
+  /**
+   * Returns the step of an inlined counted loop, or 0 if the loop needs to be
+   * sent, because its bounds or step are not integers, or the step is not
+   * positive, for which the loops in Integer do not terminate.
+   */
+  static long getLoopStep(final SAbstractObject start, final SAbstractObject limit,
+      final SAbstractObject step) {
+    if (start instanceof SInteger && limit instanceof SInteger && step instanceof SInteger) {
+      long value = ((SInteger) step).getEmbeddedInteger();
+      return value > 0 ? value : 0;
+    }
+    return 0;
+  }
+
+  static boolean isPastLimit(final long counter, final long limit,
+      final boolean down) {
+    return down ? counter < limit : counter > limit;
+  }
+
+  /**
+   * Returns the next value of the counter of an inlined counted loop, or
+   * null if the loop is done. The step of a loop counting down is negative.
+   */
+  private SAbstractObject nextLoopCounter(final SAbstractObject counter,
+      final SAbstractObject limit, final SAbstractObject step) {
+    long c = ((SInteger) counter).getEmbeddedInteger();
+    long s = ((SInteger) step).getEmbeddedInteger();
+    long next = c + s;
+    // on overflow, the counter is past the limit
+    if (((c ^ next) & (s ^ next)) < 0
+        || isPastLimit(next, ((SInteger) limit).getEmbeddedInteger(), s < 0)) {
+      return null;
+    }
+    return universe.newInteger(next);
+  }
+
+  /**
+   * The special sends below compute the result directly for two integers or
+   * two doubles, and return null for all other operands, which need a send.
+   */
+  SAbstractObject add(final SAbstractObject left, final SAbstractObject right) {
+    if (left instanceof SInteger && right instanceof SInteger) {
+      long l = ((SInteger) left).getEmbeddedInteger();
+      long r = ((SInteger) right).getEmbeddedInteger();
+      long result = l + r;
+      // on overflow, the primitive returns a big integer
+      if (((l ^ result) & (r ^ result)) < 0) {
+        return null;
+      }
+      return universe.newInteger(result);
+    }
+    if (left instanceof SDouble && right instanceof SDouble) {
+      return universe.newDouble(
+          ((SDouble) left).getEmbeddedDouble() + ((SDouble) right).getEmbeddedDouble());
+    }
+    return null;
+  }
+
+  SAbstractObject subtract(final SAbstractObject left,
+      final SAbstractObject right) {
+    if (left instanceof SInteger && right instanceof SInteger) {
+      long l = ((SInteger) left).getEmbeddedInteger();
+      long r = ((SInteger) right).getEmbeddedInteger();
+      long result = l - r;
+      // on overflow, the primitive returns a big integer
+      if (((l ^ r) & (l ^ result)) < 0) {
+        return null;
+      }
+      return universe.newInteger(result);
+    }
+    if (left instanceof SDouble && right instanceof SDouble) {
+      return universe.newDouble(
+          ((SDouble) left).getEmbeddedDouble() - ((SDouble) right).getEmbeddedDouble());
+    }
+    return null;
+  }
+
+  SAbstractObject multiply(final SAbstractObject left,
+      final SAbstractObject right) {
+    if (left instanceof SInteger && right instanceof SInteger) {
+      try {
+        return universe.newInteger(Math.multiplyExact(
+            ((SInteger) left).getEmbeddedInteger(), ((SInteger) right).getEmbeddedInteger()));
+      } catch (ArithmeticException e) {
+        // on overflow, the primitive returns a big integer
+        return null;
+      }
+    }
+    if (left instanceof SDouble && right instanceof SDouble) {
+      return universe.newDouble(
+          ((SDouble) left).getEmbeddedDouble() * ((SDouble) right).getEmbeddedDouble());
+    }
+    return null;
+  }
+
+  SAbstractObject lessThan(final SAbstractObject left,
+      final SAbstractObject right) {
+    if (left instanceof SInteger && right instanceof SInteger) {
+      return asBoolean(
+          ((SInteger) left).getEmbeddedInteger() < ((SInteger) right).getEmbeddedInteger());
+    }
+    if (left instanceof SDouble && right instanceof SDouble) {
+      return asBoolean(
+          ((SDouble) left).getEmbeddedDouble() < ((SDouble) right).getEmbeddedDouble());
+    }
+    return null;
+  }
+
+  SAbstractObject equal(final SAbstractObject left, final SAbstractObject right) {
+    if (left instanceof SInteger && right instanceof SInteger) {
+      return asBoolean(
+          ((SInteger) left).getEmbeddedInteger() == ((SInteger) right).getEmbeddedInteger());
+    }
+    if (left instanceof SDouble && right instanceof SDouble) {
+      return asBoolean(
+          ((SDouble) left).getEmbeddedDouble() == ((SDouble) right).getEmbeddedDouble());
+    }
+    return null;
+  }
+
+  private SAbstractObject asBoolean(final boolean value) {
+    return value ? universe.trueObject : universe.falseObject;
+  }
+
+  /**
+   * Send on first execution, and quicken the send for the receiver class.
+   */
+  private void sendAndQuicken(final SMethod m, final int bytecodeIndex,
+      final SSymbol selector, final SClass receiverClass) {
+    SInvokable invokable = receiverClass.lookupInvokable(selector);
+
+    if (invokable != null) {
+      // trivial methods do not push a frame either
+      m.setInlineCache(bytecodeIndex, receiverClass, invokable, universe.getLookupCache());
+      m.quicken(bytecodeIndex,
+          invokable.isPrimitive() || invokable instanceof TrivialMethod
+              ? SEND_MONO_PRIMITIVE : SEND_MONO_METHOD);
+    }
+
+    activateOrDnu(m, bytecodeIndex, selector, invokable);
+  }
+
+  /**
+   * Send according to the current quickened form of the send. This is used
+   * by superinstructions, which end with a send.
+   */
+  private void dispatchSend(final SMethod m, final int bytecodeIndex,
+      final SSymbol selector, final SClass receiverClass) {
+    switch (m.getBytecode(bytecodeIndex)) {
+      case SEND_MONO_METHOD:
+      case SEND_MONO_PRIMITIVE:
+        if (m.getInlineCacheClass(bytecodeIndex) == receiverClass) {
+          m.getInlineCacheInvokable(bytecodeIndex).invoke(frame, this);
         } else {
-          invokable = receiverClass.lookupInvokable(selector);
-          if (cachedClass == null) {
-            m.setInlineCache(bytecodeIndex + 1, receiverClass, invokable);
-          }
+          sendQuickenedMiss(m, bytecodeIndex, selector, receiverClass);
         }
+        break;
+
+      case SEND_POLY: {
+        SInvokable invokable = m.getPolymorphicCache(bytecodeIndex).lookup(receiverClass);
+        if (invokable != null) {
+          invokable.invoke(frame, this);
+        } else {
+          sendQuickenedMiss(m, bytecodeIndex, selector, receiverClass);
+        }
+        break;
       }
+
+      case SEND_MEGA:
+        activateOrDnu(m, bytecodeIndex, selector,
+            lookupMegamorphic(m, bytecodeIndex, selector, receiverClass));
+        break;
+
+      default:
+        sendAndQuicken(m, bytecodeIndex, selector, receiverClass);
+        break;
+    }
+  }
+
+  /**
+   * Handle a send whose quickened form did not match the receiver class.
+   * A monomorphic send becomes polymorphic and uses the polymorphic inline
+   * cache of the site, which becomes megamorphic once the cache is full.
+   */
+  private void sendQuickenedMiss(final SMethod m, final int bytecodeIndex,
+      final SSymbol selector, final SClass receiverClass) {
+    SInvokable invokable = lookupAndCache(m, bytecodeIndex, selector, receiverClass);
+
+    PolymorphicInlineCache cache = m.getPolymorphicCache(bytecodeIndex);
+    if (cache != null) {
+      m.quicken(bytecodeIndex, cache.isMegamorphic() ? SEND_MEGA : SEND_POLY);
     }
 
-    activateOrDnu(selector, invokable);
+    activateOrDnu(m, bytecodeIndex, selector, invokable);
+  }
+
+  /**
+   * Report the send sites that saw more than one receiver class, if enabled,
+   * the ones with the most lookups first, and the use of the lookup cache.
+   */
+  public void reportSendSites() {
+    if (!reportSendSites) {
+      return;
+    }
+
+    polymorphicSites.sort((a, b) -> Long.compare(b.getMisses(), a.getMisses()));
+    Universe.errorPrintln("Polymorphic and megamorphic send sites:");
+    for (PolymorphicInlineCache cache : polymorphicSites) {
+      Universe.errorPrintln(cache.getSiteName() + ": " + cache);
+    }
+
+    LookupCache lookupCache = universe.getLookupCache();
+    Universe.errorPrintln("Lookup cache: " + lookupCache.getHits() + " hits, "
+        + lookupCache.getMisses() + " misses");
+  }
+
+  /**
+   * Activate the invokable of the send at the given index, or send
+   * #doesNotUnderstand:arguments: with the handler cached for the site and
+   * the receiver class.
+   */
+  private void activateOrDnu(final SMethod m, final int bytecodeIndex,
+      final SSymbol selector, final SInvokable invokable) {
+    if (invokable != null) {
+      invokable.invoke(getFrame(), this);
+      return;
+    }
+
+    int numberOfArguments = selector.getNumberOfSignatureArguments();
+    SAbstractObject receiver = frame.getStackElement(numberOfArguments - 1);
+    SClass receiverClass = receiver.getSOMClass(universe);
+
+    int version = universe.getLookupCache().getVersion();
+    SInvokable handler = m.getDnuHandler(bytecodeIndex, receiverClass, version);
+    if (handler == null) {
+      handler = receiverClass.lookupInvokable(universe.doesNotUnderstandSymbol);
+      m.setDnuHandler(bytecodeIndex, receiverClass, handler, version);
+    }
+
+    receiver.sendDoesNotUnderstand(selector, handler, universe, this);
   }
 
   public void activateOrDnu(final SSymbol selector, final SInvokable invokable) {
@@ -403,7 +1881,7 @@ public class Interpreter {
     }
   }
 
-  private Frame popFrame() {
+  Frame popFrame() {
     // Save a reference to the top frame
     Frame result = frame;
 
@@ -413,23 +1891,41 @@ public class Interpreter {
     // Destroy the previous pointer on the old top frame
     result.clearPreviousFrame();
 
+    // Frames captured by blocks moved off the value stack, all others can be
+    // reused. The returned frame stays valid until the next frame is pushed.
+    if (result.isOnValueStack() && numberOfFreeFrames < freeFrames.length) {
+      freeFrames[numberOfFreeFrames] = result;
+      numberOfFreeFrames += 1;
+    }
+
     // Return the popped frame
     return result;
   }
 
   private void popFrameAndPushResult(final SAbstractObject result) {
+    popFrameAndArguments();
+
+    // Push the result
+    getFrame().push(result);
+  }
+
+  /**
+   * Pop the top frame, and its arguments from the stack of the frame below.
+   */
+  void popFrameAndArguments() {
     // Pop the top frame from the interpreter frame stack and compute the
     // number of arguments
     int numberOfArguments = popFrame().getMethod().getNumberOfArguments();
 
     // Pop the arguments
-    for (int i = 0; i < numberOfArguments; i++) {
-      getFrame().pop();
-    }
-
-    // Push the result
-    getFrame().push(result);
+    frame.setStackPointer(frame.getStackPointer() - numberOfArguments);
   }
 
   private Frame frame;
+
+  private SAbstractObject[] valueStack = new SAbstractObject[INITIAL_VALUE_STACK_SIZE];
+
+  // Frames that returned and can be reused
+  private final Frame[] freeFrames = new Frame[MAX_FREE_FRAMES];
+  private int           numberOfFreeFrames;
 }
@@ -0,0 +1,769 @@
+package som.interpreter;
+
+import static som.interpreter.Bytecodes.SEND_ADD;
+import static som.interpreter.Bytecodes.SEND_EQUAL;
+import static som.interpreter.Bytecodes.SEND_LESS_THAN;
+import static som.interpreter.Bytecodes.SEND_MULTIPLY;
+import static som.interpreter.Bytecodes.SEND_SUBTRACT;
+
+import som.compiler.ProgramDefinitionError;
+import som.vm.GlobalCell;
+import som.vm.LookupCache;
+import som.vm.Universe;
+import som.vmobjects.SAbstractObject;
+import som.vmobjects.SArray;
+import som.vmobjects.SBlock;
+import som.vmobjects.SClass;
+import som.vmobjects.SInteger;
+import som.vmobjects.SInvokable;
+import som.vmobjects.SMethod;
+import som.vmobjects.SObject;
+import som.vmobjects.SSymbol;
+
+
+/**
+ * A node of the tree the {@link NodeInterpreter} executes for a method, or
+ * block, instead of its bytecodes. There is a node for each expression, see
+ * {@link NodeCompiler}.
+ *
+ * A node evaluates its children directly. Only the sends use the stack of
+ * the frame, for the receiver and the arguments, just like the bytecodes.
+ * The variables stay in the frame, where the blocks created in it and the
+ * primitives access them.
+ *
+ * Sends, globals, and blocks specialise themselves on execution. A send
+ * caches the invokable for each receiver class it saw, a global its cell,
+ * and a clean block its only instance.
+ */
+public abstract class Node {
+
+  abstract SAbstractObject execute(Frame frame) throws ProgramDefinitionError;
+
+  static final class Literal extends Node {
+    private final SAbstractObject value;
+
+    Literal(final SAbstractObject value) {
+      this.value = value;
+    }
+
+    @Override
+    SAbstractObject execute(final Frame frame) {
+      return value;
+    }
+  }
+
+  static final class Self extends Node {
+    @Override
+    SAbstractObject execute(final Frame frame) {
+      return frame.getReceiver();
+    }
+  }
+
+  static final class ReadArgument extends Node {
+    private final int index;
+    private final int contextLevel;
+
+    ReadArgument(final int index, final int contextLevel) {
+      this.index = index;
+      this.contextLevel = contextLevel;
+    }
+
+    @Override
+    SAbstractObject execute(final Frame frame) {
+      return frame.getArgument(index, contextLevel);
+    }
+  }
+
+  static final class WriteArgument extends Node {
+    private final int  index;
+    private final int  contextLevel;
+    private final Node value;
+
+    WriteArgument(final int index, final int contextLevel, final Node value) {
+      this.index = index;
+      this.contextLevel = contextLevel;
+      this.value = value;
+    }
+
+    @Override
+    SAbstractObject execute(final Frame frame) throws ProgramDefinitionError {
+      SAbstractObject result = value.execute(frame);
+      frame.setArgument(index, contextLevel, result);
+      return result;
+    }
+  }
+
+  static final class ReadLocal extends Node {
+    private final int index;
+    private final int contextLevel;
+
+    ReadLocal(final int index, final int contextLevel) {
+      this.index = index;
+      this.contextLevel = contextLevel;
+    }
+
+    @Override
+    SAbstractObject execute(final Frame frame) {
+      return frame.getLocal(index, contextLevel);
+    }
+  }
+
+  static final class WriteLocal extends Node {
+    private final int  index;
+    private final int  contextLevel;
+    private final Node value;
+
+    WriteLocal(final int index, final int contextLevel, final Node value) {
+      this.index = index;
+      this.contextLevel = contextLevel;
+      this.value = value;
+    }
+
+    @Override
+    SAbstractObject execute(final Frame frame) throws ProgramDefinitionError {
+      SAbstractObject result = value.execute(frame);
+      frame.setLocal(index, contextLevel, result);
+      return result;
+    }
+  }
+
+  static final class ReadField extends Node {
+    private final int index;
+
+    ReadField(final int index) {
+      this.index = index;
+    }
+
+    @Override
+    SAbstractObject execute(final Frame frame) {
+      return ((SObject) frame.getReceiver()).getField(index);
+    }
+  }
+
+  static final class WriteField extends Node {
+    private final int  index;
+    private final Node value;
+
+    WriteField(final int index, final Node value) {
+      this.index = index;
+      this.value = value;
+    }
+
+    @Override
+    SAbstractObject execute(final Frame frame) throws ProgramDefinitionError {
+      SAbstractObject result = value.execute(frame);
+      ((SObject) frame.getReceiver()).setField(index, result);
+      return result;
+    }
+  }
+
+  /**
+   * Reads a global from its cell, which is looked up once the global is set.
+   * An unknown global sends #unknownGlobal: to self instead.
+   */
+  static final class ReadGlobal extends Node {
+    private final SSymbol         name;
+    private final int             nextIndex;
+    private final NodeInterpreter engine;
+    private GlobalCell            cell;
+
+    ReadGlobal(final SSymbol name, final int nextIndex, final NodeInterpreter engine) {
+      this.name = name;
+      this.nextIndex = nextIndex;
+      this.engine = engine;
+    }
+
+    @Override
+    SAbstractObject execute(final Frame frame) throws ProgramDefinitionError {
+      if (cell == null) {
+        cell = engine.universe.getGlobalCell(name);
+        if (cell == null) {
+          return sendUnknownGlobal(frame);
+        }
+      }
+
+      SAbstractObject value = cell.getValue();
+      if (value == null) {
+        return sendUnknownGlobal(frame);
+      }
+      return value;
+    }
+
+    private SAbstractObject sendUnknownGlobal(final Frame frame)
+        throws ProgramDefinitionError {
+      frame.setBytecodeIndex(nextIndex);
+      frame.getReceiver().sendUnknownGlobal(name, engine.universe, engine.interpreter);
+      return engine.completeSend(frame);
+    }
+  }
+
+  /**
+   * Creates a block with the frame as context. A clean block does not need
+   * the context, and its only instance becomes a literal.
+   */
+  static final class BlockLiteral extends Node {
+    private final SMethod  blockMethod;
+    private final Universe universe;
+    private SBlock         cleanBlock;
+
+    BlockLiteral(final SMethod blockMethod, final Universe universe) {
+      this.blockMethod = blockMethod;
+      this.universe = universe;
+    }
+
+    @Override
+    SAbstractObject execute(final Frame frame) throws ProgramDefinitionError {
+      if (cleanBlock != null) {
+        return cleanBlock;
+      }
+
+      SBlock block = universe.newBlock(blockMethod, frame);
+      if (blockMethod.isCleanBlock()) {
+        cleanBlock = block;
+      }
+      return block;
+    }
+  }
+
+  /**
+   * The value pushed onto the stack of the frame by the parent node.
+   */
+  static final class Popped extends Node {
+    @Override
+    SAbstractObject execute(final Frame frame) {
+      return frame.pop();
+    }
+  }
+
+  /**
+   * Executes the statements, and evaluates to the value of the last node,
+   * if any.
+   */
+  static final class Sequence extends Node {
+    private final Node[] statements;
+    private final Node   value;
+
+    Sequence(final Node[] statements, final Node value) {
+      this.statements = statements;
+      this.value = value;
+    }
+
+    @Override
+    SAbstractObject execute(final Frame frame) throws ProgramDefinitionError {
+      for (Node statement : statements) {
+        statement.execute(frame);
+      }
+      return value == null ? null : value.execute(frame);
+    }
+  }
+
+  /**
+   * Sends a message with a polymorphic inline cache. The first receiver
+   * classes are cached with their invokables, up to the size of the
+   * polymorphic inline caches of the interpreter. Once the send saw more
+   * classes, it is megamorphic and looks up the invokables in the lookup
+   * cache. The cache is cleared when a class changes.
+   */
+  static class Send extends Node implements LookupCache.Dependent {
+    private final SSymbol         selector;
+    private final Node[]          arguments;
+    private final int             nextIndex;
+    private final NodeInterpreter engine;
+
+    private CachedDispatch cache;
+    private int            numberOfCachedClasses;
+    private boolean        megamorphic;
+
+    /**
+     * @param arguments the nodes of the receiver and the arguments
+     */
+    Send(final SSymbol selector, final Node[] arguments, final int nextIndex,
+        final NodeInterpreter engine) {
+      this.selector = selector;
+      this.arguments = arguments;
+      this.nextIndex = nextIndex;
+      this.engine = engine;
+    }
+
+    @Override
+    SAbstractObject execute(final Frame frame) throws ProgramDefinitionError {
+      SAbstractObject receiver = arguments[0].execute(frame);
+      frame.push(receiver);
+      for (int i = 1; i < arguments.length; i++) {
+        frame.push(arguments[i].execute(frame));
+      }
+      return send(frame, receiver);
+    }
+
+    /**
+     * Send the message to the given receiver, which is on the stack of the
+     * frame with the arguments.
+     */
+    final SAbstractObject send(final Frame frame, final SAbstractObject receiver)
+        throws ProgramDefinitionError {
+      frame.setBytecodeIndex(nextIndex);
+      SClass receiverClass = receiver.getSOMClass(engine.universe);
+
+      for (CachedDispatch entry = cache; entry != null; entry = entry.next) {
+        if (entry.receiverClass == receiverClass) {
+          return entry.invoke(frame);
+        }
+      }
+      return sendUncached(frame, receiverClass);
+    }
+
+    private SAbstractObject sendUncached(final Frame frame, final SClass receiverClass)
+        throws ProgramDefinitionError {
+      if (megamorphic) {
+        return engine.activate(frame, selector,
+            engine.universe.getLookupCache().lookup(receiverClass, selector));
+      }
+
+      SInvokable invokable = receiverClass.lookupInvokable(selector);
+      if (invokable == null) {
+        // #doesNotUnderstand:arguments: is not cached
+        return engine.activate(frame, selector, null);
+      }
+
+      if (numberOfCachedClasses == engine.interpreter.getPolymorphicCacheSize()) {
+        megamorphic = true;
+        cache = null;
+        return engine.activate(frame, selector, invokable);
+      }
+
+      if (numberOfCachedClasses == 0) {
+        engine.universe.getLookupCache().addDependent(this);
+      }
+      if (NodeInterpreter.isActivatedAsNodes(invokable)) {
+        SMethod method = (SMethod) invokable;
+        cache = new MethodDispatch(receiverClass, cache, method, engine.getRootNode(method),
+            engine);
+      } else {
+        cache = new InvokableDispatch(receiverClass, cache, invokable, engine);
+      }
+      numberOfCachedClasses += 1;
+      return cache.invoke(frame);
+    }
+
+    @Override
+    public void invalidateLookups() {
+      cache = null;
+      numberOfCachedClasses = 0;
+      megamorphic = false;
+    }
+  }
+
+  /**
+   * An entry of the inline cache of a send, for one receiver class.
+   */
+  abstract static class CachedDispatch {
+    final SClass         receiverClass;
+    final CachedDispatch next;
+
+    CachedDispatch(final SClass receiverClass, final CachedDispatch next) {
+      this.receiverClass = receiverClass;
+      this.next = next;
+    }
+
+    abstract SAbstractObject invoke(Frame frame) throws ProgramDefinitionError;
+  }
+
+  /**
+   * Activates a method with its nodes.
+   */
+  static final class MethodDispatch extends CachedDispatch {
+    private final SMethod         method;
+    private final Node            rootNode;
+    private final NodeInterpreter engine;
+
+    MethodDispatch(final SClass receiverClass, final CachedDispatch next,
+        final SMethod method, final Node rootNode, final NodeInterpreter engine) {
+      super(receiverClass, next);
+      this.method = method;
+      this.rootNode = rootNode;
+      this.engine = engine;
+    }
+
+    @Override
+    SAbstractObject invoke(final Frame frame) throws ProgramDefinitionError {
+      return engine.invoke(method, rootNode);
+    }
+  }
+
+  /**
+   * Invokes a primitive, or trivial method, which may push a frame, for
+   * instance to evaluate a block.
+   */
+  static final class InvokableDispatch extends CachedDispatch {
+    private final SInvokable      invokable;
+    private final NodeInterpreter engine;
+
+    InvokableDispatch(final SClass receiverClass, final CachedDispatch next,
+        final SInvokable invokable, final NodeInterpreter engine) {
+      super(receiverClass, next);
+      this.invokable = invokable;
+      this.engine = engine;
+    }
+
+    @Override
+    SAbstractObject invoke(final Frame frame) throws ProgramDefinitionError {
+      invokable.invoke(frame, engine.interpreter);
+      return engine.completeSend(frame);
+    }
+  }
+
+  /**
+   * Computes the result of an arithmetic or comparison send directly for two
+   * integers or two doubles, and sends the message for all other operands.
+   */
+  static final class ArithmeticSend extends Send {
+    private final byte        bytecode;
+    private final Node        left;
+    private final Node        right;
+    private final Interpreter interpreter;
+
+    ArithmeticSend(final byte bytecode, final SSymbol selector, final Node left,
+        final Node right, final int nextIndex, final NodeInterpreter engine) {
+      super(selector, new Node[] {left, right}, nextIndex, engine);
+      this.bytecode = bytecode;
+      this.left = left;
+      this.right = right;
+      this.interpreter = engine.interpreter;
+    }
+
+    @Override
+    SAbstractObject execute(final Frame frame) throws ProgramDefinitionError {
+      SAbstractObject receiver = left.execute(frame);
+      SAbstractObject argument = right.execute(frame);
+
+      SAbstractObject result = compute(receiver, argument);
+      if (result != null) {
+        return result;
+      }
+
+      frame.push(receiver);
+      frame.push(argument);
+      return send(frame, receiver);
+    }
+
+    private SAbstractObject compute(final SAbstractObject receiver,
+        final SAbstractObject argument) {
+      switch (bytecode) {
+        case SEND_ADD:
+          return interpreter.add(receiver, argument);
+        case SEND_SUBTRACT:
+          return interpreter.subtract(receiver, argument);
+        case SEND_MULTIPLY:
+          return interpreter.multiply(receiver, argument);
+        case SEND_LESS_THAN:
+          return interpreter.lessThan(receiver, argument);
+        case SEND_EQUAL:
+          return interpreter.equal(receiver, argument);
+        default:
+          return null;
+      }
+    }
+  }
+
+  /**
+   * Sends a message to super, with the invokable cached until the
+   * invokables of the classes change.
+   */
+  static final class SuperSend extends Node {
+    private final SSymbol         selector;
+    private final Node[]          arguments;
+    private final int             nextIndex;
+    private final SMethod         method;
+    private final NodeInterpreter engine;
+    private SInvokable            invokable;
+    private int                   version;
+
+    SuperSend(final SSymbol selector, final Node[] arguments, final int nextIndex,
+        final SMethod method, final NodeInterpreter engine) {
+      this.selector = selector;
+      this.arguments = arguments;
+      this.nextIndex = nextIndex;
+      this.method = method;
+      this.engine = engine;
+    }
+
+    @Override
+    SAbstractObject execute(final Frame frame) throws ProgramDefinitionError {
+      for (Node argument : arguments) {
+        frame.push(argument.execute(frame));
+      }
+      frame.setBytecodeIndex(nextIndex);
+
+      int currentVersion = engine.universe.getLookupCache().getVersion();
+      if (invokable == null || version != currentVersion) {
+        SClass holderSuper = (SClass) method.getHolder().getSuperClass();
+        invokable = holderSuper.lookupInvokable(selector);
+        version = currentVersion;
+      }
+      return engine.activate(frame, selector, invokable);
+    }
+  }
+
+  /**
+   * An inlined ifTrue:, ifFalse:, ifTrue:ifFalse:, ifFalse:ifTrue:, and:, or
+   * or:. When the condition is not a boolean, the message is sent instead.
+   */
+  static final class Conditional extends Node {
+    private final Node            condition;
+    private final SObject         firstValue;
+    private final SObject         secondValue;
+    private final Node            first;
+    private final Node            second;
+    private final SArray          inlinedSend;
+    private final int             nextIndex;
+    private final NodeInterpreter engine;
+
+    /**
+     * @param ifTrue whether the first branch is taken for true, and the
+     *          second for false, or the other way around
+     */
+    Conditional(final Node condition, final boolean ifTrue, final Node first,
+        final Node second, final SArray inlinedSend, final int nextIndex,
+        final NodeInterpreter engine) {
+      Universe universe = engine.universe;
+      this.condition = condition;
+      this.firstValue = ifTrue ? universe.trueObject : universe.falseObject;
+      this.secondValue = ifTrue ? universe.falseObject : universe.trueObject;
+      this.first = first;
+      this.second = second;
+      this.inlinedSend = inlinedSend;
+      this.nextIndex = nextIndex;
+      this.engine = engine;
+    }
+
+    @Override
+    SAbstractObject execute(final Frame frame) throws ProgramDefinitionError {
+      SAbstractObject value = condition.execute(frame);
+      if (value == firstValue) {
+        return first.execute(frame);
+      }
+      if (value == secondValue) {
+        return second.execute(frame);
+      }
+
+      frame.push(value);
+      return engine.sendInlined(frame, inlinedSend, nextIndex);
+    }
+  }
+
+  /**
+   * An inlined ifNil:, which evaluates to the receiver if it is not nil.
+   */
+  static final class IfNil extends Node {
+    private final Node    receiver;
+    private final Node    block;
+    private final SObject nilObject;
+
+    IfNil(final Node receiver, final Node block, final SObject nilObject) {
+      this.receiver = receiver;
+      this.block = block;
+      this.nilObject = nilObject;
+    }
+
+    @Override
+    SAbstractObject execute(final Frame frame) throws ProgramDefinitionError {
+      SAbstractObject value = receiver.execute(frame);
+      if (value != nilObject) {
+        return value;
+      }
+      return block.execute(frame);
+    }
+  }
+
+  /**
+   * An inlined ifNotNil:, which evaluates to nil if the receiver is nil.
+   * The inlined block starts by popping its argument, the receiver.
+   */
+  static final class IfNotNil extends Node {
+    private final Node    receiver;
+    private final Node    block;
+    private final SObject nilObject;
+
+    IfNotNil(final Node receiver, final Node block, final SObject nilObject) {
+      this.receiver = receiver;
+      this.block = block;
+      this.nilObject = nilObject;
+    }
+
+    @Override
+    SAbstractObject execute(final Frame frame) throws ProgramDefinitionError {
+      SAbstractObject value = receiver.execute(frame);
+      if (value == nilObject) {
+        return value;
+      }
+      frame.push(value);
+      return block.execute(frame);
+    }
+  }
+
+  /**
+   * An inlined whileTrue: or whileFalse:, which evaluates to nil. When the
+   * condition is not a boolean, the message is sent to the condition block
+   * instead, which answers the evaluated condition first.
+   */
+  static final class WhileLoop extends Node {
+    private final Node            condition;
+    private final SObject         continueValue;
+    private final SObject         exitValue;
+    private final Node            body;
+    private final SArray          inlinedSend;
+    private final int             nextIndex;
+    private final NodeInterpreter engine;
+
+    WhileLoop(final Node condition, final boolean whileTrue, final Node body,
+        final SArray inlinedSend, final int nextIndex, final NodeInterpreter engine) {
+      Universe universe = engine.universe;
+      this.condition = condition;
+      this.continueValue = whileTrue ? universe.trueObject : universe.falseObject;
+      this.exitValue = whileTrue ? universe.falseObject : universe.trueObject;
+      this.body = body;
+      this.inlinedSend = inlinedSend;
+      this.nextIndex = nextIndex;
+      this.engine = engine;
+    }
+
+    @Override
+    SAbstractObject execute(final Frame frame) throws ProgramDefinitionError {
+      while (true) {
+        SAbstractObject value = condition.execute(frame);
+        if (value == continueValue) {
+          body.execute(frame);
+        } else if (value == exitValue) {
+          return engine.universe.nilObject;
+        } else {
+          return engine.sendInlined(frame, value, inlinedSend, nextIndex);
+        }
+      }
+    }
+  }
+
+  /**
+   * An inlined to:do:, to:by:do:, downTo:do:, or timesRepeat:, which
+   * evaluates to its receiver. The counter is kept in a local of the frame,
+   * which the body reads. When the bounds or the step are not integers, the
+   * message is sent instead.
+   */
+  static final class CountedLoop extends Node {
+    private final Node            start;
+    private final Node            limit;
+    private final Node            step;
+    private final boolean         down;
+    private final int             counter;
+    private final Node            body;
+    private final SArray          inlinedSend;
+    private final int             nextIndex;
+    private final NodeInterpreter engine;
+
+    CountedLoop(final Node start, final Node limit, final Node step, final boolean down,
+        final int counter, final Node body, final SArray inlinedSend, final int nextIndex,
+        final NodeInterpreter engine) {
+      this.start = start;
+      this.limit = limit;
+      this.step = step;
+      this.down = down;
+      this.counter = counter;
+      this.body = body;
+      this.inlinedSend = inlinedSend;
+      this.nextIndex = nextIndex;
+      this.engine = engine;
+    }
+
+    @Override
+    SAbstractObject execute(final Frame frame) throws ProgramDefinitionError {
+      SAbstractObject startValue = start.execute(frame);
+      SAbstractObject limitValue = limit.execute(frame);
+      SAbstractObject stepValue = step.execute(frame);
+
+      long increment = Interpreter.getLoopStep(startValue, limitValue, stepValue);
+      if (increment == 0) {
+        // the limit and step the compiler added are not arguments
+        int numberOfArguments =
+            ((SSymbol) inlinedSend.getIndexableField(0)).getNumberOfSignatureArguments();
+        frame.push(startValue);
+        if (numberOfArguments > 2) {
+          frame.push(limitValue);
+        }
+        if (numberOfArguments > 3) {
+          frame.push(stepValue);
+        }
+        return engine.sendInlined(frame, inlinedSend, nextIndex);
+      }
+
+      if (down) {
+        increment = -increment;
+      }
+      long i = ((SInteger) startValue).getEmbeddedInteger();
+      long end = ((SInteger) limitValue).getEmbeddedInteger();
+      if (Interpreter.isPastLimit(i, end, down)) {
+        return startValue;
+      }
+
+      frame.setLocal(counter, 0, startValue);
+      while (true) {
+        body.execute(frame);
+
+        long next = i + increment;
+        // on overflow, the counter is past the limit
+        if (((i ^ next) & (increment ^ next)) < 0
+            || Interpreter.isPastLimit(next, end, down)) {
+          return startValue;
+        }
+        i = next;
+        frame.setLocal(counter, 0, engine.universe.newInteger(i));
+      }
+    }
+  }
+
+  static final class ReturnLocal extends Node {
+    private final Node value;
+
+    ReturnLocal(final Node value) {
+      this.value = value;
+    }
+
+    @Override
+    SAbstractObject execute(final Frame frame) throws ProgramDefinitionError {
+      throw new NodeInterpreter.LocalReturn(value.execute(frame));
+    }
+  }
+
+  static final class ReturnNonLocal extends Node {
+    private final Node            value;
+    private final int             nextIndex;
+    private final NodeInterpreter engine;
+
+    ReturnNonLocal(final Node value, final int nextIndex, final NodeInterpreter engine) {
+      this.value = value;
+      this.nextIndex = nextIndex;
+      this.engine = engine;
+    }
+
+    @Override
+    SAbstractObject execute(final Frame frame) throws ProgramDefinitionError {
+      SAbstractObject result = value.execute(frame);
+      frame.setBytecodeIndex(nextIndex);
+      throw engine.returnNonLocal(frame, result);
+    }
+  }
+
+  /**
+   * Executes the bytecodes of a method the compiler builds no nodes for.
+   */
+  static final class BytecodeLoop extends Node {
+    private final NodeInterpreter engine;
+
+    BytecodeLoop(final NodeInterpreter engine) {
+      this.engine = engine;
+    }
+
+    @Override
+    SAbstractObject execute(final Frame frame) throws ProgramDefinitionError {
+      return engine.executeBytecodes(frame);
+    }
+  }
+}
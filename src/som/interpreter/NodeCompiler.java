@@ -0,0 +1,508 @@
+package som.interpreter;
+
+import static som.interpreter.Bytecodes.DUP;
+import static som.interpreter.Bytecodes.FOR_DOWN_TO;
+import static som.interpreter.Bytecodes.FOR_NEXT;
+import static som.interpreter.Bytecodes.FOR_TO;
+import static som.interpreter.Bytecodes.JUMP;
+import static som.interpreter.Bytecodes.JUMP_BACKWARD;
+import static som.interpreter.Bytecodes.JUMP_IF_FALSE;
+import static som.interpreter.Bytecodes.JUMP_IF_NIL;
+import static som.interpreter.Bytecodes.JUMP_IF_NOT_NIL;
+import static som.interpreter.Bytecodes.JUMP_IF_TRUE;
+import static som.interpreter.Bytecodes.POP;
+import static som.interpreter.Bytecodes.POP_ARGUMENT;
+import static som.interpreter.Bytecodes.POP_FIELD;
+import static som.interpreter.Bytecodes.POP_LOCAL;
+import static som.interpreter.Bytecodes.PUSH_0;
+import static som.interpreter.Bytecodes.PUSH_1;
+import static som.interpreter.Bytecodes.PUSH_ARGUMENT;
+import static som.interpreter.Bytecodes.PUSH_ARG_1;
+import static som.interpreter.Bytecodes.PUSH_ARG_2;
+import static som.interpreter.Bytecodes.PUSH_BLOCK;
+import static som.interpreter.Bytecodes.PUSH_CONSTANT;
+import static som.interpreter.Bytecodes.PUSH_FALSE;
+import static som.interpreter.Bytecodes.PUSH_FIELD;
+import static som.interpreter.Bytecodes.PUSH_GLOBAL;
+import static som.interpreter.Bytecodes.PUSH_LOCAL;
+import static som.interpreter.Bytecodes.PUSH_LOCAL_0;
+import static som.interpreter.Bytecodes.PUSH_LOCAL_1;
+import static som.interpreter.Bytecodes.PUSH_LOCAL_2;
+import static som.interpreter.Bytecodes.PUSH_NIL;
+import static som.interpreter.Bytecodes.PUSH_SELF;
+import static som.interpreter.Bytecodes.PUSH_TRUE;
+import static som.interpreter.Bytecodes.RETURN_LOCAL;
+import static som.interpreter.Bytecodes.RETURN_NON_LOCAL;
+import static som.interpreter.Bytecodes.RETURN_SELF;
+import static som.interpreter.Bytecodes.SEND;
+import static som.interpreter.Bytecodes.SEND_ADD;
+import static som.interpreter.Bytecodes.SEND_EQUAL;
+import static som.interpreter.Bytecodes.SEND_LESS_THAN;
+import static som.interpreter.Bytecodes.SEND_MEGA;
+import static som.interpreter.Bytecodes.SEND_MONO_METHOD;
+import static som.interpreter.Bytecodes.SEND_MONO_PRIMITIVE;
+import static som.interpreter.Bytecodes.SEND_MULTIPLY;
+import static som.interpreter.Bytecodes.SEND_POLY;
+import static som.interpreter.Bytecodes.SEND_SUBTRACT;
+import static som.interpreter.Bytecodes.SUPER_SEND;
+import static som.interpreter.Bytecodes.getBytecodeLength;
+import static som.interpreter.Bytecodes.getFirstComponent;
+import static som.interpreter.Bytecodes.getJumpTarget;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import som.vm.Universe;
+import som.vmobjects.SArray;
+import som.vmobjects.SMethod;
+import som.vmobjects.SSymbol;
+
+
+/**
+ * Builds the tree of nodes of a method, or block, from its bytecodes, see
+ * {@link NodeInterpreter}.
+ *
+ * The bytecodes are executed symbolically, with a stack of nodes instead of
+ * values. A bytecode that pushes a value pushes its node, and a send pops
+ * the nodes of its receiver and arguments as children of its own node. A
+ * bytecode that pops a value without pushing one, a store or a POP, ends a
+ * statement. The inlined control structures become nodes with the
+ * sequences of their branches and bodies as children, which are recognized
+ * by the jumps the compiler emits for them, see
+ * MethodGenerationContext#inlineControlStructure.
+ *
+ * A node is only evaluated when its parent is, so the bytecodes of a
+ * statement may not leave any other values on the stack. The bytecodes of
+ * methods that do not have this shape are not turned into nodes, and are
+ * executed one at a time instead.
+ */
+final class NodeCompiler {
+
+  private final Universe        universe;
+  private final NodeInterpreter engine;
+
+  NodeCompiler(final Universe universe, final NodeInterpreter engine) {
+    this.universe = universe;
+    this.engine = engine;
+  }
+
+  Node compile(final SMethod method) {
+    try {
+      return new MethodCompiler(method).compileBody();
+    } catch (IllegalStateException e) {
+      return new Node.BytecodeLoop(engine);
+    }
+  }
+
+  /**
+   * What the bytecodes of a sequence leave on the stack.
+   */
+  private enum Result {
+    // the value of the sequence
+    VALUE,
+
+    // nothing, since the sequence is only executed for its effects
+    NONE,
+
+    // nothing, since the sequence is the body of the method, and returns
+    RETURN
+  }
+
+  private final class MethodCompiler {
+    private final SMethod method;
+    private final byte[]  code;
+
+    // The starts of the inlined loops, to which a JUMP_BACKWARD jumps
+    private final boolean[] loopStarts;
+
+    MethodCompiler(final SMethod method) {
+      this.method = method;
+      this.code = method.getBytecodes();
+      this.loopStarts = new boolean[code.length];
+
+      int i = 0;
+      while (i < code.length) {
+        byte bytecode = getFirstComponent(code[i]);
+        if (bytecode == JUMP_BACKWARD) {
+          loopStarts[getJumpTarget(code, i)] = true;
+        }
+        i += getBytecodeLength(bytecode);
+      }
+    }
+
+    Node compileBody() {
+      return compile(0, code.length, null, Result.RETURN);
+    }
+
+    /**
+     * Build the nodes of the bytecodes from the given start to the given end.
+     *
+     * @param input the node of a value that is on the stack at the start
+     */
+    private Node compile(final int start, final int end, final Node input,
+        final Result result) {
+      List<Node> statements = new ArrayList<>();
+      List<Node> stack = new ArrayList<>();
+      if (input != null) {
+        stack.add(input);
+      }
+
+      int i = start;
+      while (i < end) {
+        int loopEnd = loopStarts[i] ? findLoopEnd(i, end) : -1;
+        if (loopEnd != -1) {
+          i = compileWhileLoop(i, loopEnd, stack);
+          continue;
+        }
+
+        byte bytecode = getFirstComponent(code[i]);
+        int next = i + getBytecodeLength(bytecode);
+
+        switch (bytecode) {
+          case DUP:
+            next = compileDup(i, stack);
+            break;
+
+          case PUSH_LOCAL:
+            stack.add(new Node.ReadLocal(code[i + 1], code[i + 2]));
+            break;
+
+          case PUSH_LOCAL_0:
+          case PUSH_LOCAL_1:
+          case PUSH_LOCAL_2:
+            stack.add(new Node.ReadLocal(bytecode - PUSH_LOCAL_0, 0));
+            break;
+
+          case PUSH_ARGUMENT:
+            stack.add(new Node.ReadArgument(code[i + 1], code[i + 2]));
+            break;
+
+          case PUSH_ARG_1:
+          case PUSH_ARG_2:
+            stack.add(new Node.ReadArgument(bytecode - PUSH_ARG_1 + 1, 0));
+            break;
+
+          case PUSH_SELF:
+            stack.add(new Node.Self());
+            break;
+
+          case PUSH_FIELD:
+            stack.add(new Node.ReadField(code[i + 1]));
+            break;
+
+          case PUSH_BLOCK:
+            stack.add(new Node.BlockLiteral((SMethod) method.getConstant(i), universe));
+            break;
+
+          case PUSH_CONSTANT:
+            stack.add(new Node.Literal(method.getConstant(i)));
+            break;
+
+          case PUSH_GLOBAL:
+            stack.add(new Node.ReadGlobal((SSymbol) method.getConstant(i), next, engine));
+            break;
+
+          case PUSH_NIL:
+            stack.add(new Node.Literal(universe.nilObject));
+            break;
+
+          case PUSH_TRUE:
+            stack.add(new Node.Literal(universe.trueObject));
+            break;
+
+          case PUSH_FALSE:
+            stack.add(new Node.Literal(universe.falseObject));
+            break;
+
+          case PUSH_0:
+            stack.add(new Node.Literal(universe.newInteger(0)));
+            break;
+
+          case PUSH_1:
+            stack.add(new Node.Literal(universe.newInteger(1)));
+            break;
+
+          case POP:
+            addStatement(statements, stack, pop(stack));
+            break;
+
+          case POP_LOCAL:
+          case POP_ARGUMENT:
+          case POP_FIELD:
+            addStatement(statements, stack, store(i, bytecode, pop(stack)));
+            break;
+
+          case SEND:
+          case SEND_MONO_METHOD:
+          case SEND_MONO_PRIMITIVE:
+          case SEND_POLY:
+          case SEND_MEGA: {
+            SSymbol selector = (SSymbol) method.getConstant(i);
+            stack.add(new Node.Send(selector, popArguments(selector, stack), next, engine));
+            break;
+          }
+
+          case SEND_ADD:
+          case SEND_SUBTRACT:
+          case SEND_MULTIPLY:
+          case SEND_LESS_THAN:
+          case SEND_EQUAL: {
+            SSymbol selector = (SSymbol) method.getConstant(i);
+            Node[] arguments = popArguments(selector, stack);
+            stack.add(new Node.ArithmeticSend(bytecode, selector, arguments[0], arguments[1],
+                next, engine));
+            break;
+          }
+
+          case SUPER_SEND: {
+            SSymbol selector = (SSymbol) method.getConstant(i);
+            stack.add(new Node.SuperSend(selector, popArguments(selector, stack), next,
+                method, engine));
+            break;
+          }
+
+          case RETURN_LOCAL:
+          case RETURN_SELF: {
+            Node value = bytecode == RETURN_SELF ? new Node.ReadArgument(0, 0) : pop(stack);
+            if (result == Result.RETURN && stack.isEmpty()) {
+              // the return at the end of the method does not need to unwind
+              stack.add(value);
+              return sequence(statements, stack, Result.VALUE);
+            }
+            addStatement(statements, stack, new Node.ReturnLocal(value));
+            return sequence(statements, null, result);
+          }
+
+          case RETURN_NON_LOCAL:
+            addStatement(statements, stack, new Node.ReturnNonLocal(pop(stack), next, engine));
+            return sequence(statements, null, result);
+
+          case JUMP_IF_TRUE:
+          case JUMP_IF_FALSE:
+            next = compileConditional(i, stack);
+            break;
+
+          case FOR_TO:
+          case FOR_DOWN_TO:
+            next = compileCountedLoop(i, stack);
+            break;
+
+          default:
+            throw new IllegalStateException(
+                "Unexpected bytecode " + Bytecodes.getBytecodeName(bytecode));
+        }
+        i = next;
+      }
+
+      if (i != end || result == Result.RETURN) {
+        throw new IllegalStateException("Unexpected end of a sequence");
+      }
+      return sequence(statements, stack, result);
+    }
+
+    /**
+     * @param stack the remaining nodes on the stack, or null if the
+     *          sequence ended with a return, after which no bytecodes are
+     *          reachable
+     */
+    private Node sequence(final List<Node> statements, final List<Node> stack,
+        final Result result) {
+      Node value;
+      if (stack == null) {
+        value = result == Result.VALUE ? new Node.Literal(universe.nilObject) : null;
+      } else if (result == Result.VALUE && stack.size() == 1) {
+        value = stack.get(0);
+      } else if (result == Result.NONE && stack.isEmpty()) {
+        value = null;
+      } else {
+        throw new IllegalStateException("Unexpected stack at the end of a sequence");
+      }
+
+      if (statements.isEmpty() && value != null) {
+        return value;
+      }
+      return new Node.Sequence(statements.toArray(new Node[0]), value);
+    }
+
+    private void addStatement(final List<Node> statements, final List<Node> stack,
+        final Node statement) {
+      // the nodes on the stack would be evaluated after the statement
+      if (!stack.isEmpty()) {
+        throw new IllegalStateException("Statement within an expression");
+      }
+      statements.add(statement);
+    }
+
+    private Node pop(final List<Node> stack) {
+      if (stack.isEmpty()) {
+        throw new IllegalStateException("Empty stack");
+      }
+      return stack.remove(stack.size() - 1);
+    }
+
+    private Node[] popArguments(final SSymbol selector, final List<Node> stack) {
+      int numberOfArguments = selector.getNumberOfSignatureArguments();
+      if (stack.size() < numberOfArguments) {
+        throw new IllegalStateException("Empty stack");
+      }
+
+      List<Node> arguments = stack.subList(stack.size() - numberOfArguments, stack.size());
+      Node[] result = arguments.toArray(new Node[0]);
+      arguments.clear();
+      return result;
+    }
+
+    private Node store(final int i, final byte bytecode, final Node value) {
+      switch (bytecode) {
+        case POP_LOCAL:
+          return new Node.WriteLocal(code[i + 1], code[i + 2], value);
+        case POP_ARGUMENT:
+          return new Node.WriteArgument(code[i + 1], code[i + 2], value);
+        case POP_FIELD:
+          return new Node.WriteField(code[i + 1], value);
+        default:
+          throw new IllegalStateException(
+              "Unexpected bytecode " + Bytecodes.getBytecodeName(bytecode));
+      }
+    }
+
+    /**
+     * Build the node of an assignment used as expression, which duplicates
+     * the value for each variable, or of an inlined ifNil: or ifNotNil:.
+     *
+     * @return the index after the bytecodes of the node
+     */
+    private int compileDup(final int i, final List<Node> stack) {
+      byte next = getFirstComponent(code[i + 1]);
+      if (next == JUMP_IF_NOT_NIL) {
+        int end = getJumpTarget(code, i + 1);
+        if (getFirstComponent(code[i + 4]) != POP) {
+          throw new IllegalStateException("Unexpected ifNil:");
+        }
+        stack.add(new Node.IfNil(pop(stack), compile(i + 5, end, null, Result.VALUE),
+            universe.nilObject));
+        return end;
+      }
+
+      if (next == JUMP_IF_NIL) {
+        // the inlined block pops the receiver into its argument
+        int end = getJumpTarget(code, i + 1);
+        stack.add(new Node.IfNotNil(pop(stack),
+            compile(i + 4, end, new Node.Popped(), Result.VALUE), universe.nilObject));
+        return end;
+      }
+
+      int j = i;
+      int numberOfVariables = 0;
+      while (getFirstComponent(code[j]) == DUP) {
+        numberOfVariables += 1;
+        j += 1;
+      }
+
+      Node value = pop(stack);
+      for (int k = 0; k < numberOfVariables; k++) {
+        byte bytecode = getFirstComponent(code[j]);
+        value = store(j, bytecode, value);
+        j += getBytecodeLength(bytecode);
+      }
+      stack.add(value);
+      return j;
+    }
+
+    /**
+     * Build the node of an inlined conditional, of which the first branch
+     * ends with a jump over the second one.
+     *
+     * @return the index after the second branch
+     */
+    private int compileConditional(final int i, final List<Node> stack) {
+      int target = getJumpTarget(code, i);
+      int toEnd = target - 3;
+      if (toEnd < i + 4 || getFirstComponent(code[toEnd]) != JUMP) {
+        throw new IllegalStateException("Unexpected conditional");
+      }
+      int end = getJumpTarget(code, toEnd);
+
+      Node condition = pop(stack);
+      Node first = compile(i + 4, toEnd, null, Result.VALUE);
+      Node second = compile(target, end, null, Result.VALUE);
+      stack.add(new Node.Conditional(condition, code[i] == JUMP_IF_FALSE, first, second,
+          (SArray) method.getLiteral(code[i + 3]), i + 4, engine));
+      return end;
+    }
+
+    /**
+     * Get the index of the JUMP_BACKWARD of the loop starting at the given
+     * index, if it ends before the given end. Nested loops may start at the
+     * same index, and the outermost one is returned.
+     *
+     * @return the index, or -1 if there is no such loop
+     */
+    private int findLoopEnd(final int start, final int end) {
+      int result = -1;
+      int i = start;
+      while (i < end) {
+        byte bytecode = getFirstComponent(code[i]);
+        if (bytecode == JUMP_BACKWARD && getJumpTarget(code, i) == start && i + 4 <= end) {
+          result = i;
+        }
+        i += getBytecodeLength(bytecode);
+      }
+      return result;
+    }
+
+    /**
+     * Build the node of an inlined while loop, which consists of the
+     * condition, the exit jump to the nil pushed after the loop, the body,
+     * and the jump back to the condition.
+     *
+     * @return the index after the nil
+     */
+    private int compileWhileLoop(final int start, final int loopEnd,
+        final List<Node> stack) {
+      int exit = -1;
+      int i = start;
+      while (i < loopEnd) {
+        byte bytecode = getFirstComponent(code[i]);
+        if ((bytecode == JUMP_IF_TRUE || bytecode == JUMP_IF_FALSE)
+            && getJumpTarget(code, i) == loopEnd + 3) {
+          exit = i;
+          break;
+        }
+        i += getBytecodeLength(bytecode);
+      }
+      if (exit == -1 || getFirstComponent(code[loopEnd + 3]) != PUSH_NIL) {
+        throw new IllegalStateException("Unexpected loop");
+      }
+
+      Node condition = compile(start, exit, null, Result.VALUE);
+      Node body = compile(exit + 4, loopEnd, null, Result.NONE);
+      stack.add(new Node.WhileLoop(condition, code[exit] == JUMP_IF_FALSE, body,
+          (SArray) method.getLiteral(code[exit + 3]), exit + 4, engine));
+      return loopEnd + 4;
+    }
+
+    /**
+     * Build the node of an inlined counted loop, which starts with the start,
+     * limit, and step on the stack, and of which the body ends with a
+     * FOR_NEXT.
+     *
+     * @return the index after the FOR_NEXT
+     */
+    private int compileCountedLoop(final int i, final List<Node> stack) {
+      int end = getJumpTarget(code, i);
+      int forNext = end - 4;
+      if (forNext < i + 5 || getFirstComponent(code[forNext]) != FOR_NEXT) {
+        throw new IllegalStateException("Unexpected counted loop");
+      }
+
+      Node step = pop(stack);
+      Node limit = pop(stack);
+      Node start = pop(stack);
+      Node body = compile(i + 5, forNext, null, Result.NONE);
+      stack.add(new Node.CountedLoop(start, limit, step, code[i] == FOR_DOWN_TO, code[i + 4],
+          body, (SArray) method.getLiteral(code[i + 3]), i + 5, engine));
+      return end;
+    }
+  }
+}
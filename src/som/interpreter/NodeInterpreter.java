@@ -0,0 +1,352 @@
+package som.interpreter;
+
+import static som.interpreter.Bytecodes.HALT;
+import static som.interpreter.Bytecodes.RETURN_LOCAL;
+import static som.interpreter.Bytecodes.RETURN_NON_LOCAL;
+import static som.interpreter.Bytecodes.RETURN_SELF;
+import static som.interpreter.Bytecodes.getFirstComponent;
+
+import som.compiler.ProgramDefinitionError;
+import som.vm.Universe;
+import som.vmobjects.SAbstractObject;
+import som.vmobjects.SArray;
+import som.vmobjects.SBlock;
+import som.vmobjects.SInvokable;
+import som.vmobjects.SMethod;
+import som.vmobjects.SSymbol;
+import som.vmobjects.TrivialMethod;
+
+
+/**
+ * Executes methods, and blocks, as trees of nodes, which the
+ * {@link NodeCompiler} builds from their bytecodes on first activation. This
+ * is an alternative to the bytecode loops of the {@link Interpreter}.
+ *
+ * The nodes use the frames of the interpreter, and push them the same way,
+ * so that the primitives work unchanged. Other than the interpreter, the
+ * nodes execute an activation with a Java call, which returns its result.
+ * A primitive that pushes a frame, for instance to evaluate a block, leaves
+ * it to the send, which executes the frame before it continues.
+ *
+ * Returns from within an expression, non-local returns, and restarts of
+ * the frame by Block>>#restart unwind the Java stack with exceptions.
+ */
+public final class NodeInterpreter {
+
+  // The nodes need a Java stack deep enough for the deepest recursion of the
+  // program, much deeper than the default one
+  private static final long STACK_SIZE = 1L << 30;
+
+  final Universe    universe;
+  final Interpreter interpreter;
+
+  private final NodeCompiler compiler;
+
+  NodeInterpreter(final Universe universe, final Interpreter interpreter) {
+    this.universe = universe;
+    this.interpreter = interpreter;
+    this.compiler = new NodeCompiler(universe, this);
+  }
+
+  /**
+   * Execute the current frame, and the frames pushed by it, until the
+   * bootstrap frame halts, on a thread with a stack of {@link #STACK_SIZE}.
+   *
+   * @return the result on HALT
+   */
+  SAbstractObject start() throws ProgramDefinitionError {
+    Execution execution = new Execution();
+    Thread thread = new Thread(null, execution, "SOM", STACK_SIZE);
+    thread.start();
+
+    boolean interrupted = false;
+    while (thread.isAlive()) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+
+    Throwable error = execution.error;
+    if (error instanceof ProgramDefinitionError) {
+      throw (ProgramDefinitionError) error;
+    } else if (error instanceof RuntimeException) {
+      throw (RuntimeException) error;
+    } else if (error instanceof Error) {
+      throw (Error) error;
+    }
+    return execution.result;
+  }
+
+  private SAbstractObject executeUntilHalt() throws ProgramDefinitionError {
+    while (true) {
+      Frame frame = interpreter.getFrame();
+      SMethod method = frame.getMethod();
+      if (getFirstComponent(method.getBytecode(frame.getBytecodeIndex())) == HALT) {
+        return frame.getStackElement(0);
+      }
+      execute(frame);
+    }
+  }
+
+  /**
+   * Whether a send activates the given invokable by executing its nodes.
+   * Primitives and trivial methods are invoked as for the interpreter.
+   */
+  static boolean isActivatedAsNodes(final SInvokable invokable) {
+    return invokable instanceof SMethod && !(invokable instanceof TrivialMethod);
+  }
+
+  Node getRootNode(final SMethod method) {
+    Node result = method.getRootNode();
+    if (result == null) {
+      result = compiler.compile(method);
+      method.setRootNode(result);
+    }
+    return result;
+  }
+
+  /**
+   * Activate the given method, of which the receiver and the arguments are
+   * on the stack of the current frame.
+   *
+   * @return the result of the method, which is not pushed
+   */
+  SAbstractObject invoke(final SMethod method, final Node rootNode)
+      throws ProgramDefinitionError {
+    return run(interpreter.pushNewFrameWithArguments(method, null), rootNode);
+  }
+
+  /**
+   * Execute the given frame, which a primitive pushed, and push its result
+   * onto the stack of the frame below.
+   */
+  private void execute(final Frame frame) throws ProgramDefinitionError {
+    Frame caller = frame.getPreviousFrame();
+    caller.push(run(frame, getRootNode(frame.getMethod())));
+  }
+
+  /**
+   * Execute the nodes of the given frame, which is the current one, and pop
+   * it with its arguments.
+   */
+  private SAbstractObject run(final Frame frame, final Node rootNode)
+      throws ProgramDefinitionError {
+    SAbstractObject result;
+    while (true) {
+      try {
+        result = rootNode.execute(frame);
+        break;
+      } catch (LocalReturn e) {
+        result = e.result;
+        break;
+      } catch (NonLocalReturn e) {
+        if (e.context != frame) {
+          interpreter.popFrame();
+          throw e;
+        }
+        result = e.result;
+        break;
+      } catch (Restart e) {
+        // the frame was reset, and is executed from the start again
+      }
+    }
+
+    interpreter.popFrameAndArguments();
+    return result;
+  }
+
+  /**
+   * Activate the given invokable, or send #doesNotUnderstand:arguments: if
+   * it is null, for the receiver and the arguments on the stack of the
+   * given frame.
+   *
+   * @return the result, which is not on the stack
+   */
+  SAbstractObject activate(final Frame frame, final SSymbol selector,
+      final SInvokable invokable) throws ProgramDefinitionError {
+    if (isActivatedAsNodes(invokable)) {
+      SMethod method = (SMethod) invokable;
+      return invoke(method, getRootNode(method));
+    }
+
+    interpreter.activateOrDnu(selector, invokable);
+    return completeSend(frame);
+  }
+
+  /**
+   * Complete a send of the given frame to a primitive, or any other invokable
+   * that does not return its result directly. The frames it pushed are
+   * executed until the given frame is the current one again.
+   *
+   * @return the result, which is popped from the stack
+   */
+  SAbstractObject completeSend(final Frame frame) throws ProgramDefinitionError {
+    // the sends set the bytecode index, which only Block>>#restart resets
+    if (frame.getBytecodeIndex() == 0) {
+      throw Restart.INSTANCE;
+    }
+
+    Frame current = interpreter.getFrame();
+    while (current != frame) {
+      execute(current);
+      current = interpreter.getFrame();
+    }
+    return frame.pop();
+  }
+
+  /**
+   * Send the message of an inlined control structure, of which the values
+   * that are not blocks are on the stack, with the inlined blocks as
+   * arguments.
+   */
+  SAbstractObject sendInlined(final Frame frame, final SArray inlinedSend,
+      final int nextIndex) throws ProgramDefinitionError {
+    return sendInlined(frame, null, inlinedSend, nextIndex);
+  }
+
+  /**
+   * Send the message of an inlined loop, of which the condition evaluated
+   * to the given value that is not a boolean. The receiver is the condition
+   * block, of which the first evaluation answers the value.
+   */
+  SAbstractObject sendInlined(final Frame frame, final SAbstractObject condition,
+      final SArray inlinedSend, final int nextIndex) throws ProgramDefinitionError {
+    frame.setBytecodeIndex(nextIndex);
+    SSymbol selector = (SSymbol) inlinedSend.getIndexableField(0);
+
+    for (int i = 1; i < inlinedSend.getNumberOfIndexableFields(); i++) {
+      SMethod blockMethod = (SMethod) inlinedSend.getIndexableField(i);
+      SBlock block = universe.newBlock(blockMethod, frame);
+      if (i == 1 && condition != null) {
+        block = new SBlock.ResumedCondition(block, condition);
+      }
+      frame.push(block);
+    }
+
+    SAbstractObject receiver =
+        frame.getStackElement(selector.getNumberOfSignatureArguments() - 1);
+    return activate(frame, selector,
+        universe.getLookupCache().lookup(receiver.getSOMClass(universe), selector));
+  }
+
+  /**
+   * Get the exception that returns the given result from the method of the
+   * given block frame.
+   *
+   * When the method returned already, #escapedBlock: is sent to the sender
+   * of the block, as by the interpreter, and the block returns its result.
+   */
+  ControlFlowException returnNonLocal(final Frame frame, final SAbstractObject result)
+      throws ProgramDefinitionError {
+    Frame context = frame.getOuterContext();
+    if (context.hasPreviousFrame()) {
+      return new NonLocalReturn(context, result);
+    }
+
+    SBlock block = (SBlock) frame.getArgument(0, 0);
+    SAbstractObject sender = frame.getPreviousFrame().getReceiver();
+    sender.sendEscapedBlock(block, universe, interpreter);
+    return new LocalReturn(completeSend(frame));
+  }
+
+  /**
+   * Execute the bytecodes of the given frame one at a time, for a method the
+   * compiler builds no nodes for. The frames pushed by its sends are
+   * executed with their nodes, and the returns unwind like the ones of the
+   * nodes.
+   *
+   * @return the result of the frame, which is not popped
+   */
+  SAbstractObject executeBytecodes(final Frame frame) throws ProgramDefinitionError {
+    SMethod method = frame.getMethod();
+    while (true) {
+      Frame current = interpreter.getFrame();
+      if (current != frame) {
+        execute(current);
+        continue;
+      }
+
+      int bytecodeIndex = frame.getBytecodeIndex();
+      switch (getFirstComponent(method.getBytecode(bytecodeIndex))) {
+        case RETURN_LOCAL:
+          return frame.pop();
+        case RETURN_SELF:
+          return frame.getArgument(0, 0);
+        case RETURN_NON_LOCAL:
+          frame.setBytecodeIndex(bytecodeIndex + 1);
+          throw returnNonLocal(frame, frame.pop());
+        default:
+          interpreter.executeBytecode(bytecodeIndex);
+          break;
+      }
+    }
+  }
+
+  /**
+   * Unwinds the Java stack, without the cost of a stack trace.
+   */
+  abstract static class ControlFlowException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    ControlFlowException() {
+      super(null, null, false, false);
+    }
+  }
+
+  /**
+   * Returns the result from the frame of the node that throws it.
+   */
+  static final class LocalReturn extends ControlFlowException {
+    private static final long serialVersionUID = 1L;
+
+    final transient SAbstractObject result;
+
+    LocalReturn(final SAbstractObject result) {
+      this.result = result;
+    }
+  }
+
+  /**
+   * Returns the result from the given frame, the outer context of the block
+   * that throws it. The frames in between are popped.
+   */
+  static final class NonLocalReturn extends ControlFlowException {
+    private static final long serialVersionUID = 1L;
+
+    final transient Frame           context;
+    final transient SAbstractObject result;
+
+    NonLocalReturn(final Frame context, final SAbstractObject result) {
+      this.context = context;
+      this.result = result;
+    }
+  }
+
+  /**
+   * Executes the frame of the node that throws it from the start again.
+   */
+  static final class Restart extends ControlFlowException {
+    private static final long serialVersionUID = 1L;
+
+    static final Restart INSTANCE = new Restart();
+  }
+
+  private final class Execution implements Runnable {
+    private SAbstractObject result;
+    private Throwable       error;
+
+    @Override
+    public void run() {
+      try {
+        result = executeUntilHalt();
+      } catch (Throwable e) {
+        error = e;
+      }
+    }
+  }
+}
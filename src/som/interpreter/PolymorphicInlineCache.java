@@ -0,0 +1,115 @@
+package som.interpreter;
+
+import som.vmobjects.SClass;
+import som.vmobjects.SInvokable;
+import som.vmobjects.SMethod;
+import som.vmobjects.SSymbol;
+
+
+/**
+ * The receiver classes of a send site that saw more than one of them, with
+ * the invokables they resolve to. When a site sees more classes than the
+ * cache has entries, it becomes megamorphic and stops caching, and its sends
+ * go to the global lookup cache instead.
+ */
+public final class PolymorphicInlineCache {
+
+  /**
+   * Create the cache of a monomorphic send site, with its cached entry.
+   */
+  public PolymorphicInlineCache(final SMethod method, final int bytecodeIndex,
+      final SSymbol selector, final int size, final SClass firstClass,
+      final SInvokable firstInvokable) {
+    this.method = method;
+    this.bytecodeIndex = bytecodeIndex;
+    this.selector = selector;
+    classes = new SClass[Math.max(size, 1)];
+    invokables = new SInvokable[classes.length];
+
+    classes[0] = firstClass;
+    invokables[0] = firstInvokable;
+    numberOfEntries = 1;
+    misses = 1;
+  }
+
+  /**
+   * @return the cached invokable for the given class, or null
+   */
+  public SInvokable lookup(final SClass receiverClass) {
+    for (int i = 0; i < numberOfEntries; i++) {
+      if (classes[i] == receiverClass) {
+        return invokables[i];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Add an entry for a receiver class that missed the cache, or make the
+   * cache megamorphic when it is full. Failed lookups are not cached.
+   */
+  public void add(final SClass receiverClass, final SInvokable invokable) {
+    misses += 1;
+    if (megamorphic || invokable == null) {
+      return;
+    }
+
+    if (numberOfEntries == classes.length) {
+      megamorphic = true;
+      return;
+    }
+
+    classes[numberOfEntries] = receiverClass;
+    invokables[numberOfEntries] = invokable;
+    numberOfEntries += 1;
+  }
+
+  public boolean isMegamorphic() {
+    return megamorphic;
+  }
+
+  public int getNumberOfEntries() {
+    return numberOfEntries;
+  }
+
+  /**
+   * @return the number of sends that were not handled by the cache,
+   *         including the ones that added entries
+   */
+  public long getMisses() {
+    return misses;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder result = new StringBuilder();
+    result.append(megamorphic ? "megamorphic" : numberOfEntries + "-way");
+    result.append(", misses: ").append(misses).append(", cached: ");
+    for (int i = 0; i < numberOfEntries; i++) {
+      if (i > 0) {
+        result.append(", ");
+      }
+      result.append(classes[i].getName().getEmbeddedString());
+    }
+    return result.toString();
+  }
+
+  /**
+   * Describe the send site, for reporting.
+   */
+  public String getSiteName() {
+    String holder = method.getHolder() == null ? "?"
+        : method.getHolder().getName().getEmbeddedString();
+    return holder + ">>" + method.getSignature().getEmbeddedString() + " @"
+        + bytecodeIndex + " #" + selector.getEmbeddedString();
+  }
+
+  private final SMethod      method;
+  private final int          bytecodeIndex;
+  private final SSymbol      selector;
+  private final SClass[]     classes;
+  private final SInvokable[] invokables;
+  private int                numberOfEntries;
+  private boolean            megamorphic;
+  private long               misses;
+}
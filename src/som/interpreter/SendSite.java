@@ -0,0 +1,131 @@
+package som.interpreter;
+
+import static java.lang.invoke.MethodType.methodType;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+
+import som.vm.LookupCache;
+import som.vm.Universe;
+import som.vmobjects.SAbstractObject;
+import som.vmobjects.SClass;
+import som.vmobjects.SInvokable;
+import som.vmobjects.SPrimitive;
+import som.vmobjects.SSymbol;
+
+
+/**
+ * A send site of compiled code, see {@link BaselineCompiler}.
+ *
+ * The target of the site tests the class of the receiver against the
+ * classes seen so far, one guard per class, and invokes the invokable of
+ * the matching class directly. Since the JVM treats the target as a
+ * constant, it can inline the invokable, in particular a primitive, into
+ * the compiled code. A receiver of another class relinks the site. Once the
+ * site saw more classes than a polymorphic inline cache holds, it is
+ * megamorphic, and the interpreter sends the message. When a class changes,
+ * the lookup cache resets the site to relink for the next receiver.
+ *
+ * The target takes the receiver, the interpreter, and the frame of the
+ * send, with the arguments on its stack.
+ */
+final class SendSite extends MutableCallSite implements LookupCache.Dependent {
+
+  static final MethodType TYPE =
+      methodType(void.class, SAbstractObject.class, Interpreter.class, Frame.class);
+
+  private static final MethodHandle INVOKE;
+  private static final MethodHandle IS_CLASS;
+  private static final MethodHandle RELINK;
+  private static final MethodHandle SEND;
+
+  static {
+    MethodHandles.Lookup lookup = MethodHandles.lookup();
+    try {
+      INVOKE = lookup.findVirtual(SInvokable.class, "invoke",
+          methodType(void.class, Frame.class, Interpreter.class));
+      IS_CLASS = lookup.findStatic(SendSite.class, "isClass", methodType(boolean.class,
+          SClass.class, Universe.class, SAbstractObject.class));
+      RELINK = lookup.findVirtual(SendSite.class, "relinkAndSend", TYPE);
+      SEND = lookup.findVirtual(SendSite.class, "send", TYPE);
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private final SSymbol      selector;
+  private final int          bytecodeIndex;
+  private final Universe     universe;
+  private final int          maxClasses;
+  private final MethodHandle relink;
+  private int                numberOfClasses;
+
+  SendSite(final SSymbol selector, final int bytecodeIndex, final Universe universe,
+      final int maxClasses) {
+    super(TYPE);
+    this.selector = selector;
+    this.bytecodeIndex = bytecodeIndex;
+    this.universe = universe;
+    this.maxClasses = maxClasses;
+    relink = RELINK.bindTo(this);
+    setTarget(relink);
+  }
+
+  private static boolean isClass(final SClass expected, final Universe universe,
+      final SAbstractObject receiver) {
+    return receiver.getSOMClass(universe) == expected;
+  }
+
+  /**
+   * Add a guard for the class of the given receiver, unless the site is
+   * megamorphic or the class does not understand the message, and send it.
+   */
+  private void relinkAndSend(final SAbstractObject receiver, final Interpreter interpreter,
+      final Frame frame) throws Throwable {
+    SClass receiverClass = receiver.getSOMClass(universe);
+    SInvokable invokable = receiverClass.lookupInvokable(selector);
+
+    if (numberOfClasses == maxClasses) {
+      setTarget(SEND.bindTo(this));
+    } else if (invokable != null) {
+      MethodHandle invoker = MethodHandles.permuteArguments(
+          MethodHandles.dropArguments(getInvoker(invokable), 0, SAbstractObject.class),
+          TYPE, 0, 2, 1);
+      if (numberOfClasses == 0) {
+        universe.getLookupCache().addDependent(this);
+      }
+      setTarget(MethodHandles.guardWithTest(
+          MethodHandles.insertArguments(IS_CLASS, 0, receiverClass, universe), invoker,
+          getTarget()));
+      numberOfClasses += 1;
+      invoker.invokeExact(receiver, interpreter, frame);
+      return;
+    }
+
+    send(receiver, interpreter, frame);
+  }
+
+  @Override
+  public void invalidateLookups() {
+    numberOfClasses = 0;
+    setTarget(relink);
+  }
+
+  private static MethodHandle getInvoker(final SInvokable invokable) {
+    if (invokable instanceof SPrimitive) {
+      return ((SPrimitive) invokable).getInvoker();
+    }
+    return INVOKE.bindTo(invokable);
+  }
+
+  /**
+   * Send the message with the inline caches of the interpreter, which also
+   * handle #doesNotUnderstand:arguments:.
+   */
+  private void send(final SAbstractObject receiver, final Interpreter interpreter,
+      final Frame frame) throws Throwable {
+    interpreter.executeBytecode(bytecodeIndex);
+  }
+}
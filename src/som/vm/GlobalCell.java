@@ -0,0 +1,30 @@
+package som.vm;
+
+import som.vmobjects.SAbstractObject;
+
+
+/**
+ * The association of a global with its value. Each global has one cell,
+ * which setting the global updates, so that PUSH_GLOBAL can cache the cell
+ * instead of looking up the global in the dictionary of globals each time.
+ */
+public final class GlobalCell {
+
+  public GlobalCell(final SAbstractObject value) {
+    this.value = value;
+  }
+
+  /**
+   * @return the value of the global, or null if it is not known, for
+   *         instance because loading its class failed
+   */
+  public SAbstractObject getValue() {
+    return value;
+  }
+
+  public void setValue(final SAbstractObject value) {
+    this.value = value;
+  }
+
+  private SAbstractObject value;
+}
@@ -0,0 +1,121 @@
+package som.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import som.vmobjects.SClass;
+import som.vmobjects.SInvokable;
+import som.vmobjects.SSymbol;
+
+
+/**
+ * The method lookup cache of the VM, used for all lookups of invokables in
+ * classes, i.e., by sends that miss their inline caches, super sends,
+ * perform:, and the primitives. It is a fixed-size open-addressed table
+ * keyed by the identity of the class and the selector. A lookup probes a
+ * few consecutive entries, and a miss replaces the first of them if none is
+ * free. Failed lookups are cached as well.
+ *
+ * A change of the invokables or the superclass of a class can change the
+ * lookups of all its subclasses. Since such changes are rare once the
+ * classes are loaded, they simply clear the whole cache. They also advance
+ * its version, against which lookup results cached elsewhere, such as the
+ * targets of super sends, are checked. The inline caches of send sites are
+ * not checked on each send, but registered as dependents, which are
+ * cleared with the cache.
+ */
+public final class LookupCache {
+
+  // needs to be a power of two
+  private static final int SIZE       = 4096;
+  private static final int MAX_PROBES = 4;
+
+  public SInvokable lookup(final SClass receiverClass, final SSymbol selector) {
+    int first = (System.identityHashCode(receiverClass) * 31
+        + System.identityHashCode(selector)) & (SIZE - 1);
+
+    int free = -1;
+    for (int i = 0; i < MAX_PROBES; i++) {
+      int index = (first + i) & (SIZE - 1);
+      SClass cachedClass = classes[index];
+      if (cachedClass == receiverClass && selectors[index] == selector) {
+        hits += 1;
+        return invokables[index];
+      }
+      if (cachedClass == null) {
+        free = index;
+        break;
+      }
+    }
+
+    misses += 1;
+    SInvokable invokable = receiverClass.lookupInvokableUncached(selector);
+
+    int index = free == -1 ? first : free;
+    classes[index] = receiverClass;
+    selectors[index] = selector;
+    invokables[index] = invokable;
+    empty = false;
+    return invokable;
+  }
+
+  public int getVersion() {
+    return version;
+  }
+
+  /**
+   * A cache of lookup results outside of this cache, such as the inline
+   * cache of a send site.
+   */
+  public interface Dependent {
+
+    /**
+     * Forget the cached lookups. The dependent is registered again when it
+     * caches the next lookup.
+     */
+    void invalidateLookups();
+  }
+
+  /**
+   * Register a dependent that cached its first lookup since it was created
+   * or last invalidated.
+   */
+  public void addDependent(final Dependent dependent) {
+    dependents.add(dependent);
+  }
+
+  public void invalidate() {
+    version += 1;
+    for (Dependent dependent : dependents) {
+      dependent.invalidateLookups();
+    }
+    dependents.clear();
+
+    if (empty) {
+      return;
+    }
+    Arrays.fill(classes, null);
+    Arrays.fill(selectors, null);
+    Arrays.fill(invokables, null);
+    empty = true;
+  }
+
+  public long getHits() {
+    return hits;
+  }
+
+  public long getMisses() {
+    return misses;
+  }
+
+  private final SClass[]        classes    = new SClass[SIZE];
+  private final SSymbol[]       selectors  = new SSymbol[SIZE];
+  private final SInvokable[]    invokables = new SInvokable[SIZE];
+  private final List<Dependent> dependents = new ArrayList<>();
+  private boolean               empty      = true;
+  private int                   version    = 1;
+
+  private long hits;
+  private long misses;
+}
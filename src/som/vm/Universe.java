@@ -38,6 +38,7 @@ import java.util.StringTokenizer;
 import som.compiler.Disassembler;
 import som.compiler.ProgramDefinitionError;
 import som.compiler.SourcecodeCompiler;
+import som.interpreter.BytecodeProfiler;
 import som.interpreter.Frame;
 import som.interpreter.Interpreter;
 import som.vmobjects.SAbstractObject;
@@ -88,6 +89,9 @@ public class Universe {
   public Universe() {
     this.interpreter = new Interpreter(this);
     this.symbolTable = new HashMap<String, SSymbol>();
+    this.doesNotUnderstandSymbol = symbolFor("doesNotUnderstand:arguments:");
+    this.unknownGlobalSymbol = symbolFor("unknownGlobal:");
+    this.escapedBlockSymbol = symbolFor("escapedBlock:");
     this.avoidExit = false;
     this.lastExitCode = 0;
 
@@ -97,6 +101,9 @@ public class Universe {
   public Universe(final boolean avoidExit) {
     this.interpreter = new Interpreter(this);
     this.symbolTable = new HashMap<String, SSymbol>();
+    this.doesNotUnderstandSymbol = symbolFor("doesNotUnderstand:arguments:");
+    this.unknownGlobalSymbol = symbolFor("unknownGlobal:");
+    this.escapedBlockSymbol = symbolFor("escapedBlock:");
     this.avoidExit = avoidExit;
     this.lastExitCode = 0;
 
@@ -107,11 +114,33 @@ public class Universe {
     return current;
   }
 
+  public boolean useSuperinstructions() {
+    return useSuperinstructions;
+  }
+
+  public boolean useInlining() {
+    return useInlining;
+  }
+
+  public void setUseInlining(final boolean value) {
+    useInlining = value;
+  }
+
+  public LookupCache getLookupCache() {
+    return lookupCache;
+  }
+
   public Interpreter getInterpreter() {
     return interpreter;
   }
 
   public void exit(final long errorCode) {
+    BytecodeProfiler profiler = interpreter.getBytecodeProfiler();
+    if (profiler != null) {
+      profiler.report();
+    }
+    interpreter.reportSendSites();
+
     // Exit from the Java system
     if (!avoidExit) {
       System.exit((int) errorCode);
@@ -148,6 +177,42 @@ public class Universe {
         gotClasspath = true;
       } else if (arguments[i].equals("-d") && !sawOthers) {
         dumpBytecodes = true;
+      } else if (arguments[i].equals("-basic-loop") && !sawOthers) {
+        interpreter.setUseBasicLoop(true);
+      } else if (arguments[i].equals("-profile-bytecodes") && !sawOthers) {
+        interpreter.setBytecodeProfiler(new BytecodeProfiler());
+        interpreter.setUseBasicLoop(true);
+        useSuperinstructions = false;
+      } else if (arguments[i].equals("-no-inlining") && !sawOthers) {
+        useInlining = false;
+      } else if (arguments[i].equals("-pic-size") && !sawOthers) {
+        if (i + 1 >= arguments.length) {
+          printUsageAndExit();
+        }
+        try {
+          interpreter.setPolymorphicCacheSize(Integer.parseInt(arguments[i + 1]));
+        } catch (NumberFormatException e) {
+          printUsageAndExit();
+        }
+        // Checkstyle: stop
+        ++i; // skip size
+        // Checkstyle: resume
+      } else if (arguments[i].equals("-compile-threshold") && !sawOthers) {
+        if (i + 1 >= arguments.length) {
+          printUsageAndExit();
+        }
+        try {
+          interpreter.setCompileThreshold(Integer.parseInt(arguments[i + 1]));
+        } catch (NumberFormatException e) {
+          printUsageAndExit();
+        }
+        // Checkstyle: stop
+        ++i; // skip threshold
+        // Checkstyle: resume
+      } else if (arguments[i].equals("-report-send-sites") && !sawOthers) {
+        interpreter.setReportSendSites(true);
+      } else if (arguments[i].equals("-node-interpreter") && !sawOthers) {
+        interpreter.setUseNodeInterpreter(true);
       } else {
         sawOthers = true;
         remainingArgs.add(arguments[i]);
@@ -253,6 +318,26 @@ public class Universe {
         + ">");
     println("                  set search path for application classes");
     println("    -d            enable disassembling");
+    println("    -basic-loop   use the basic bytecode loop instead of the");
+    println("                  register-cached one");
+    println("    -profile-bytecodes");
+    println("                  report the most frequent bytecode sequences");
+    println("                  on exit, uses the basic loop and disables");
+    println("                  superinstructions");
+    println("    -no-inlining  send ifTrue: and similar messages instead of");
+    println("                  inlining their literal blocks");
+    println("    -pic-size <n> cache up to n receiver classes per send site,");
+    println("                  default: " + Interpreter.DEFAULT_PIC_SIZE);
+    println("    -compile-threshold <n>");
+    println("                  compile methods to JVM code after n");
+    println("                  activations, not with the basic loop");
+    println("    -report-send-sites");
+    println("                  report the polymorphic and megamorphic");
+    println("                  send sites and the hits of the lookup cache");
+    println("                  on exit");
+    println("    -node-interpreter");
+    println("                  execute methods as trees of nodes instead");
+    println("                  of bytecodes");
 
     // Exit
     System.exit(0);
@@ -337,6 +422,11 @@ public class Universe {
     // Allocate the nil object
     nilObject = new SObject(null);
 
+    // Allocate the true and false objects, which methods returning them as
+    // literals refer to before their classes are loaded
+    trueObject = new SObject(nilObject);
+    falseObject = new SObject(nilObject);
+
     // Allocate the Metaclass classes
     metaclassClass = newMetaclassClass();
 
@@ -390,11 +480,11 @@ public class Universe {
     // Setup the true and false objects
     SSymbol trueSymbol = symbolFor("True");
     trueClass = loadClass(trueSymbol);
-    trueObject = newInstance(trueClass);
+    trueObject.setClass(trueClass);
 
     SSymbol falseSymbol = symbolFor("False");
     falseClass = loadClass(falseSymbol);
-    falseObject = newInstance(falseClass);
+    falseObject.setClass(falseClass);
 
     // Load the system class and create an instance of it
     systemClass = loadClass(symbolFor("System"));
@@ -455,10 +545,27 @@ public class Universe {
     return result;
   }
 
-  public SBlock newBlock(final SMethod method, final Frame context, final int arguments)
+  public SBlock newBlock(final SMethod method, final Frame context)
       throws ProgramDefinitionError {
+    // A clean block does not use its context, and is allocated only once
+    if (method.isCleanBlock()) {
+      SBlock result = method.getCleanBlockInstance();
+      if (result == null) {
+        result = new SBlock(method, null, method.getBlockClass(this));
+        method.setCleanBlockInstance(result);
+      }
+      return result;
+    }
+
     // Allocate a new block and set its class to be the block class
-    SBlock result = new SBlock(method, context, getBlockClass(arguments));
+    Frame blockContext;
+    if (method.copiesContext()) {
+      blockContext = context.copyVariables();
+    } else {
+      context.moveOffValueStack();
+      blockContext = context;
+    }
+    SBlock result = new SBlock(method, blockContext, method.getBlockClass(this));
     return result;
   }
 
@@ -472,16 +579,11 @@ public class Universe {
   }
 
   public Frame newFrame(final Frame previousFrame, final SMethod method,
-      final Frame context) {
-
-    // Compute the maximum number of stack locations (including arguments,
-    // locals and extra buffer to support doesNotUnderstand) and set the number
-    // of indexable fields accordingly
-    long length = method.getNumberOfArguments()
-        + method.getNumberOfLocals()
-        + method.getMaximumNumberOfStackElements() + 2;
-
-    Frame result = new Frame(nilObject, previousFrame, context, method, length);
+      final Frame context, final SAbstractObject[] valueStack, final int argumentOffset) {
+    // Allocate a frame on the value stack, see SMethod#getFrameLength() for
+    // the number of stack locations it uses
+    Frame result =
+        new Frame(nilObject, previousFrame, context, method, valueStack, argumentOffset);
 
     // Return the freshly allocated frame
     return result;
@@ -593,17 +695,32 @@ public class Universe {
   public SAbstractObject getGlobal(final SSymbol name) {
     // Return the global with the given name if it's in the dictionary of
     // globals
-    if (hasGlobal(name)) {
-      return globals.get(name);
+    GlobalCell cell = globals.get(name);
+    if (cell != null) {
+      return cell.getValue();
     }
 
     // Global not found
     return null;
   }
 
+  /**
+   * @return the cell of the global with the given name, or null if the
+   *         global was never set
+   */
+  public GlobalCell getGlobalCell(final SSymbol name) {
+    return globals.get(name);
+  }
+
   public void setGlobal(final SSymbol name, final SAbstractObject value) {
-    // Insert the given value into the dictionary of globals
-    globals.put(name, value);
+    // Update the cell of the global, or insert a new one into the
+    // dictionary of globals
+    GlobalCell cell = globals.get(name);
+    if (cell != null) {
+      cell.setValue(value);
+    } else {
+      globals.put(name, new GlobalCell(value));
+    }
   }
 
   public boolean hasGlobal(final SSymbol name) {
@@ -617,6 +734,19 @@ public class Universe {
   }
 
   public SClass getBlockClass(final int numberOfArguments) throws ProgramDefinitionError {
+    // Block classes for the common arities are kept in a table
+    if (numberOfArguments < blockClasses.length) {
+      SClass result = blockClasses[numberOfArguments];
+      if (result == null) {
+        result = loadBlockClass(numberOfArguments);
+        blockClasses[numberOfArguments] = result;
+      }
+      return result;
+    }
+    return loadBlockClass(numberOfArguments);
+  }
+
+  private SClass loadBlockClass(final int numberOfArguments) throws ProgramDefinitionError {
     // Compute the name of the block class with the given number of
     // arguments
     SSymbol name = symbolFor("Block"
@@ -776,10 +906,19 @@ public class Universe {
   public SClass trueClass;
   public SClass falseClass;
 
-  private final HashMap<SSymbol, SAbstractObject> globals =
-      new HashMap<SSymbol, SAbstractObject>();
-  private String[]                                classPath;
-  private boolean                                 dumpBytecodes;
+  // the selectors of the messages sent by the VM
+  public final SSymbol doesNotUnderstandSymbol;
+  public final SSymbol unknownGlobalSymbol;
+  public final SSymbol escapedBlockSymbol;
+
+  private final HashMap<SSymbol, GlobalCell> globals              =
+      new HashMap<SSymbol, GlobalCell>();
+  private String[]                           classPath;
+  private boolean                            dumpBytecodes;
+  private boolean                            useSuperinstructions = true;
+  private boolean                            useInlining          = true;
+  private final LookupCache                  lookupCache          = new LookupCache();
+  private final SClass[]                     blockClasses         = new SClass[4];
 
   public static final String             pathSeparator;
   public static final String             fileSeparator;
@@ -33,11 +33,8 @@ public abstract class SAbstractObject {
 
   public abstract SClass getSOMClass(Universe universe);
 
-  public void send(final String selectorString, final SAbstractObject[] arguments,
+  public void send(final SSymbol selector, final SAbstractObject[] arguments,
       final Universe universe, final Interpreter interpreter) {
-    // Turn the selector string into a selector
-    SSymbol selector = universe.symbolFor(selectorString);
-
     // Push the receiver onto the stack
     interpreter.getFrame().push(this);
 
@@ -55,6 +52,17 @@ public abstract class SAbstractObject {
 
   public void sendDoesNotUnderstand(final SSymbol selector,
       final Universe universe, final Interpreter interpreter) {
+    SInvokable handler =
+        getSOMClass(universe).lookupInvokable(universe.doesNotUnderstandSymbol);
+    sendDoesNotUnderstand(selector, handler, universe, interpreter);
+  }
+
+  /**
+   * Send #doesNotUnderstand:arguments: with the given handler, which was
+   * looked up in the class of this object already.
+   */
+  public void sendDoesNotUnderstand(final SSymbol selector, final SInvokable handler,
+      final Universe universe, final Interpreter interpreter) {
     // Compute the number of arguments
     int numberOfArguments = selector.getNumberOfSignatureArguments();
 
@@ -69,22 +77,22 @@ public abstract class SAbstractObject {
       argumentsArray.setIndexableField(i, frame.pop());
     }
 
-    frame.pop(); // pop receiver
-
-    SAbstractObject[] args = {selector, argumentsArray};
-    send("doesNotUnderstand:arguments:", args, universe, interpreter);
+    // the receiver stays on the stack for the handler
+    frame.push(selector);
+    frame.push(argumentsArray);
+    handler.invoke(frame, interpreter);
   }
 
   public void sendUnknownGlobal(final SSymbol globalName,
       final Universe universe, final Interpreter interpreter) {
     SAbstractObject[] arguments = {globalName};
-    send("unknownGlobal:", arguments, universe, interpreter);
+    send(universe.unknownGlobalSymbol, arguments, universe, interpreter);
   }
 
   public void sendEscapedBlock(final SBlock block, final Universe universe,
       final Interpreter interpreter) {
     SAbstractObject[] arguments = {block};
-    send("escapedBlock:", arguments, universe, interpreter);
+    send(universe.escapedBlockSymbol, arguments, universe, interpreter);
   }
 
   @Override
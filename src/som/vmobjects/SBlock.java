@@ -50,6 +50,15 @@ public class SBlock extends SAbstractObject {
     return blockClass;
   }
 
+  /**
+   * Evaluate the block with the arguments on the stack of the given frame,
+   * of which the first is the block.
+   */
+  public void evaluate(final Frame frame, final Interpreter interpreter) {
+    // Push a new frame and set its context to be the one of the block
+    interpreter.pushNewFrameWithArguments(method, context);
+  }
+
   public static SPrimitive getEvaluationPrimitive(final int numberOfArguments,
       final Universe universe) {
     return new Evaluation(numberOfArguments, universe);
@@ -66,14 +75,7 @@ public class SBlock extends SAbstractObject {
     public void invoke(final Frame frame, final Interpreter interpreter) {
       // Get the block (the receiver) from the stack
       SBlock self = (SBlock) frame.getStackElement(numberOfArguments - 1);
-
-      // Get the context of the block...
-      Frame context = self.getContext();
-
-      // Push a new frame and set its context to be the one specified in
-      // the block
-      Frame newFrame = interpreter.pushNewFrame(self.getMethod(), context);
-      newFrame.copyArgumentsFrom(frame);
+      self.evaluate(frame, interpreter);
     }
 
     private static String computeSignatureString(final int numberOfArguments) {
@@ -95,6 +97,34 @@ public class SBlock extends SAbstractObject {
     private final int numberOfArguments;
   }
 
+  /**
+   * The condition block of an inlined while loop, with which the loop message
+   * is sent when the condition is not a boolean. Its first evaluation
+   * answers the condition the inlined loop evaluated already, so that the
+   * message continues the loop instead of evaluating the condition again.
+   */
+  public static final class ResumedCondition extends SBlock {
+
+    public ResumedCondition(final SBlock condition, final SAbstractObject value) {
+      super(condition.method, condition.context, condition.blockClass);
+      this.value = value;
+    }
+
+    @Override
+    public void evaluate(final Frame frame, final Interpreter interpreter) {
+      if (value == null) {
+        super.evaluate(frame, interpreter);
+        return;
+      }
+
+      frame.pop();
+      frame.push(value);
+      value = null;
+    }
+
+    private SAbstractObject value;
+  }
+
   private final SMethod method;
   private final Frame   context;
   private final SClass  blockClass;
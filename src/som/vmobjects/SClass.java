@@ -25,7 +25,6 @@
 package som.vmobjects;
 
 import java.lang.reflect.Constructor;
-import java.util.HashMap;
 
 import som.primitives.Primitives;
 import som.vm.Universe;
@@ -38,7 +37,6 @@ public class SClass extends SObject {
   public SClass(final Universe universe) {
     // Initialize this class by calling the super constructor
     super(universe.nilObject);
-    invokablesTable = new HashMap<SSymbol, SInvokable>();
     this.universe = universe;
   }
 
@@ -46,7 +44,6 @@ public class SClass extends SObject {
     // Initialize this class by calling the super constructor with the given
     // value
     super(numberOfFields, universe.nilObject);
-    invokablesTable = new HashMap<SSymbol, SInvokable>();
     this.universe = universe;
   }
 
@@ -58,6 +55,7 @@ public class SClass extends SObject {
   public void setSuperClass(final SObject value) {
     // Set the super class by writing to the field with super class index
     superclass = value;
+    universe.getLookupCache().invalidate();
   }
 
   public boolean hasSuperClass() {
@@ -97,6 +95,7 @@ public class SClass extends SObject {
     // Set the instance invokables by writing to the field with the instance
     // invokables index
     instanceInvokables = value;
+    universe.getLookupCache().invalidate();
 
     // Make sure this class is the holder of all invokables in the array
     for (int i = 0; i < getNumberOfInstanceInvokables(); i++) {
@@ -120,6 +119,7 @@ public class SClass extends SObject {
 
     // Set the instance method with the given index to the given value
     getInstanceInvokables().setIndexableField(index, (SAbstractObject) value);
+    universe.getLookupCache().invalidate();
   }
 
   @Override
@@ -129,33 +129,28 @@ public class SClass extends SObject {
   }
 
   public SInvokable lookupInvokable(final SSymbol signature) {
-    SInvokable invokable;
-
-    // Lookup invokable and return if found
-    invokable = invokablesTable.get(signature);
-    if (invokable != null) {
-      return invokable;
-    }
+    return universe.getLookupCache().lookup(this, signature);
+  }
 
+  /**
+   * Lookup the invokable in this class and its super classes, without the
+   * lookup cache of the VM, which uses this on a miss.
+   */
+  public SInvokable lookupInvokableUncached(final SSymbol signature) {
     // Lookup invokable with given signature in array of instance invokables
     for (int i = 0; i < getNumberOfInstanceInvokables(); i++) {
       // Get the next invokable in the instance invokable array
-      invokable = getInstanceInvokable(i);
+      SInvokable invokable = getInstanceInvokable(i);
 
       // Return the invokable if the signature matches
       if (invokable.getSignature() == signature) {
-        invokablesTable.put(signature, invokable);
         return invokable;
       }
     }
 
     // Traverse the super class chain by calling lookup on the super class
     if (hasSuperClass()) {
-      invokable = ((SClass) getSuperClass()).lookupInvokable(signature);
-      if (invokable != null) {
-        invokablesTable.put(signature, invokable);
-        return invokable;
-      }
+      return ((SClass) getSuperClass()).lookupInvokableUncached(signature);
     }
 
     // Invokable not found
@@ -278,9 +273,6 @@ public class SClass extends SObject {
   private SArray  instanceInvokables;
   private SArray  instanceFields;
 
-  // Mapping of symbols to invokables
-  private final HashMap<SSymbol, SInvokable> invokablesTable;
-
   // Static field indices and number of class fields
   static final int numberOfClassFields = numberOfObjectFields;
 }
@@ -44,6 +44,14 @@ public final class SInteger extends SNumber {
    */
   private static Map<Long, SInteger> CACHE = new HashMap<>();
 
+  /**
+   * Array-based cache for the most common integers, to avoid boxing the
+   * value to look it up in {@link #CACHE}. Filled lazily.
+   */
+  private static final int        SMALL_MIN   = -1024;
+  private static final int        SMALL_MAX   = 65535;
+  private static final SInteger[] SMALL_CACHE = new SInteger[SMALL_MAX - SMALL_MIN + 1];
+
   // Private variable holding the embedded integer
   private final long embeddedInteger;
 
@@ -52,6 +60,15 @@ public final class SInteger extends SNumber {
   }
 
   public static SInteger getInteger(final long value) {
+    if (value >= SMALL_MIN && value <= SMALL_MAX) {
+      int index = (int) value - SMALL_MIN;
+      SInteger result = SMALL_CACHE[index];
+      if (result == null) {
+        result = new SInteger(value);
+        SMALL_CACHE[index] = result;
+      }
+      return result;
+    }
     if (value > MAX_IDENTICAL_INT) {
       return new SInteger(value);
     }
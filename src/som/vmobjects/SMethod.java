@@ -24,14 +24,56 @@
 
 package som.vmobjects;
 
+import static som.interpreter.Bytecodes.FOR_DOWN_TO;
+import static som.interpreter.Bytecodes.FOR_NEXT;
+import static som.interpreter.Bytecodes.FOR_TO;
+import static som.interpreter.Bytecodes.JUMP;
+import static som.interpreter.Bytecodes.JUMP_BACKWARD;
+import static som.interpreter.Bytecodes.JUMP_IF_FALSE;
+import static som.interpreter.Bytecodes.JUMP_IF_NIL;
+import static som.interpreter.Bytecodes.JUMP_IF_NOT_NIL;
+import static som.interpreter.Bytecodes.JUMP_IF_TRUE;
+import static som.interpreter.Bytecodes.POP_ARGUMENT;
+import static som.interpreter.Bytecodes.POP_FIELD;
+import static som.interpreter.Bytecodes.POP_LOCAL;
+import static som.interpreter.Bytecodes.PUSH_ARGUMENT;
+import static som.interpreter.Bytecodes.PUSH_BLOCK;
+import static som.interpreter.Bytecodes.PUSH_CONSTANT;
+import static som.interpreter.Bytecodes.PUSH_FIELD;
+import static som.interpreter.Bytecodes.PUSH_GLOBAL;
+import static som.interpreter.Bytecodes.PUSH_LOCAL;
+import static som.interpreter.Bytecodes.SEND;
+import static som.interpreter.Bytecodes.SEND_ADD;
+import static som.interpreter.Bytecodes.SEND_EQUAL;
+import static som.interpreter.Bytecodes.SEND_LESS_THAN;
+import static som.interpreter.Bytecodes.SEND_MEGA;
+import static som.interpreter.Bytecodes.SEND_MONO_METHOD;
+import static som.interpreter.Bytecodes.SEND_MONO_PRIMITIVE;
+import static som.interpreter.Bytecodes.SEND_MULTIPLY;
+import static som.interpreter.Bytecodes.SEND_POLY;
+import static som.interpreter.Bytecodes.SEND_SUBTRACT;
+import static som.interpreter.Bytecodes.SUPER_SEND;
+import static som.interpreter.Bytecodes.encodeInstruction;
+import static som.interpreter.Bytecodes.getBytecodeLength;
+import static som.interpreter.Bytecodes.getFirstComponent;
+import static som.interpreter.Bytecodes.getJumpOffset;
+import static som.interpreter.Bytecodes.replaceOpcode;
+
 import java.util.List;
 
+import som.compiler.ProgramDefinitionError;
+import som.interpreter.Bytecodes;
+import som.interpreter.CompiledMethod;
 import som.interpreter.Frame;
 import som.interpreter.Interpreter;
+import som.interpreter.Node;
+import som.interpreter.PolymorphicInlineCache;
+import som.vm.GlobalCell;
+import som.vm.LookupCache;
 import som.vm.Universe;
 
 
-public class SMethod extends SAbstractObject implements SInvokable {
+public class SMethod extends SAbstractObject implements SInvokable, LookupCache.Dependent {
 
   public SMethod(final SSymbol signature, final int numberOfBytecodes,
       final int numberOfLocals, final int maxNumStackElements,
@@ -42,6 +84,11 @@ public class SMethod extends SAbstractObject implements SInvokable {
     inlineCacheClass = new SClass[numberOfBytecodes];
     inlineCacheInvokable = new SInvokable[numberOfBytecodes];
     maximumNumberOfStackElements = maxNumStackElements;
+    numberOfArguments = signature.getNumberOfSignatureArguments();
+
+    // the arguments, the locals, and an extra buffer to support
+    // doesNotUnderstand
+    frameLength = numberOfArguments + numberOfLocals + maxNumStackElements + 2;
     this.literals =
         literals == null ? null : literals.toArray(new SAbstractObject[literals.size()]);
   }
@@ -59,6 +106,13 @@ public class SMethod extends SAbstractObject implements SInvokable {
     return maximumNumberOfStackElements;
   }
 
+  /**
+   * @return the number of stack elements of a frame for this method
+   */
+  public int getFrameLength() {
+    return frameLength;
+  }
+
   @Override
   public SSymbol getSignature() {
     return signature;
@@ -81,6 +135,12 @@ public class SMethod extends SAbstractObject implements SInvokable {
     for (int i = 0; i < literals.length; i++) {
       if (literals[i] instanceof SInvokable) {
         ((SInvokable) literals[i]).setHolder(value);
+      } else if (literals[i] instanceof SArray) {
+        // the blocks of an inlined send, see Bytecodes.JUMP_IF_TRUE
+        SArray inlinedSend = (SArray) literals[i];
+        for (int j = 1; j < inlinedSend.getNumberOfIndexableFields(); j++) {
+          ((SInvokable) inlinedSend.getIndexableField(j)).setHolder(value);
+        }
       }
     }
   }
@@ -90,9 +150,17 @@ public class SMethod extends SAbstractObject implements SInvokable {
     return literals[bytecodes[bytecodeIndex + 1]];
   }
 
+  public SAbstractObject getLiteral(final int index) {
+    return literals[index];
+  }
+
+  public int getNumberOfLiterals() {
+    return literals == null ? 0 : literals.length;
+  }
+
   public int getNumberOfArguments() {
     // Get the number of arguments of this method
-    return getSignature().getNumberOfSignatureArguments();
+    return numberOfArguments;
   }
 
   public int getNumberOfBytecodes() {
@@ -105,16 +173,154 @@ public class SMethod extends SAbstractObject implements SInvokable {
     return bytecodes[index];
   }
 
+  public byte[] getBytecodes() {
+    // Get the bytecode array, which must not be modified by the caller
+    return bytecodes;
+  }
+
   public void setBytecode(final int index, final byte value) {
     // Set the bytecode at the given index to the given value
     bytecodes[index] = value;
   }
 
+  /**
+   * Get the pre-decoded instructions of this method, which are created on
+   * first use. They are indexed like the bytecodes, and each instruction
+   * holds the opcode and its operands, see {@link Bytecodes#encodeInstruction}.
+   * For sends, the first operand is the number of arguments including the
+   * receiver.
+   */
+  public int[] getInstructions() {
+    int[] result = instructions;
+    if (result == null) {
+      result = decodeInstructions();
+    }
+    return result;
+  }
+
+  /**
+   * Get the literals referenced by the pre-decoded instructions, indexed like
+   * the instructions. Only valid after {@link #getInstructions()} was called.
+   */
+  public Object[] getInstructionLiterals() {
+    return instructionLiterals;
+  }
+
+  /**
+   * Rewrite the instruction at the given index in place to the given
+   * bytecode, which needs to have the same length and operands. Used to
+   * quicken sends once their receiver classes are known.
+   */
+  public void quicken(final int bytecodeIndex, final byte bytecode) {
+    bytecodes[bytecodeIndex] = bytecode;
+    if (instructions != null) {
+      instructions[bytecodeIndex] = replaceOpcode(instructions[bytecodeIndex], bytecode);
+    }
+  }
+
+  /**
+   * Rewrite the PUSH_BLOCK at the given index to a PUSH_CONSTANT of the given
+   * block, which replaces the block method as literal.
+   */
+  public void quickenToConstant(final int bytecodeIndex, final SBlock block) {
+    literals[bytecodes[bytecodeIndex + 1]] = block;
+    if (instructions != null) {
+      instructionLiterals[bytecodeIndex] = block;
+    }
+    quicken(bytecodeIndex, PUSH_CONSTANT);
+  }
+
+  private int[] decodeInstructions() {
+    int[] result = new int[bytecodes.length];
+    Object[] resultLiterals = new Object[bytecodes.length];
+
+    int i = 0;
+    while (i < bytecodes.length) {
+      byte bytecode = bytecodes[i];
+
+      // superinstructions have the operands of their first component
+      switch (getFirstComponent(bytecode)) {
+        case PUSH_LOCAL:
+        case PUSH_ARGUMENT:
+        case POP_LOCAL:
+        case POP_ARGUMENT:
+          result[i] = encodeInstruction(bytecode, bytecodes[i + 1], bytecodes[i + 2]);
+          break;
+
+        case PUSH_FIELD:
+        case POP_FIELD:
+          result[i] = encodeInstruction(bytecode, bytecodes[i + 1], 0);
+          break;
+
+        case PUSH_BLOCK:
+        case PUSH_CONSTANT:
+        case PUSH_GLOBAL:
+        case SUPER_SEND:
+          result[i] = encodeInstruction(bytecode, 0, 0);
+          resultLiterals[i] = getConstant(i);
+          break;
+
+        case SEND:
+        case SEND_MONO_METHOD:
+        case SEND_MONO_PRIMITIVE:
+        case SEND_POLY:
+        case SEND_MEGA:
+        case SEND_ADD:
+        case SEND_SUBTRACT:
+        case SEND_MULTIPLY:
+        case SEND_LESS_THAN:
+        case SEND_EQUAL: {
+          SSymbol sig = (SSymbol) getConstant(i);
+          result[i] = encodeInstruction(bytecode, sig.getNumberOfSignatureArguments(), 0);
+          resultLiterals[i] = sig;
+          break;
+        }
+
+        case JUMP:
+        case JUMP_IF_NIL:
+        case JUMP_IF_NOT_NIL:
+        case JUMP_BACKWARD:
+          result[i] = encodeInstruction(bytecode, 0,
+              getJumpOffset(bytecodes[i + 1], bytecodes[i + 2]));
+          break;
+
+        case JUMP_IF_TRUE:
+        case JUMP_IF_FALSE:
+          result[i] = encodeInstruction(bytecode, 0,
+              getJumpOffset(bytecodes[i + 1], bytecodes[i + 2]));
+          resultLiterals[i] = literals[bytecodes[i + 3]];
+          break;
+
+        case FOR_TO:
+        case FOR_DOWN_TO:
+          result[i] = encodeInstruction(bytecode, bytecodes[i + 4],
+              getJumpOffset(bytecodes[i + 1], bytecodes[i + 2]));
+          resultLiterals[i] = literals[bytecodes[i + 3]];
+          break;
+
+        case FOR_NEXT:
+          result[i] = encodeInstruction(bytecode, bytecodes[i + 3],
+              getJumpOffset(bytecodes[i + 1], bytecodes[i + 2]));
+          break;
+
+        default:
+          result[i] = encodeInstruction(bytecode, 0, 0);
+          break;
+      }
+
+      i += getBytecodeLength(bytecode);
+    }
+
+    instructionLiterals = resultLiterals;
+    instructions = result;
+    return result;
+  }
+
   @Override
   public void invoke(final Frame frame, final Interpreter interpreter) {
-    // Allocate and push a new frame on the interpreter stack
-    Frame newFrame = interpreter.pushNewFrame(this);
-    newFrame.copyArgumentsFrom(frame);
+    // Push a new frame on the interpreter stack, with the arguments on top
+    // of the stack of the given frame
+    interpreter.pushNewFrameWithArguments(this, null);
   }
 
   @Override
@@ -131,12 +337,208 @@ public class SMethod extends SAbstractObject implements SInvokable {
     return inlineCacheInvokable[bytecodeIndex];
   }
 
+  /**
+   * Cache the invokable of the send at the given index for the given class.
+   * The first cached lookup registers the method with the lookup cache, which
+   * clears the inline caches when a class changes.
+   */
   public void setInlineCache(final int bytecodeIndex, final SClass receiverClass,
-      final SInvokable invokable) {
+      final SInvokable invokable, final LookupCache lookupCache) {
+    if (!cachesLookups) {
+      cachesLookups = true;
+      lookupCache.addDependent(this);
+    }
     inlineCacheClass[bytecodeIndex] = receiverClass;
     inlineCacheInvokable[bytecodeIndex] = invokable;
   }
 
+  /**
+   * @return the cache of the polymorphic send site at the given index, or
+   *         null if the site did not see more than one receiver class
+   */
+  public PolymorphicInlineCache getPolymorphicCache(final int bytecodeIndex) {
+    return polymorphicCaches == null ? null : polymorphicCaches[bytecodeIndex];
+  }
+
+  public void setPolymorphicCache(final int bytecodeIndex,
+      final PolymorphicInlineCache cache) {
+    // most methods do not have polymorphic send sites
+    if (polymorphicCaches == null) {
+      polymorphicCaches = new PolymorphicInlineCache[bytecodes.length];
+    }
+    polymorphicCaches[bytecodeIndex] = cache;
+  }
+
+  /**
+   * Clear the inline caches, and turn the quickened sends back into plain
+   * sends, which quicken again for the classes they see from now on.
+   */
+  @Override
+  public void invalidateLookups() {
+    cachesLookups = false;
+    for (int i = 0; i < bytecodes.length; i++) {
+      if (inlineCacheClass[i] == null) {
+        continue;
+      }
+
+      switch (bytecodes[i]) {
+        case SEND_MONO_METHOD:
+        case SEND_MONO_PRIMITIVE:
+        case SEND_POLY:
+        case SEND_MEGA:
+          quicken(i, SEND);
+          break;
+      }
+      inlineCacheClass[i] = null;
+      inlineCacheInvokable[i] = null;
+    }
+    polymorphicCaches = null;
+  }
+
+  /**
+   * @return the invokable of the SUPER_SEND at the given index, or null if
+   *         it was not looked up with the given version of the lookup cache
+   */
+  public SInvokable getSuperSendTarget(final int bytecodeIndex, final int version) {
+    if (superSendVersions == null || superSendVersions[bytecodeIndex] != version) {
+      return null;
+    }
+    return inlineCacheInvokable[bytecodeIndex];
+  }
+
+  public void setSuperSendTarget(final int bytecodeIndex, final SInvokable invokable,
+      final int version) {
+    if (superSendVersions == null) {
+      superSendVersions = new int[bytecodes.length];
+    }
+    inlineCacheInvokable[bytecodeIndex] = invokable;
+    superSendVersions[bytecodeIndex] = version;
+  }
+
+  /**
+   * @return the #doesNotUnderstand:arguments: handler of the given receiver
+   *         class for the send at the given index, or null if it was not
+   *         looked up for the class with the given version of the lookup
+   *         cache
+   */
+  public SInvokable getDnuHandler(final int bytecodeIndex, final SClass receiverClass,
+      final int version) {
+    if (dnuClasses == null || dnuClasses[bytecodeIndex] != receiverClass
+        || dnuVersions[bytecodeIndex] != version) {
+      return null;
+    }
+    return dnuHandlers[bytecodeIndex];
+  }
+
+  public void setDnuHandler(final int bytecodeIndex, final SClass receiverClass,
+      final SInvokable handler, final int version) {
+    // most methods do not send messages that are not understood
+    if (dnuClasses == null) {
+      dnuClasses = new SClass[bytecodes.length];
+      dnuHandlers = new SInvokable[bytecodes.length];
+      dnuVersions = new int[bytecodes.length];
+    }
+    dnuClasses[bytecodeIndex] = receiverClass;
+    dnuHandlers[bytecodeIndex] = handler;
+    dnuVersions[bytecodeIndex] = version;
+  }
+
+  /**
+   * A clean block method only accesses its own variables, and those of the
+   * blocks nested in it, so that its blocks do not need a context.
+   */
+  public boolean isCleanBlock() {
+    return cleanBlock;
+  }
+
+  public void markAsCleanBlock() {
+    cleanBlock = true;
+  }
+
+  /**
+   * A block method copying its context only reads the variables of the frame
+   * its blocks are created in, and only after their last assignment. Its
+   * blocks get a copy of these variables as context instead of the frame.
+   */
+  public boolean copiesContext() {
+    return copyingContext;
+  }
+
+  public void markAsCopyingContext() {
+    copyingContext = true;
+  }
+
+  /**
+   * @return the block of this clean block method, or null if it was not
+   *         created yet
+   */
+  public SBlock getCleanBlockInstance() {
+    return cleanBlockInstance;
+  }
+
+  public void setCleanBlockInstance(final SBlock block) {
+    cleanBlockInstance = block;
+  }
+
+  /**
+   * @return the class of the blocks created for this block method, which is
+   *         resolved on the first creation of a block
+   */
+  public SClass getBlockClass(final Universe universe) throws ProgramDefinitionError {
+    if (blockClass == null) {
+      blockClass = universe.getBlockClass(getNumberOfArguments());
+    }
+    return blockClass;
+  }
+
+  /**
+   * @return the cell of the global pushed by the PUSH_GLOBAL at the given
+   *         index, or null if the global was not read yet
+   */
+  public GlobalCell getGlobalCell(final int bytecodeIndex) {
+    return globalCells == null ? null : globalCells[bytecodeIndex];
+  }
+
+  public void setGlobalCell(final int bytecodeIndex, final GlobalCell cell) {
+    if (globalCells == null) {
+      globalCells = new GlobalCell[bytecodes.length];
+    }
+    globalCells[bytecodeIndex] = cell;
+  }
+
+  /**
+   * Count an activation of this method.
+   *
+   * @return the number of activations so far
+   */
+  public int countActivation() {
+    activations += 1;
+    return activations;
+  }
+
+  /**
+   * @return the compiled code of this method, or null if it is interpreted
+   */
+  public CompiledMethod getCompiledMethod() {
+    return compiledMethod;
+  }
+
+  public void setCompiledMethod(final CompiledMethod value) {
+    compiledMethod = value;
+  }
+
+  /**
+   * @return the tree of nodes executing this method, or null if it was not
+   *         built yet, see {@link som.interpreter.NodeInterpreter}
+   */
+  public Node getRootNode() {
+    return rootNode;
+  }
+
+  public void setRootNode(final Node value) {
+    rootNode = value;
+  }
+
   @Override
   public SClass getSOMClass(final Universe universe) {
     return universe.methodClass;
@@ -147,12 +549,37 @@ public class SMethod extends SAbstractObject implements SInvokable {
   private final SClass[]     inlineCacheClass;
   private final SInvokable[] inlineCacheInvokable;
 
+  private boolean                  cachesLookups;
+  private PolymorphicInlineCache[] polymorphicCaches;
+  private GlobalCell[]             globalCells;
+  private int[]                    superSendVersions;
+  private SClass[]                 dnuClasses;
+  private SInvokable[]             dnuHandlers;
+  private int[]                    dnuVersions;
+
   private final SAbstractObject[] literals;
 
+  // Pre-decoded form of the bytecodes, created lazily on first execution
+  private int[]    instructions;
+  private Object[] instructionLiterals;
+
   private final SSymbol signature;
   private SClass        holder;
+  private SClass        blockClass;
+  private boolean       cleanBlock;
+  private boolean       copyingContext;
+  private SBlock        cleanBlockInstance;
+
+  // Counted only when a compiler is used, see Interpreter#setCompileThreshold
+  private int            activations;
+  private CompiledMethod compiledMethod;
+
+  // Built on first activation by the node interpreter
+  private Node rootNode;
 
   // Meta information
   private final int numberOfLocals;
   private final int maximumNumberOfStackElements;
+  private final int numberOfArguments;
+  private final int frameLength;
 }
@@ -25,6 +25,10 @@
 
 package som.vmobjects;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
 import som.interpreter.Frame;
 import som.interpreter.Interpreter;
 import som.vm.Universe;
@@ -66,6 +70,18 @@ public abstract class SPrimitive extends SAbstractObject implements SInvokable {
     return universe.primitiveClass;
   }
 
+  /**
+   * Get a method handle invoking this primitive, with the frame and the
+   * interpreter as arguments. The handle is bound to the primitive, so that
+   * the JVM can inline the primitive where the handle is a constant.
+   */
+  public MethodHandle getInvoker() {
+    if (invoker == null) {
+      invoker = INVOKE.bindTo(this);
+    }
+    return invoker;
+  }
+
   public static SPrimitive getEmptyPrimitive(java.lang.String signatureString,
       final Universe universe) {
     // Return an empty primitive with the given signature
@@ -86,6 +102,18 @@ public abstract class SPrimitive extends SAbstractObject implements SInvokable {
     });
   }
 
+  private static final MethodHandle INVOKE;
+
+  static {
+    try {
+      INVOKE = MethodHandles.lookup().findVirtual(SPrimitive.class, "invoke",
+          MethodType.methodType(void.class, Frame.class, Interpreter.class));
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
   private final SSymbol signature;
   private SClass        holder;
+  private MethodHandle  invoker;
 }
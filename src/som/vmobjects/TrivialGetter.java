@@ -0,0 +1,28 @@
+package som.vmobjects;
+
+import java.util.List;
+
+import som.interpreter.Frame;
+import som.interpreter.Interpreter;
+
+
+/**
+ * A method of the form `^field`.
+ */
+public final class TrivialGetter extends TrivialMethod {
+
+  public TrivialGetter(final SSymbol signature, final int numberOfBytecodes,
+      final int numberOfLocals, final int maxNumStackElements,
+      final List<SAbstractObject> literals, final int fieldIndex) {
+    super(signature, numberOfBytecodes, numberOfLocals, maxNumStackElements, literals);
+    this.fieldIndex = fieldIndex;
+  }
+
+  @Override
+  public void invoke(final Frame frame, final Interpreter interpreter) {
+    SObject self = (SObject) frame.pop();
+    frame.push(self.getField(fieldIndex));
+  }
+
+  private final int fieldIndex;
+}
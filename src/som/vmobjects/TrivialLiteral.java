@@ -0,0 +1,33 @@
+package som.vmobjects;
+
+import java.util.List;
+
+import som.interpreter.Frame;
+import som.interpreter.Interpreter;
+
+
+/**
+ * A method of the form `^literal`, including nil, true, and false.
+ */
+public final class TrivialLiteral extends TrivialMethod {
+
+  public TrivialLiteral(final SSymbol signature, final int numberOfBytecodes,
+      final int numberOfLocals, final int maxNumStackElements,
+      final List<SAbstractObject> literals, final SAbstractObject literal) {
+    super(signature, numberOfBytecodes, numberOfLocals, maxNumStackElements, literals);
+    this.literal = literal;
+    numberOfArguments = signature.getNumberOfSignatureArguments();
+  }
+
+  @Override
+  public void invoke(final Frame frame, final Interpreter interpreter) {
+    // pop the receiver and the arguments
+    for (int i = 0; i < numberOfArguments; i++) {
+      frame.pop();
+    }
+    frame.push(literal);
+  }
+
+  private final SAbstractObject literal;
+  private final int             numberOfArguments;
+}
@@ -0,0 +1,19 @@
+package som.vmobjects;
+
+import java.util.List;
+
+
+/**
+ * A method that only returns a field, sets a field, or returns a literal.
+ * It is executed directly on the stack of its caller, without a frame of its
+ * own. Its bytecodes are kept for the disassembler and for activations that
+ * do not go through invoke(), such as the one that starts the interpreter.
+ */
+public abstract class TrivialMethod extends SMethod {
+
+  public TrivialMethod(final SSymbol signature, final int numberOfBytecodes,
+      final int numberOfLocals, final int maxNumStackElements,
+      final List<SAbstractObject> literals) {
+    super(signature, numberOfBytecodes, numberOfLocals, maxNumStackElements, literals);
+  }
+}
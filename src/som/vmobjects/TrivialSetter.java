@@ -0,0 +1,29 @@
+package som.vmobjects;
+
+import java.util.List;
+
+import som.interpreter.Frame;
+import som.interpreter.Interpreter;
+
+
+/**
+ * A method of the form `field := argument`, which returns self.
+ */
+public final class TrivialSetter extends TrivialMethod {
+
+  public TrivialSetter(final SSymbol signature, final int numberOfBytecodes,
+      final int numberOfLocals, final int maxNumStackElements,
+      final List<SAbstractObject> literals, final int fieldIndex) {
+    super(signature, numberOfBytecodes, numberOfLocals, maxNumStackElements, literals);
+    this.fieldIndex = fieldIndex;
+  }
+
+  @Override
+  public void invoke(final Frame frame, final Interpreter interpreter) {
+    // the receiver stays on the stack as the result
+    SAbstractObject value = frame.pop();
+    ((SObject) frame.getStackElement(0)).setField(fieldIndex, value);
+  }
+
+  private final int fieldIndex;
+}
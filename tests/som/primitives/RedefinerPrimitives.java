@@ -0,0 +1,44 @@
+package som.primitives;
+
+import som.interpreter.Frame;
+import som.interpreter.Interpreter;
+import som.vm.Universe;
+import som.vmobjects.SClass;
+import som.vmobjects.SPrimitive;
+import som.vmobjects.SSymbol;
+
+
+/**
+ * The primitives of the Redefiner test class, which change classes while a
+ * program runs, so that the tests can check that the caches of the lookups
+ * see the changes.
+ */
+public class RedefinerPrimitives extends Primitives {
+  public RedefinerPrimitives(final Universe universe) {
+    super(universe);
+  }
+
+  @Override
+  public void installPrimitives() {
+    installInstancePrimitive(new SPrimitive("install:of:in:", universe) {
+
+      @Override
+      public void invoke(final Frame frame, final Interpreter interpreter) {
+        SClass target = (SClass) frame.pop();
+        SClass source = (SClass) frame.pop();
+        SSymbol selector = (SSymbol) frame.pop();
+        target.addInstanceInvokable(source.lookupInvokable(selector));
+      }
+    });
+
+    installInstancePrimitive(new SPrimitive("superclass:of:", universe) {
+
+      @Override
+      public void invoke(final Frame frame, final Interpreter interpreter) {
+        SClass target = (SClass) frame.pop();
+        SClass superclass = (SClass) frame.pop();
+        target.setSuperClass(superclass);
+      }
+    });
+  }
+}
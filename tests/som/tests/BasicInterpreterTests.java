@@ -132,10 +132,46 @@ public class BasicInterpreterTests {
 
         {"BinaryOperation", "test", 3 + 8, SInteger.class},
 
+        {"TrivialMethods", "testGetterWithArgument", 42, SInteger.class},
+        {"TrivialMethods", "testSetterWithTwoArguments", 5, SInteger.class},
+
+        {"InlinedBlocks", "testSentBlockReadsInlinedLocal", 5, SInteger.class},
+        {"InlinedBlocks", "testSentBlockReadsInlinedArgument", 3, SInteger.class},
+        {"InlinedBlocks", "testSentBlockWritesInlinedLocal", 6, SInteger.class},
+        {"InlinedBlocks", "testNestedSentBlockReadsInlinedLocal", 11, SInteger.class},
+
+        {"InlinedLoops", "testNotABooleanWhileCondition", 43, SInteger.class},
+        {"InlinedLoops", "testNotAnIntegerLimit", 6, SInteger.class},
+        {"InlinedLoops", "testNotAnIntegerStep", 3, SInteger.class},
+        {"InlinedLoops", "testNegativeStep", -9, SInteger.class},
+        {"InlinedLoops", "testBlockCapturesCounter", 6, SInteger.class},
+        {"InlinedLoops", "testBlockCapturesBodyLocal", 60, SInteger.class},
+        {"InlinedLoops", "testSentBlockCapturesCounter", 6, SInteger.class},
+        {"InlinedLoops", "testSentBlockCapturesWhileBodyLocal", 60, SInteger.class},
+
+        {"SendSites", "testMegamorphicSend", 327, SInteger.class},
+        {"SendSites", "testNotUnderstoodSend", 10, SInteger.class},
+        {"SendSites", "testPolymorphicSend", 30, SInteger.class},
+
+        {"Redefinitions", "testInstalledMethod", 111222, SInteger.class},
+        {"Redefinitions", "testRedefinedMethod", 111222, SInteger.class},
+        {"Redefinitions", "testChangedSuperclass", 111222, SInteger.class},
+        {"Redefinitions", "testRedefinedSuperSendTarget", 111222, SInteger.class},
+        {"Redefinitions", "testChangedSuperSendTarget", 111222, SInteger.class},
+        {"Redefinitions", "testInstalledDnuHandler", 333444, SInteger.class},
+        {"Redefinitions", "testRedefinedDnuHandler", 333444, SInteger.class},
+        {"Redefinitions", "testInstalledMissingMethod", 333555, SInteger.class},
+        {"Redefinitions", "testChangedGlobal", 111222, SInteger.class},
+        {"Redefinitions", "testChangedClassGlobal", 111222, SInteger.class},
+
         {"NumberOfTests", "numberOfTests", 65, SInteger.class}
     });
   }
 
+  // The tests of the core library, and the ones of this implementation
+  private static final String CLASS_PATH =
+      "Smalltalk:TestSuite/BasicInterpreterTests:tests/BasicInterpreterTests";
+
   private final String   testClass;
   private final String   testSelector;
   private final Object   expectedResult;
@@ -189,11 +225,13 @@ public class BasicInterpreterTests {
     fail("SOM Value handler missing for " + resultType);
   }
 
-  @Test
-  public void testBasicInterpreterBehavior() throws ProgramDefinitionError {
+  private Universe createUniverse() {
     Universe u = new Universe(true);
-    u.setupClassPath("Smalltalk:TestSuite/BasicInterpreterTests");
+    u.setupClassPath(CLASS_PATH);
+    return u;
+  }
 
+  private void assertInterpretedResult(final Universe u) throws ProgramDefinitionError {
     try {
       Object actualResult = u.interpret(testClass, testSelector);
       assertExpectedEqualsSOMValue(actualResult);
@@ -203,4 +241,61 @@ public class BasicInterpreterTests {
       }
     }
   }
+
+  @Test
+  public void testBasicInterpreterBehavior() throws ProgramDefinitionError {
+    assertInterpretedResult(createUniverse());
+  }
+
+  @Test
+  public void testBasicLoopBehavior() throws ProgramDefinitionError {
+    Universe u = createUniverse();
+    u.getInterpreter().setUseBasicLoop(true);
+    assertInterpretedResult(u);
+  }
+
+  @Test
+  public void testCompiledBehavior() throws ProgramDefinitionError {
+    Universe u = createUniverse();
+    u.getInterpreter().setCompileThreshold(1);
+    assertInterpretedResult(u);
+  }
+
+  @Test
+  public void testSmallPolymorphicCacheBehavior() throws ProgramDefinitionError {
+    Universe u = createUniverse();
+    u.getInterpreter().setPolymorphicCacheSize(1);
+    assertInterpretedResult(u);
+  }
+
+  @Test
+  public void testCompiledSmallPolymorphicCacheBehavior() throws ProgramDefinitionError {
+    Universe u = createUniverse();
+    u.getInterpreter().setCompileThreshold(1);
+    u.getInterpreter().setPolymorphicCacheSize(1);
+    assertInterpretedResult(u);
+  }
+
+  @Test
+  public void testNoInliningBehavior() throws ProgramDefinitionError {
+    Universe u = createUniverse();
+    u.setUseInlining(false);
+    assertInterpretedResult(u);
+  }
+
+  @Test
+  public void testNodeInterpreterBehavior() throws ProgramDefinitionError {
+    Universe u = createUniverse();
+    u.getInterpreter().setUseNodeInterpreter(true);
+    assertInterpretedResult(u);
+  }
+
+  @Test
+  public void testNodeInterpreterSmallPolymorphicCacheBehavior()
+      throws ProgramDefinitionError {
+    Universe u = createUniverse();
+    u.getInterpreter().setUseNodeInterpreter(true);
+    u.getInterpreter().setPolymorphicCacheSize(1);
+    assertInterpretedResult(u);
+  }
 }
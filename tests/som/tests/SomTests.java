@@ -23,7 +23,9 @@ package som.tests;
 
 import static org.junit.Assert.assertEquals;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -89,4 +91,43 @@ public class SomTests {
     assertEquals(0, u.lastExitCode());
   }
 
+  /**
+   * Run the test with the given options of the VM, to cover the execution
+   * paths that are not the default.
+   */
+  private void assertTestPasses(final String... options) throws ProgramDefinitionError {
+    List<String> args = new ArrayList<>(Arrays.asList(options));
+    args.addAll(Arrays.asList("-cp", "Smalltalk", "TestSuite/TestHarness.som", testName));
+
+    Universe u = new Universe(true);
+    u.interpret(args.toArray(new String[0]));
+
+    assertEquals(0, u.lastExitCode());
+  }
+
+  @Test
+  public void testSomeTestWithBasicLoop() throws ProgramDefinitionError {
+    assertTestPasses("-basic-loop");
+  }
+
+  @Test
+  public void testSomeTestCompiled() throws ProgramDefinitionError {
+    assertTestPasses("-compile-threshold", "1");
+  }
+
+  @Test
+  public void testSomeTestWithSmallPolymorphicCache() throws ProgramDefinitionError {
+    assertTestPasses("-pic-size", "1");
+  }
+
+  @Test
+  public void testSomeTestWithoutInlining() throws ProgramDefinitionError {
+    assertTestPasses("-no-inlining");
+  }
+
+  @Test
+  public void testSomeTestWithNodeInterpreter() throws ProgramDefinitionError {
+    assertTestPasses("-node-interpreter");
+  }
+
 }